@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+/**
+ * An "onPut" closure that can deal with a whole batch of values in one
+ * call. When the closure given to a {@link FlexiMap} implements this (as
+ * the ones made by {@link Closures#batched} do), {@link FlexiMap#putAll}
+ * looks up all of the old values first and calls it once, rather than
+ * calling the closure once per entry. That leaves room for checking or
+ * converting thousands of values in a tight loop.
+ * <p>
+ * The closure mustn't use the map it belongs to while it runs.
+ * </p>
+ *
+ * @see Closures#batched
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public interface BatchClosure
+{
+    /**
+     * Replaces each of the first <code>count</code> values with what the
+     * closure would return given the old value (null for a new key) and
+     * that value. Throwing leaves the map as it was.
+     */
+    void applyAll(Object[] oldvalues, Object[] values, int count);
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the changes made to a map to any number of subscribers, each at
+ * its own pace, so that reacting to a change needn't happen inside an
+ * "onPut" closure (and hold up the writer).
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces follow those
+ * of <code>java.util.concurrent.Flow</code> (which this library can't use
+ * while it still runs on Java 8), and behave the same way: nothing is
+ * sent to a subscriber until it requests some, and never more than it has
+ * requested. A subscriber's methods are called on the publisher's
+ * {@link Executor}, one at a time, and a subscriber with plenty of demand
+ * gets whatever has piled up in one go.
+ * </p><p>
+ * Every subscriber has a buffer of its own, and all a writer does is add
+ * its change to each buffer. What happens when a buffer is full is up to
+ * the {@link Policy}: the writer can wait for room, the oldest change can
+ * be dropped, or changes to the same key can be merged into one.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ChangePublisher implements Closeable {
+
+    /**
+     * What to do when a subscriber falls behind and its buffer is full.
+     */
+    public enum Policy {
+        /** The writer waits until there is room. */
+        BLOCK,
+        /** The oldest change in the buffer is thrown away. */
+        DROP_OLDEST,
+        /**
+         * A change to a key that already has a change waiting is merged
+         * into it, keeping the older "old" value and the newer "new" one.
+         * Only a buffer full of different keys makes the writer wait.
+         */
+        CONFLATE
+    }
+
+    /**
+     * Receives the changes, just like a <code>Flow.Subscriber</code>.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /**
+     * Links a subscriber to the publisher, just like a
+     * <code>Flow.Subscription</code>.
+     */
+    public interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    /**
+     * One change to a map. A clear is a single change with no key.
+     */
+    public static final class Change {
+        public enum Kind { PUT, REMOVE, CLEAR }
+
+        Change(final Kind kind, final Object key, final Object oldValue, final Object newValue) {
+            this.kind = kind;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Kind kind() {
+            return kind;
+        }
+
+        public Object key() {
+            return key;
+        }
+
+        public Object oldValue() {
+            return oldValue;
+        }
+
+        public Object newValue() {
+            return newValue;
+        }
+
+        public String toString() {
+            return kind + " " + key + ": " + oldValue + " -> " + newValue;
+        }
+
+        final private Kind kind;
+        final private Object key;
+        final private Object oldValue;
+        final private Object newValue;
+    }
+
+    /*
+     * Delivers on the common fork-join pool, blocking writers
+     * when a subscriber's buffer of 1024 changes is full.
+     */
+    public ChangePublisher() {
+        this(ForkJoinPool.commonPool(), 1024, Policy.BLOCK);
+    }
+
+    public ChangePublisher(final Executor executor, final int bufferSize, final Policy policy) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("The buffer size must be positive: " + bufferSize);
+        int capacity = 1;
+        while (capacity < bufferSize)
+            capacity <<= 1;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /*
+     * The subscriber sees the changes made after this returns.
+     * Subscribing to a closed publisher just completes.
+     */
+    public void subscribe(final Subscriber<? super Change> subscriber) {
+        final Buffer buffer = new Buffer(subscriber);
+        subscriber.onSubscribe(buffer);
+        if (closed) {
+            buffer.complete();
+            return;
+        }
+        subscribers.add(buffer);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    /**
+     * Returns the number of changes that never reached a subscriber,
+     * because it fell behind (with {@link Policy#DROP_OLDEST}) or because
+     * a waiting writer was interrupted.
+     */
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    /*
+     * Lets the subscribers finish what is in their buffers,
+     * then completes them. Changes published after this are
+     * ignored.
+     */
+    public void close() {
+        closed = true;
+        for (final Buffer buffer : subscribers)
+            buffer.complete();
+        subscribers.clear();
+    }
+
+    void publish(final Change change) {
+        if (closed)
+            return;
+        for (final Buffer buffer : subscribers)
+            buffer.offer(change);
+    }
+
+    /*
+     * A subscriber's buffer and subscription. Writers add to
+     * the buffer while holding its lock; the drain task takes
+     * a batch out under the lock, and hands it over without it.
+     * The wip counter makes sure only one drain task runs at a
+     * time, so the subscriber is never called concurrently.
+     */
+    private final class Buffer implements Subscription, Runnable {
+        Buffer(final Subscriber<? super Change> subscriber) {
+            this.subscriber = subscriber;
+            if (policy == Policy.CONFLATE)
+                pending = new LinkedHashMap<Object, Change>();
+            else
+                ring = new Change[capacity];
+        }
+
+        void offer(final Change change) {
+            synchronized (this) {
+                if (cancelled)
+                    return;
+                if (policy == Policy.CONFLATE)
+                    conflate(change);
+                else {
+                    if (tail - head == capacity) {
+                        if (policy == Policy.DROP_OLDEST) {
+                            ring[(int) (head++ & (capacity - 1))] = null;
+                            dropped.incrementAndGet();
+                        }
+                        else if (!awaitRoom()) {
+                            return;
+                        }
+                    }
+                    ring[(int) (tail++ & (capacity - 1))] = change;
+                }
+            }
+            schedule();
+        }
+
+        public void request(final long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("The number requested must be positive: " + n));
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            schedule();
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                if (ring != null)
+                    Arrays.fill(ring, null);
+                head = tail;
+                if (pending != null)
+                    pending.clear();
+                notifyAll();
+            }
+            subscribers.remove(this);
+        }
+
+        void complete() {
+            completing = true;
+            schedule();
+        }
+
+        public void run() {
+            int missed = 1;
+            final Change[] batch = new Change[Math.min(capacity, BATCH)];
+            do {
+                while (!cancelled) {
+                    final long requested = demand.get();
+                    final int n = take(batch, (int) Math.min(requested, batch.length));
+                    if (n == 0)
+                        break;
+                    for (int i = 0; i < n; i++) {
+                        final Change change = batch[i];
+                        batch[i] = null;
+                        if (cancelled)
+                            return;
+                        try {
+                            subscriber.onNext(change);
+                        } catch (final Throwable e) {
+                            fail(e);
+                            return;
+                        }
+                    }
+                    if (requested != Long.MAX_VALUE)
+                        demand.addAndGet(-n);
+                }
+                if (completing && !cancelled && isEmpty()) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (final RuntimeException e) {
+                    wip.set(0);
+                    fail(e);
+                }
+            }
+        }
+
+        private synchronized int take(final Change[] batch, final int max) {
+            int n = 0;
+            if (pending != null) {
+                final Iterator<Change> it = pending.values().iterator();
+                while (n < max && it.hasNext()) {
+                    batch[n++] = it.next();
+                    it.remove();
+                }
+            }
+            else {
+                while (n < max && head < tail) {
+                    final int i = (int) (head++ & (capacity - 1));
+                    batch[n++] = ring[i];
+                    ring[i] = null;
+                }
+            }
+            if (n > 0)
+                notifyAll();
+            return n;
+        }
+
+        private synchronized boolean isEmpty() {
+            return pending != null ? pending.isEmpty() : head == tail;
+        }
+
+        /*
+         * A clear makes every change waiting before it moot, so
+         * they go, and the clear takes their place.
+         */
+        private void conflate(final Change change) {
+            if (change.kind() == Change.Kind.CLEAR) {
+                pending.clear();
+                pending.put(CLEARED, change);
+                return;
+            }
+            final Object key = ProbeTable.maskNull(change.key());
+            final Change waiting = pending.get(key);
+            if (waiting != null) {
+                pending.put(key, new Change(change.kind(), change.key(), waiting.oldValue(), change.newValue()));
+                return;
+            }
+            if (pending.size() >= capacity && !awaitRoom())
+                return;
+            pending.put(key, change);
+        }
+
+        /*
+         * Called holding the lock. Returns false if the change
+         * shouldn't go in after all: the subscriber cancelled,
+         * or the writer was interrupted while it waited (and so
+         * gives up on this subscriber's copy of the change).
+         */
+        private boolean awaitRoom() {
+            while (!cancelled && (pending != null ? pending.size() >= capacity : tail - head == capacity)) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            return !cancelled;
+        }
+
+        private void fail(final Throwable e) {
+            cancel();
+            subscriber.onError(e);
+        }
+
+        final private Subscriber<? super Change> subscriber;
+        final private AtomicLong demand = new AtomicLong();
+        final private AtomicInteger wip = new AtomicInteger();
+        private Change[] ring;
+        private long head;
+        private long tail;
+        private LinkedHashMap<Object, Change> pending;
+        private volatile boolean cancelled;
+        private volatile boolean completing;
+    }
+
+    private static final int BATCH = 64;
+    private static final Object CLEARED = new Object();
+
+    final private Executor executor;
+    final private int capacity;
+    final private Policy policy;
+    final private AtomicLong dropped = new AtomicLong();
+    final private CopyOnWriteArrayList<Buffer> subscribers = new CopyOnWriteArrayList<Buffer>();
+    private volatile boolean closed;
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+/**
+ * A {@link Closure} that takes no arguments at all. Calling it doesn't
+ * allocate an array for the arguments the way the variable argument
+ * version does, which matters on a hot path.
+ *
+ * @see Closures
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public interface Closure0
+{
+    Object apply();
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+/**
+ * Converts between the variable argument {@link Closure} and the fixed
+ * arity versions ({@link Closure0} through {@link Closure3}).
+ * <p>
+ * A closure made by one of the <code>asClosure</code> functions implements
+ * both interfaces, so code that only knows about {@link Closure} (like the
+ * {@link FlexiMap} constructor) still gets it, while code that looks for the
+ * fixed arity interface (like the {@link FlexiMap} itself) calls it without
+ * allocating an argument array. Going the other way, the
+ * <code>arity</code> functions return the closure itself if it already
+ * implements the fixed arity interface.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Closures
+{
+    private Closures() {
+    }
+
+    public static Closure0 arity0(final Closure c) {
+        if (c instanceof Closure0)
+            return (Closure0) c;
+        return new Closure0() {
+            public Object apply() {
+                return c.apply();
+            }
+        };
+    }
+
+    public static Closure1 arity1(final Closure c) {
+        if (c instanceof Closure1)
+            return (Closure1) c;
+        return new Closure1() {
+            public Object apply(final Object a) {
+                return c.apply(a);
+            }
+        };
+    }
+
+    public static Closure2 arity2(final Closure c) {
+        if (c instanceof Closure2)
+            return (Closure2) c;
+        return new Closure2() {
+            public Object apply(final Object a, final Object b) {
+                return c.apply(a, b);
+            }
+        };
+    }
+
+    public static Closure3 arity3(final Closure c) {
+        if (c instanceof Closure3)
+            return (Closure3) c;
+        return new Closure3() {
+            public Object apply(final Object a, final Object b, final Object c3) {
+                return c.apply(a, b, c3);
+            }
+        };
+    }
+
+    public static Closure asClosure(final Closure0 c) {
+        return new Nullary(c);
+    }
+
+    public static Closure asClosure(final Closure1 c) {
+        return new Unary(c);
+    }
+
+    public static Closure asClosure(final Closure2 c) {
+        return new Binary(c);
+    }
+
+    public static Closure asClosure(final Closure3 c) {
+        return new Ternary(c);
+    }
+
+    /*
+     * Makes an "onPut" closure out of a batch closure. Putting
+     * a single value hands it a batch of one.
+     */
+    public static Closure batched(final BatchClosure c) {
+        return new Batched(c);
+    }
+
+    /*
+     * Makes a closure that remembers what the given one returned
+     * for each tuple of arguments.
+     */
+    public static Memoizer memoize(final Closure c, final Memoizer.Policy policy) {
+        return Memoizer.memoize(c, policy);
+    }
+
+    /*
+     * Called with the wrong number of arguments, the
+     * adapters complain rather than guess.
+     */
+    private static void checkArity(final Object[] objects, final int arity) {
+        if (objects.length != arity)
+            throw new IllegalArgumentException("Expected " + arity + " arguments, but got " + objects.length);
+    }
+
+    private static final class Nullary implements Closure, Closure0 {
+        final Closure0 fn;
+
+        Nullary(final Closure0 fn) {
+            this.fn = fn;
+        }
+        public Object apply() {
+            return fn.apply();
+        }
+        public Object apply(final Object... objects) {
+            checkArity(objects, 0);
+            return fn.apply();
+        }
+    }
+
+    private static final class Unary implements Closure, Closure1 {
+        final Closure1 fn;
+
+        Unary(final Closure1 fn) {
+            this.fn = fn;
+        }
+        public Object apply(final Object a) {
+            return fn.apply(a);
+        }
+        public Object apply(final Object... objects) {
+            checkArity(objects, 1);
+            return fn.apply(objects[0]);
+        }
+    }
+
+    private static final class Binary implements Closure, Closure2 {
+        final Closure2 fn;
+
+        Binary(final Closure2 fn) {
+            this.fn = fn;
+        }
+        public Object apply(final Object a, final Object b) {
+            return fn.apply(a, b);
+        }
+        public Object apply(final Object... objects) {
+            checkArity(objects, 2);
+            return fn.apply(objects[0], objects[1]);
+        }
+    }
+
+    private static final class Batched implements Closure, Closure2, BatchClosure {
+        final BatchClosure fn;
+
+        Batched(final BatchClosure fn) {
+            this.fn = fn;
+        }
+        public void applyAll(final Object[] oldvalues, final Object[] values, final int count) {
+            fn.applyAll(oldvalues, values, count);
+        }
+        public Object apply(final Object a, final Object b) {
+            final Object[] values = { b };
+            fn.applyAll(new Object[] { a }, values, 1);
+            return values[0];
+        }
+        public Object apply(final Object... objects) {
+            checkArity(objects, 2);
+            return apply(objects[0], objects[1]);
+        }
+    }
+
+    private static final class Ternary implements Closure, Closure3 {
+        final Closure3 fn;
+
+        Ternary(final Closure3 fn) {
+            this.fn = fn;
+        }
+        public Object apply(final Object a, final Object b, final Object c) {
+            return fn.apply(a, b, c);
+        }
+        public Object apply(final Object... objects) {
+            checkArity(objects, 3);
+            return fn.apply(objects[0], objects[1], objects[2]);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a key or value into bytes and back again, for the maps that keep
+ * their entries outside of the Java heap (in a file, or off-heap memory).
+ * The {@link Codecs} class has codecs for the common types.
+ * <p>
+ * A codec never sees <code>null</code>; the maps take care of that
+ * themselves.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public interface Codec
+{
+    /**
+     * Returns the number of bytes {@link #write} will take for the object.
+     */
+    int size(Object o);
+
+    /**
+     * Writes the object at the buffer's position, moving the position past
+     * it.
+     */
+    void write(Object o, ByteBuffer out);
+
+    /**
+     * Reads an object from the buffer's position, moving the position past
+     * it.
+     */
+    Object read(ByteBuffer in);
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Codec}s for the keys and values a {@link FlexiMap} usually holds:
+ * integers, longs, strings and lists of those.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Codecs
+{
+    private Codecs() {
+    }
+
+    /**
+     * An {@link Integer} as four bytes.
+     */
+    public static final Codec INTEGER = new Codec() {
+        public int size(final Object o) {
+            return 4;
+        }
+        public void write(final Object o, final ByteBuffer out) {
+            out.putInt((Integer) o);
+        }
+        public Object read(final ByteBuffer in) {
+            return in.getInt();
+        }
+    };
+
+    /**
+     * A {@link Long} as eight bytes.
+     */
+    public static final Codec LONG = new Codec() {
+        public int size(final Object o) {
+            return 8;
+        }
+        public void write(final Object o, final ByteBuffer out) {
+            out.putLong((Long) o);
+        }
+        public Object read(final ByteBuffer in) {
+            return in.getLong();
+        }
+    };
+
+    /**
+     * A {@link String} as its length followed by its UTF-8 bytes.
+     */
+    public static final Codec STRING = new Codec() {
+        public int size(final Object o) {
+            return 4 + utf8Length((String) o);
+        }
+        public void write(final Object o, final ByteBuffer out) {
+            final byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+        public Object read(final ByteBuffer in) {
+            final int length = in.getInt();
+            final String s;
+            if (in.hasArray()) {
+                s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+            }
+            else {
+                final byte[] bytes = new byte[length];
+                in.get(bytes);
+                s = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return s;
+        }
+    };
+
+    /**
+     * A {@link List} as its length followed by its elements, each written
+     * with the given codec. Elements may be <code>null</code>.
+     */
+    public static Codec list(final Codec elements) {
+        return new Codec() {
+            public int size(final Object o) {
+                int total = 4;
+                for (final Object e : (List<?>) o)
+                    total += 1 + (e == null ? 0 : elements.size(e));
+                return total;
+            }
+            public void write(final Object o, final ByteBuffer out) {
+                final List<?> list = (List<?>) o;
+                out.putInt(list.size());
+                for (final Object e : list) {
+                    if (e == null)
+                        out.put((byte) 0);
+                    else {
+                        out.put((byte) 1);
+                        elements.write(e, out);
+                    }
+                }
+            }
+            public Object read(final ByteBuffer in) {
+                final int length = in.getInt();
+                final List<Object> list = new ArrayList<Object>(length);
+                for (int i = 0; i < length; i++)
+                    list.add(in.get() == 0 ? null : elements.read(in));
+                return list;
+            }
+        };
+    }
+
+    /*
+     * Counts the UTF-8 bytes without encoding the string.
+     */
+    static int utf8Length(final String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                     && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+                length += 1;    // encoded as '?'
+            else
+                length += 3;
+        }
+        return length;
+    }
+}
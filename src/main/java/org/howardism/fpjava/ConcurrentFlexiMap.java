@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.howardism.options.Option;
+
+/**
+ * A thread-safe {@link FlexiMap}. The "onPut" closure runs as an atomic
+ * merge for its key: reading the old value, calling the closure and storing
+ * the result all happen while holding the lock for that key, so concurrent
+ * writers (bumping a counter, appending to a multi-map, concatenating
+ * strings) never lose an update.
+ * <p>
+ * The keys are spread over a number of <i>stripes</i>, each a
+ * {@link ProbeTable} with a lock of its own, so writers to different
+ * stripes never wait on each other. The "onGet" closure runs outside of
+ * the lock.
+ * </p><p>
+ * Like any other concurrent map, the size and the views are only a
+ * snapshot of a map that may be changing underneath them. Mutable values
+ * (like the lists in a multi-map) should only be changed from within
+ * "onPut", otherwise the lock does them no good.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ConcurrentFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object> {
+
+    /*
+     * Just like FlexiMap, we take a closure for transforming
+     * values going in, and one for values coming out. The
+     * number of stripes defaults to a few per processor.
+     */
+    public ConcurrentFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        this(putfn, getfn, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConcurrentFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                              final int concurrencyLevel) {
+        if (concurrencyLevel < 1)
+            throw new IllegalArgumentException("The concurrency level must be positive: " + concurrencyLevel);
+
+        int n = 1;
+        while (n < concurrencyLevel && n < (1 << 16))
+            n <<= 1;
+
+        onPut = putfn.isPresent() ? Closures.arity2(putfn.get()) : null;
+        onGet = getfn.isPresent() ? Closures.arity2(getfn.get()) : null;
+        stripes = new ProbeTable[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new ProbeTable();
+        shift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    public Object get(final Object key) {
+        final Object value = lookup(key);
+        return transformGet(key, value == ABSENT ? null : value);
+    }
+
+    /*
+     * The whole read-merge-write happens under the stripe's
+     * lock, so onPut always sees the latest value.
+     */
+    public Object put(final Object key, final Object value) {
+        final ProbeTable stripe = stripeFor(key);
+        final Object oldvalue;
+        synchronized (stripe) {
+            final int i = stripe.probe(key);
+            if (i >= 0) {
+                oldvalue = stripe.valueAt(i);
+                final Object newvalue = transformPut(oldvalue, value);
+                beforePut(key, value);
+                stripe.setValueAt(i, newvalue);
+            }
+            else {
+                oldvalue = null;
+                final Object newvalue = transformPut(null, value);
+                beforePut(key, value);
+                stripe.insertAt(-i - 1, key, newvalue);
+            }
+        }
+        return transformGet(key, oldvalue);
+    }
+
+    public Object remove(final Object key) {
+        final Object oldvalue = removeKey(key);
+        return transformGet(key, oldvalue == ABSENT ? null : oldvalue);
+    }
+
+    /*
+     * Removes the key, and returns the value it had (before
+     * onGet), or ABSENT if the key wasn't in the map at all.
+     */
+    Object removeKey(final Object key) {
+        final ProbeTable stripe = stripeFor(key);
+        synchronized (stripe) {
+            final int i = stripe.indexOf(key);
+            if (i < 0)
+                return ABSENT;
+            final Object oldvalue = stripe.valueAt(i);
+            beforeRemove(key);
+            stripe.removeAt(i);
+            return oldvalue;
+        }
+    }
+
+    public boolean containsKey(final Object key) {
+        final ProbeTable stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.indexOf(key) >= 0;
+        }
+    }
+
+    public void clear() {
+        for (final ProbeTable stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        long total = 0;
+        for (final ProbeTable stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size();
+            }
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        for (final ProbeTable stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.size() != 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The entries are copied out a stripe at a time, so the
+     * iterator never holds a lock while the caller is working.
+     * Changes made through the entries go back through the map.
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator();
+                }
+                public int size() {
+                    return ConcurrentFlexiMap.this.size();
+                }
+                public void clear() {
+                    ConcurrentFlexiMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /*
+     * Returns the value stored for a key (before onGet), or
+     * ABSENT if the key isn't in the map at all.
+     */
+    Object lookup(final Object key) {
+        final ProbeTable stripe = stripeFor(key);
+        synchronized (stripe) {
+            final int i = stripe.indexOf(key);
+            return i >= 0 ? stripe.valueAt(i) : ABSENT;
+        }
+    }
+
+    /*
+     * Stores a value for a key as is, without going through
+     * onPut (for values that were already stored once, like
+     * those coming back from a loader).
+     */
+    void store(final Object key, final Object value) {
+        final ProbeTable stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+
+    /*
+     * Like store, but only if mayStore() agrees, which is asked
+     * while holding the key's stripe lock, so no put or remove
+     * can slip in between. It's given the value stored for the
+     * key now (or ABSENT). Returns whether the value was stored.
+     */
+    boolean storeIf(final Object key, final Object value, final Object token) {
+        final ProbeTable stripe = stripeFor(key);
+        synchronized (stripe) {
+            final int i = stripe.indexOf(key);
+            if (!mayStore(key, i >= 0 ? stripe.valueAt(i) : ABSENT, token))
+                return false;
+            stripe.put(key, value);
+            return true;
+        }
+    }
+
+    boolean mayStore(final Object key, final Object current, final Object token) {
+        return true;
+    }
+
+    /*
+     * Calls the closure with every key and the value stored for
+     * it (before onGet), holding each stripe's lock in turn.
+     */
+    void forEachStored(final Closure2 fn) {
+        for (final ProbeTable stripe : stripes) {
+            synchronized (stripe) {
+                final Object[] slots = stripe.slots();
+                for (int i = 0; i < slots.length; i += 2)
+                    if (ProbeTable.isLive(slots[i]))
+                        fn.apply(ProbeTable.unmaskNull(slots[i]), slots[i + 1]);
+            }
+        }
+    }
+
+    /*
+     * Hooks for maps that need to see every change in the same
+     * order as it's made: these run while holding the key's
+     * stripe lock, just before the change is made, and throwing
+     * from them leaves the map untouched. The put hook is given
+     * the value that was put, not the one onPut made of it.
+     */
+    void beforePut(final Object key, final Object value) {
+    }
+
+    void beforeRemove(final Object key) {
+    }
+
+    Object transformPut(final Object oldvalue, final Object value) {
+        if (onPut != null)
+            return onPut.apply(oldvalue, value);
+        else
+            return value;
+    }
+
+    Object transformGet(final Object key, final Object value) {
+        if (onGet != null)
+            return onGet.apply(key, value);
+        else
+            return value;
+    }
+
+    /*
+     * The stripe comes from the top bits of a hash that is
+     * mixed differently from the one ProbeTable uses for its
+     * slots, so the keys in a stripe still spread out well.
+     */
+    private ProbeTable stripeFor(final Object key) {
+        if (shift == 32)
+            return stripes[0];
+        final int h = (key == null ? 0 : key.hashCode()) * 0x85EBCA6B;
+        return stripes[(h ^ (h >>> 15)) * 0xC2B2AE35 >>> shift];
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        private int nextStripe = 0;
+        private List<Object> batch = new ArrayList<Object>();
+        private int position = 0;
+        private Object lastKey = null;
+        private boolean canRemove = false;
+
+        public boolean hasNext() {
+            while (position >= batch.size() && nextStripe < stripes.length)
+                load(stripes[nextStripe++]);
+            return position < batch.size();
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Object key = batch.get(position);
+            final Object value = transformGet(key, batch.get(position + 1));
+            position += 2;
+            lastKey = key;
+            canRemove = true;
+            return new AbstractMap.SimpleEntry<Object, Object>(key, value) {
+                private static final long serialVersionUID = 1L;
+
+                public Object setValue(final Object v) {
+                    final Object old = put(getKey(), v);
+                    super.setValue(get(getKey()));
+                    return old;
+                }
+            };
+        }
+
+        public void remove() {
+            if (!canRemove)
+                throw new IllegalStateException();
+            ConcurrentFlexiMap.this.remove(lastKey);
+            canRemove = false;
+        }
+
+        private void load(final ProbeTable stripe) {
+            batch.clear();
+            position = 0;
+            synchronized (stripe) {
+                final Object[] slots = stripe.slots();
+                for (int i = 0; i < slots.length; i += 2) {
+                    if (ProbeTable.isLive(slots[i])) {
+                        batch.add(ProbeTable.unmaskNull(slots[i]));
+                        batch.add(slots[i + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    static final Object ABSENT = new Object();
+
+    final private Closure2 onPut;
+    final private Closure2 onGet;
+    final private ProbeTable[] stripes;
+    final private int shift;
+
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+}
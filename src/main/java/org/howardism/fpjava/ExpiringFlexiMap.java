@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} whose entries go away on their own after a while,
+ * for sessions, rate limits and anything else that goes stale.
+ * <p>
+ * Each put gives its entry a time to live, in milliseconds: either the
+ * one passed to {@link #put(Object, Object, long)}, or the one the "ttl"
+ * closure works out from the key and the stored value, or failing those
+ * the map's default. Putting a key again starts its time over.
+ * </p><p>
+ * The deadlines are kept on a {@link TimerWheel}, so expiring an entry
+ * takes constant time and nothing is ever scanned. Entries are expired
+ * whenever the map is used, before it does anything else, so an entry is
+ * never seen after its time is up. The optional eviction listener is
+ * called with the key and (the "onGet" version of) the value of every
+ * entry that expires, but not of those that are removed.
+ * </p><p>
+ * Like any other {@link FlexiMap}, this map is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ExpiringFlexiMap extends FlexiMap {
+
+    public ExpiringFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                            final long defaultTtlMillis) {
+        this(putfn, getfn, defaultTtlMillis, None.<Closure>thing(), None.<Closure>thing(), Clock.systemUTC());
+    }
+
+    /*
+     * The ttl closure is called with a key and the value stored
+     * for it, and returns a Number of milliseconds (or null for
+     * the default). The eviction listener is called with a key
+     * and its value.
+     */
+    public ExpiringFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                            final long defaultTtlMillis, final Option<Closure> ttlfn,
+                            final Option<Closure> evictionListener, final Clock clock) {
+        super(putfn, getfn);
+        if (defaultTtlMillis <= 0)
+            throw new IllegalArgumentException("The time to live must be positive: " + defaultTtlMillis);
+        this.defaultTtl = defaultTtlMillis;
+        this.ttlfn = ttlfn.isPresent() ? Closures.arity2(ttlfn.get()) : null;
+        this.listener = evictionListener.isPresent() ? Closures.arity2(evictionListener.get()) : null;
+        this.clock = clock;
+        wheel = new TimerWheel(clock.millis());
+    }
+
+    public Object get(final Object key) {
+        expire();
+        return super.get(key);
+    }
+
+    public Object put(final Object key, final Object value) {
+        expire();
+        return super.put(key, value);
+    }
+
+    public void add(final Object key, final Object value) {
+        expire();
+        super.add(key, value);
+    }
+
+    public void putAll(final Map<?, ?> t) {
+        expire();
+        super.putAll(t);
+    }
+
+    /*
+     * Puts a value that lives for the given number of
+     * milliseconds, whatever the map would have given it.
+     */
+    public Object put(final Object key, final Object value, final long ttlMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("The time to live must be positive: " + ttlMillis);
+        expire();
+        ttlOfPut = ttlMillis;
+        try {
+            return super.put(key, value);
+        } finally {
+            ttlOfPut = 0;
+        }
+    }
+
+    public Object remove(final Object key) {
+        expire();
+        return super.remove(key);
+    }
+
+    public boolean containsKey(final Object key) {
+        expire();
+        return super.containsKey(key);
+    }
+
+    public boolean containsValue(final Object value) {
+        expire();
+        return super.containsValue(value);
+    }
+
+    public int size() {
+        expire();
+        return super.size();
+    }
+
+    public boolean isEmpty() {
+        expire();
+        return super.isEmpty();
+    }
+
+    /*
+     * The views show the entries that were live when they were
+     * asked for; an iteration doesn't expire anything part way.
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        expire();
+        return super.entrySet();
+    }
+
+    public Set<Object> keySet() {
+        expire();
+        return super.keySet();
+    }
+
+    public Collection<Object> values() {
+        expire();
+        return super.values();
+    }
+
+    public void forEachParallel(final long parallelismThreshold, final Closure action) {
+        expire();
+        super.forEachParallel(parallelismThreshold, action);
+    }
+
+    public Object reduceParallel(final long parallelismThreshold, final Closure transformer,
+                                 final Closure reducer) {
+        expire();
+        return super.reduceParallel(parallelismThreshold, transformer, reducer);
+    }
+
+    public void replaceAllParallel(final long parallelismThreshold, final Closure function) {
+        expire();
+        super.replaceAllParallel(parallelismThreshold, function);
+    }
+
+    /*
+     * Returns the milliseconds an entry has left to live, or -1
+     * if there's no such entry.
+     */
+    public long timeToLive(final Object key) {
+        expire();
+        final TimerWheel.Timer timer = timers.get(key);
+        return timer == null ? -1 : timer.deadline - wheel.time();
+    }
+
+    /*
+     * Removes every entry whose time is up. This happens anyway
+     * whenever the map is used; calling it lets an idle map
+     * hand its expired entries to the listener.
+     */
+    public void expire() {
+        if (!expiring) {
+            expiring = true;
+            try {
+                wheel.advance(clock.millis(), evict);
+            } finally {
+                expiring = false;
+            }
+        }
+    }
+
+    /*
+     * The deadline comes from the clock rather than the wheel,
+     * which only moves on when the map expires its entries and
+     * may be behind (say, when setting a value part way through
+     * an iteration).
+     */
+    void stored(final Object key, final Object oldvalue, final Object newvalue) {
+        final long deadline = clock.millis() + ttlFor(key, newvalue);
+        final TimerWheel.Timer timer = timers.get(key);
+        if (timer == null)
+            timers.put(key, wheel.schedule(key, deadline));
+        else
+            wheel.reschedule(timer, deadline);
+    }
+
+    void removed(final Object key, final Object oldvalue) {
+        final TimerWheel.Timer timer = timers.remove(key);
+        if (timer != null)
+            wheel.cancel(timer);
+    }
+
+    void cleared() {
+        timers.clear();
+        wheel.clear();
+    }
+
+    boolean hasChangeHooks() {
+        return true;
+    }
+
+    private long ttlFor(final Object key, final Object value) {
+        if (ttlOfPut > 0)
+            return ttlOfPut;
+        if (ttlfn != null) {
+            final Object ttl = ttlfn.apply(key, value);
+            if (ttl != null)
+                return Math.max(((Number) ttl).longValue(), 1);
+        }
+        return defaultTtl;
+    }
+
+    /*
+     * Called by the wheel for each key that is due. The timer
+     * is already off the wheel, so it only needs forgetting.
+     */
+    final private Closure1 evict = new Closure1() {
+        public Object apply(final Object key) {
+            timers.remove(key);
+            final Object value = ExpiringFlexiMap.super.remove(key);
+            if (listener != null)
+                listener.apply(key, value);
+            return null;
+        }
+    };
+
+    final private long defaultTtl;
+    final private Closure2 ttlfn;
+    final private Closure2 listener;
+    final private Clock clock;
+    final private TimerWheel wheel;
+    final private Map<Object, TimerWheel.Timer> timers = new HashMap<Object, TimerWheel.Timer>();
+    private long ttlOfPut;
+    private boolean expiring;
+}
@@ -22,10 +22,21 @@
 
 package org.howardism.fpjava;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 import org.howardism.options.Option;
 
@@ -33,24 +44,59 @@ import org.howardism.options.Option;
  * How can one Map implementation support all these behaviors?
  * Using functors and composition, of course.
  *
- * In order to keep our example small, we'll just consider the
- * primary Map.put and Map.get methods here, although the remaining
- * Map methods could be handled similiarly.
+ * Every value going into the map passes through the "onPut" closure,
+ * and every value coming out (whether from get, put, remove or one of
+ * the views) passes through the "onGet" closure.
+ *
+ * Rather than proxying to a HashMap, the entries live in a
+ * {@link ProbeTable}, so that put can find the old value and store
+ * the new one with a single probe.
  *
  * @author Howard Abrams (www.howardabrams.com)
  */
-public class FlexiMap implements Map<Object, Object> {
+public class FlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object> {
 
     /*
      * Our FlexiMap will accept two BinaryFunctions, one
      * that's used to transform objects being put into the Map,
      * and one that's used to transforms objects being retrieved
      * from the map.
+     *
+     * Both are called with two arguments, so a closure that also
+     * implements Closure2 (see Closures.asClosure) gets called
+     * without allocating an argument array.
      */
     public FlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        this(putfn.isPresent() ? Closures.arity2(putfn.get()) : null,
+             getfn.isPresent() ? Closures.arity2(getfn.get()) : null);
+    }
+
+    FlexiMap(final Closure2 putfn, final Closure2 getfn) {
         onPut = putfn;
         onGet = getfn;
-        proxiedMap = new HashMap<Object, Object>();
+        batchPut = putfn instanceof BatchClosure ? (BatchClosure) putfn : null;
+        table = new ProbeTable();
+    }
+
+    /*
+     * The constructor has to check for each closure on every
+     * get and put. This looks at the options once, and returns
+     * a FlexiMap specialized for the closures that are there:
+     * one with neither, one for each of them alone, and one
+     * with both. Each has its own get and put holding nothing
+     * but a final closure, which the JIT can inline through.
+     */
+    public static FlexiMap create(final Option<Closure> putfn, final Option<Closure> getfn) {
+        if (putfn.isPresent()) {
+            if (getfn.isPresent())
+                return new PutAndGet(Closures.arity2(putfn.get()), Closures.arity2(getfn.get()));
+            else
+                return new PutOnly(Closures.arity2(putfn.get()));
+        }
+        if (getfn.isPresent())
+            return new GetOnly(Closures.arity2(getfn.get()));
+        else
+            return new Plain();
     }
 
     /*
@@ -60,10 +106,8 @@ public class FlexiMap implements Map<Object, Object> {
      * returns.
      */
     public Object get(final Object key) {
-        if (onGet.isPresent())
-            return onGet.get().apply(key, proxiedMap.get(key));
-        else
-            return proxiedMap.get(key);
+        final int i = table.indexOf(key);
+        return transformGet(key, i >= 0 ? table.valueAt(i) : null);
     }
 
     /*
@@ -75,63 +119,900 @@ public class FlexiMap implements Map<Object, Object> {
      * we'll invoke onGet here as well.
      */
     public Object put(final Object key, final Object value) {
-        final Object oldvalue = proxiedMap.get(key);
-        if (onPut.isPresent())
-            proxiedMap.put(key, onPut.get().apply(oldvalue, value));
-        else
-            proxiedMap.put(key, value);
+        return transformGet(key, putValue(key, value));
+    }
 
-        if (onGet.isPresent())
-            return onGet.get().apply(key, oldvalue);
-        else
-            return oldvalue;
+    /*
+     * Puts the value just like put, but returns nothing, so
+     * the value it replaced is never passed to onGet. This is
+     * for an onGet that costs as much as the value is big (say,
+     * Rope.rendering()) when the old value isn't wanted anyway.
+     */
+    public void add(final Object key, final Object value) {
+        putValue(key, value);
+    }
+
+    /*
+     * The work of put, returning the value it replaced as it
+     * was stored (before onGet).
+     */
+    Object putValue(final Object key, final Object value) {
+        final int i = table.probe(key);
+        final Object oldvalue;
+        final Object newvalue;
+        if (i >= 0) {
+            oldvalue = table.valueAt(i);
+            newvalue = transformPut(oldvalue, value);
+            storing(key, oldvalue, newvalue);
+            table.setValueAt(i, newvalue);
+        }
+        else {
+            oldvalue = null;
+            newvalue = transformPut(null, value);
+            storing(key, null, newvalue);
+            table.insertAt(-i - 1, key, newvalue);
+        }
+        modCount++;
+        stored(key, oldvalue, newvalue);
+        return oldvalue;
     }
 
-   /*
-    * We'll skip the remaining Map methods for now.
-    */
+    /*
+     * Like put, remove returns the previously associated
+     * value after passing it through onGet.
+     */
+    public Object remove(final Object key) {
+        return transformGet(key, removeValue(key));
+    }
+
+    /*
+     * The work of remove, returning the value as it was stored
+     * (or null if there wasn't one).
+     */
+    Object removeValue(final Object key) {
+        final int i = table.indexOf(key);
+        if (i < 0)
+            return null;
+
+        final Object oldvalue = table.valueAt(i);
+        removeSlot(i);
+        return oldvalue;
+    }
+
+    /*
+     * Each entry goes through put, and therefore through
+     * onPut, one at a time; unless onPut is a BatchClosure,
+     * which gets all of the entries at once.
+     */
+    public void putAll(final Map<?, ?> t) {
+        table.ensureCapacity(table.size() + t.size());
+        if (batchPut != null && t.size() > 1) {
+            putBatch(t);
+            return;
+        }
+        for (final Map.Entry<?, ?> e : t.entrySet())
+            put(e.getKey(), e.getValue());
+    }
 
     public void clear() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+        table.clear();
+        modCount++;
+        cleared();
     }
 
     public boolean containsKey(final Object key) {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+        return table.indexOf(key) >= 0;
     }
 
+    /*
+     * Values are compared as they would be returned
+     * from get, that is, after onGet.
+     */
     public boolean containsValue(final Object value) {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+        final Object[] slots = table.slots();
+        for (int i = 0; i < slots.length; i += 2) {
+            if (ProbeTable.isLive(slots[i])) {
+                final Object v = transformGet(ProbeTable.unmaskNull(slots[i]), slots[i + 1]);
+                if (value == null ? v == null : value.equals(v))
+                    return true;
+            }
+        }
+        return false;
     }
 
-    public Set<Map.Entry<Object, Object>> entrySet() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    public boolean isEmpty() {
+        return table.size() == 0;
     }
 
-    public boolean isEmpty() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    public int size() {
+        return table.size();
+    }
+
+    /*
+     * The views are backed by the map, and their iterators
+     * walk the table directly. The entry iterator doesn't
+     * create an entry per element: it hands back itself,
+     * so each entry is only good until the next call to next().
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null)
+            entrySet = new EntrySet();
+        return entrySet;
     }
 
     public Set<Object> keySet() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+        if (keySet == null)
+            keySet = new KeySet();
+        return keySet;
     }
 
-    public void putAll(final Map<?, ?> t) {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    public Collection<Object> values() {
+        if (values == null)
+            values = new Values();
+        return values;
     }
 
-    public Object remove(final Object key) {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    /*
+     * The bulk operations below work like those of a
+     * ConcurrentHashMap: the table is split into pieces with
+     * roughly parallelismThreshold entries each, and the pieces
+     * are worked on by the common fork-join pool. A map with
+     * fewer entries than the threshold (and Long.MAX_VALUE
+     * always) is done on the calling thread. The closures get
+     * the key and the value as get() would return it, and may
+     * run on any number of threads at once. The map mustn't be
+     * changed while one of these is running.
+     */
+    public void forEachParallel(final long parallelismThreshold, final Closure action) {
+        final Closure2 fn = Closures.arity2(action);
+        run(parallelismThreshold, new BulkOp() {
+            Object leaf(final Object[] slots, final int lo, final int hi) {
+                for (int i = lo; i < hi; i += 2)
+                    if (ProbeTable.isLive(slots[i])) {
+                        final Object key = ProbeTable.unmaskNull(slots[i]);
+                        fn.apply(key, transformGet(key, slots[i + 1]));
+                    }
+                return null;
+            }
+        });
     }
 
-    public int size() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    /*
+     * Turns each entry into a result with the transformer (a
+     * null result is skipped), and combines the results with
+     * the reducer. Returns null for an empty map.
+     */
+    public Object reduceParallel(final long parallelismThreshold, final Closure transformer,
+                                 final Closure reducer) {
+        final Closure2 transform = Closures.arity2(transformer);
+        final Closure2 reduce = Closures.arity2(reducer);
+        return run(parallelismThreshold, new BulkOp() {
+            Object leaf(final Object[] slots, final int lo, final int hi) {
+                Object result = null;
+                for (int i = lo; i < hi; i += 2)
+                    if (ProbeTable.isLive(slots[i])) {
+                        final Object key = ProbeTable.unmaskNull(slots[i]);
+                        final Object r = transform.apply(key, transformGet(key, slots[i + 1]));
+                        if (r != null)
+                            result = result == null ? r : reduce.apply(result, r);
+                    }
+                return result;
+            }
+            Object combine(final Object a, final Object b) {
+                return a == null ? b : b == null ? a : reduce.apply(a, b);
+            }
+        });
     }
 
-    public Collection<Object> values() {
-        throw new UnsupportedOperationException("Left as an exercise for the reader.");
+    /*
+     * Replaces every value with what the closure returns for
+     * it. The result is stored as is, not run through onPut,
+     * since onPut would merge it with the value it replaces.
+     */
+    public void replaceAllParallel(final long parallelismThreshold, final Closure function) {
+        final Closure2 fn = Closures.arity2(function);
+        final boolean hooked = hasChangeHooks();
+        final Object changes = run(parallelismThreshold, new BulkOp() {
+            Object leaf(final Object[] slots, final int lo, final int hi) {
+                final List<Object> changed = hooked ? new ArrayList<Object>() : null;
+                for (int i = lo; i < hi; i += 2)
+                    if (ProbeTable.isLive(slots[i])) {
+                        final Object key = ProbeTable.unmaskNull(slots[i]);
+                        final Object oldvalue = slots[i + 1];
+                        slots[i + 1] = fn.apply(key, transformGet(key, oldvalue));
+                        if (hooked) {
+                            changed.add(key);
+                            changed.add(oldvalue);
+                            changed.add(slots[i + 1]);
+                        }
+                    }
+                return changed;
+            }
+            @SuppressWarnings("unchecked")
+            Object combine(final Object a, final Object b) {
+                if (a == null || b == null)
+                    return a == null ? b : a;
+                ((List<Object>) a).addAll((List<Object>) b);
+                return a;
+            }
+        });
+
+        if (changes != null) {
+            final List<?> changed = (List<?>) changes;
+            boolean done = false;
+            try {
+                for (int i = 0; i < changed.size(); i += 3)
+                    storing(changed.get(i), changed.get(i + 1), changed.get(i + 2));
+                done = true;
+            }
+            finally {
+                if (!done)
+                    for (int i = 0; i < changed.size(); i += 3)
+                        table.setValueAt(table.indexOf(changed.get(i)), changed.get(i + 1));
+            }
+            for (int i = 0; i < changed.size(); i += 3)
+                stored(changed.get(i), changed.get(i + 1), changed.get(i + 2));
+        }
+    }
+
+    /*
+     * Runs a value on its way into the map through onPut.
+     * The specialized maps override this along with get and put.
+     */
+    Object transformPut(final Object oldvalue, final Object value) {
+        if (onPut != null)
+            return onPut.apply(oldvalue, value);
+        else
+            return value;
+    }
+
+    /*
+     * Runs a value on its way out of the map through onGet.
+     */
+    Object transformGet(final Object key, final Object value) {
+        if (onGet != null)
+            return onGet.apply(key, value);
+        else
+            return value;
+    }
+
+    /*
+     * Reserves a slot for each new key first, which also spots
+     * a key that turns up twice (the input might compare keys
+     * its own way). The batch closure is then called once, and
+     * its results go straight into the slots found. Should the
+     * closure throw, the reserved slots are let go again.
+     */
+    private void putBatch(final Map<?, ?> t) {
+        final int n = t.size();
+        final Object[] keys = new Object[n];
+        final Object[] oldvalues = new Object[n];
+        final Object[] values = new Object[n];
+        final int[] slots = new int[n];
+        final boolean[] added = new boolean[n];
+        List<Map.Entry<?, ?>> repeats = null;
+
+        int count = 0;
+        boolean done = false;
+        try {
+            for (final Map.Entry<?, ?> e : t.entrySet()) {
+                final Object key = e.getKey();
+                final int i = table.probe(key);
+                if (i >= 0 && table.valueAt(i) == RESERVED) {
+                    if (repeats == null)
+                        repeats = new ArrayList<Map.Entry<?, ?>>();
+                    repeats.add(e);
+                    continue;
+                }
+                keys[count] = key;
+                values[count] = e.getValue();
+                if (i >= 0) {
+                    oldvalues[count] = table.valueAt(i);
+                    slots[count++] = i;
+                }
+                else {
+                    final Object[] before = table.slots();
+                    table.insertAt(-i - 1, key, RESERVED);
+                    added[count++] = true;
+                    if (table.slots() != before)
+                        for (int j = 0; j < count; j++)
+                            slots[j] = table.indexOf(keys[j]);
+                    else
+                        slots[count - 1] = -i - 1;
+                }
+            }
+            batchPut.applyAll(oldvalues, values, count);
+            for (int j = 0; j < count; j++)
+                storing(keys[j], oldvalues[j], values[j]);
+            done = true;
+        }
+        finally {
+            if (!done) {
+                for (int j = 0; j < count; j++)
+                    if (added[j])
+                        table.removeAt(table.indexOf(keys[j]));
+                modCount++;
+            }
+        }
+
+        for (int j = 0; j < count; j++)
+            table.setValueAt(slots[j], values[j]);
+        modCount++;
+        for (int j = 0; j < count; j++)
+            stored(keys[j], oldvalues[j], values[j]);
+
+        if (repeats != null)
+            for (final Map.Entry<?, ?> e : repeats)
+                put(e.getKey(), e.getValue());
     }
 
-    final private Option<Closure> onPut;
-    final private Option<Closure> onGet;
-    final private Map<Object, Object> proxiedMap;
-}
\ No newline at end of file
+    /*
+     * Every removal, whether from remove or one of the views,
+     * ends up here.
+     */
+    private void removeSlot(final int i) {
+        final Object key = table.keyAt(i);
+        final Object oldvalue = table.valueAt(i);
+        table.removeAt(i);
+        modCount++;
+        removed(key, oldvalue);
+    }
+
+    /*
+     * Hooks for the maps built on this one that need to follow
+     * along with every change, no matter which method made it.
+     * The values are the ones stored in the table, before any
+     * onGet. (The specialized maps from create() skip these.)
+     *
+     * Before a value goes in, storing() is called with the same
+     * arguments. Throwing from it leaves the table as it was,
+     * and stored() isn't called. A batch calls storing() for
+     * each of its entries before any of them goes in.
+     */
+    void storing(final Object key, final Object oldvalue, final Object newvalue) {
+    }
+
+    void stored(final Object key, final Object oldvalue, final Object newvalue) {
+    }
+
+    void removed(final Object key, final Object oldvalue) {
+    }
+
+    void cleared() {
+    }
+
+    /*
+     * The hooks are called from one thread at a time, even by
+     * the parallel bulk operations, which hold on to their
+     * changes and call stored() once they're done. That costs
+     * something, so a map that overrides the hooks says so
+     * here.
+     */
+    boolean hasChangeHooks() {
+        return false;
+    }
+
+    /*
+     * Runs a bulk operation over the whole table, on the
+     * calling thread if it's too small to be worth splitting.
+     */
+    private Object run(final long parallelismThreshold, final BulkOp op) {
+        final int expectedModCount = modCount;
+        final long threshold = Math.max(parallelismThreshold, 1);
+        final BulkTask task = new BulkTask(op, threshold, 0, table.slots().length);
+        final Object result = table.size() < threshold ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+        if (modCount != expectedModCount)
+            throw new ConcurrentModificationException();
+        return result;
+    }
+
+    /*
+     * What a bulk operation does with a range of slots, and
+     * how it puts the results of two ranges together.
+     */
+    private abstract static class BulkOp {
+        abstract Object leaf(Object[] slots, int lo, int hi);
+
+        Object combine(final Object a, final Object b) {
+            return null;
+        }
+    }
+
+    /*
+     * Splits a range of slots in half until each half should
+     * hold no more than the threshold's worth of entries.
+     */
+    private final class BulkTask extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        BulkTask(final BulkOp op, final long threshold, final int lo, final int hi) {
+            this.op = op;
+            this.threshold = threshold;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected Object compute() {
+            final Object[] slots = table.slots();
+            final long entries = (long) table.size() * (hi - lo) / slots.length;
+            if (entries <= threshold || hi - lo <= 2)
+                return op.leaf(slots, lo, hi);
+
+            final int mid = lo + (hi - lo) / 4 * 2;
+            final BulkTask right = new BulkTask(op, threshold, mid, hi);
+            right.fork();
+            final Object left = new BulkTask(op, threshold, lo, mid).compute();
+            return op.combine(left, right.join());
+        }
+
+        final private BulkOp op;
+        final private long threshold;
+        final private int lo;
+        final private int hi;
+    }
+
+    /*
+     * Splits the table's slots for the streams of the views.
+     * Like a ConcurrentHashMap's, the entries it hands out are
+     * copies that can't be changed, since a stream may have
+     * several of them on the go at once.
+     */
+    private abstract class TableSpliterator<E> implements Spliterator<E> {
+        TableSpliterator(final int lo, final int hi, final long estimate) {
+            this.lo = lo;
+            this.hi = hi;
+            this.estimate = estimate;
+        }
+
+        abstract E make(Object key, Object value);
+
+        abstract TableSpliterator<E> split(int lo, int hi, long estimate);
+
+        public boolean tryAdvance(final Consumer<? super E> action) {
+            final Object[] slots = table.slots();
+            while (lo < hi) {
+                final int i = lo;
+                lo += 2;
+                if (ProbeTable.isLive(slots[i])) {
+                    action.accept(make(ProbeTable.unmaskNull(slots[i]), slots[i + 1]));
+                    if (modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void forEachRemaining(final Consumer<? super E> action) {
+            final Object[] slots = table.slots();
+            for (int i = lo; i < hi; i += 2)
+                if (ProbeTable.isLive(slots[i]))
+                    action.accept(make(ProbeTable.unmaskNull(slots[i]), slots[i + 1]));
+            lo = hi;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+
+        public Spliterator<E> trySplit() {
+            if (hi - lo <= 2)
+                return null;
+            final int mid = lo + (hi - lo) / 4 * 2;
+            final TableSpliterator<E> prefix = split(lo, mid, estimate >>> 1);
+            lo = mid;
+            estimate -= estimate >>> 1;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return estimate;
+        }
+
+        public int characteristics() {
+            return Spliterator.DISTINCT;
+        }
+
+        int lo;
+        final int hi;
+        long estimate;
+        final int expectedModCount = modCount;
+    }
+
+    private final class KeySpliterator extends TableSpliterator<Object> {
+        KeySpliterator(final int lo, final int hi, final long estimate) {
+            super(lo, hi, estimate);
+        }
+        Object make(final Object key, final Object value) {
+            return key;
+        }
+        TableSpliterator<Object> split(final int lo, final int hi, final long estimate) {
+            return new KeySpliterator(lo, hi, estimate);
+        }
+    }
+
+    private final class ValueSpliterator extends TableSpliterator<Object> {
+        ValueSpliterator(final int lo, final int hi, final long estimate) {
+            super(lo, hi, estimate);
+        }
+        Object make(final Object key, final Object value) {
+            return transformGet(key, value);
+        }
+        TableSpliterator<Object> split(final int lo, final int hi, final long estimate) {
+            return new ValueSpliterator(lo, hi, estimate);
+        }
+        public int characteristics() {
+            return 0;
+        }
+    }
+
+    private final class EntrySpliterator extends TableSpliterator<Map.Entry<Object, Object>> {
+        EntrySpliterator(final int lo, final int hi, final long estimate) {
+            super(lo, hi, estimate);
+        }
+        Map.Entry<Object, Object> make(final Object key, final Object value) {
+            return new AbstractMap.SimpleImmutableEntry<Object, Object>(key, transformGet(key, value));
+        }
+        TableSpliterator<Map.Entry<Object, Object>> split(final int lo, final int hi, final long estimate) {
+            return new EntrySpliterator(lo, hi, estimate);
+        }
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
+    /*
+     * Walks the live slots of the table. Subclasses decide
+     * what next() returns.
+     */
+    private abstract class TableIterator<E> implements Iterator<E> {
+        int next = advance(0);
+        int current = -1;
+        int expectedModCount = modCount;
+
+        private int advance(int i) {
+            final Object[] slots = table.slots();
+            while (i < slots.length && !ProbeTable.isLive(slots[i]))
+                i += 2;
+            return i;
+        }
+
+        public boolean hasNext() {
+            return next < table.slots().length;
+        }
+
+        int nextSlot() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            current = next;
+            next = advance(next + 2);
+            return current;
+        }
+
+        /*
+         * Removing only leaves a tombstone, so the
+         * remaining entries stay where they are.
+         */
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeSlot(current);
+            current = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class KeyIterator extends TableIterator<Object> {
+        public Object next() {
+            return table.keyAt(nextSlot());
+        }
+    }
+
+    private final class ValueIterator extends TableIterator<Object> {
+        public Object next() {
+            final int i = nextSlot();
+            return transformGet(table.keyAt(i), table.valueAt(i));
+        }
+    }
+
+    /*
+     * The iterator is its own entry. Setting a value goes
+     * through onPut, just as if put had been called.
+     */
+    private final class EntryIterator extends TableIterator<Map.Entry<Object, Object>>
+            implements Map.Entry<Object, Object> {
+
+        public Map.Entry<Object, Object> next() {
+            nextSlot();
+            return this;
+        }
+
+        public Object getKey() {
+            checkCurrent();
+            return table.keyAt(current);
+        }
+
+        public Object getValue() {
+            checkCurrent();
+            return transformGet(table.keyAt(current), table.valueAt(current));
+        }
+
+        public Object setValue(final Object value) {
+            checkCurrent();
+            final Object key = table.keyAt(current);
+            final Object oldvalue = table.valueAt(current);
+            final Object newvalue = transformPut(oldvalue, value);
+            storing(key, oldvalue, newvalue);
+            table.setValueAt(current, newvalue);
+            stored(key, oldvalue, newvalue);
+            return transformGet(key, oldvalue);
+        }
+
+        public boolean equals(final Object o) {
+            if (current < 0)
+                return o == this;
+            if (!(o instanceof Map.Entry))
+                return false;
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+        }
+
+        public int hashCode() {
+            if (current < 0)
+                return System.identityHashCode(this);
+            final Object k = getKey();
+            final Object v = getValue();
+            return (k == null ? 0 : k.hashCode()) ^ (v == null ? 0 : v.hashCode());
+        }
+
+        public String toString() {
+            if (current < 0)
+                return super.toString();
+            return getKey() + "=" + getValue();
+        }
+
+        private void checkCurrent() {
+            if (current < 0)
+                throw new IllegalStateException("Entry is not valid");
+        }
+    }
+
+    private final class KeySet extends AbstractSet<Object> {
+        public Iterator<Object> iterator() {
+            return new KeyIterator();
+        }
+        public int size() {
+            return FlexiMap.this.size();
+        }
+        public boolean contains(final Object o) {
+            return containsKey(o);
+        }
+        public boolean remove(final Object o) {
+            final int i = table.indexOf(o);
+            if (i < 0)
+                return false;
+            removeSlot(i);
+            return true;
+        }
+        public void clear() {
+            FlexiMap.this.clear();
+        }
+        public Spliterator<Object> spliterator() {
+            return new KeySpliterator(0, table.slots().length, size());
+        }
+    }
+
+    private final class Values extends AbstractCollection<Object> {
+        public Iterator<Object> iterator() {
+            return new ValueIterator();
+        }
+        public int size() {
+            return FlexiMap.this.size();
+        }
+        public boolean contains(final Object o) {
+            return containsValue(o);
+        }
+        public void clear() {
+            FlexiMap.this.clear();
+        }
+        public Spliterator<Object> spliterator() {
+            return new ValueSpliterator(0, table.slots().length, size());
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<Object, Object>> {
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            return new EntryIterator();
+        }
+        public int size() {
+            return FlexiMap.this.size();
+        }
+        public boolean contains(final Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            final int i = table.indexOf(e.getKey());
+            return i >= 0 && eq(transformGet(e.getKey(), table.valueAt(i)), e.getValue());
+        }
+        public boolean remove(final Object o) {
+            if (!contains(o))
+                return false;
+            removeSlot(table.indexOf(((Map.Entry<?, ?>) o).getKey()));
+            return true;
+        }
+        public void clear() {
+            FlexiMap.this.clear();
+        }
+
+        /*
+         * Since the iterator reuses one entry, copying
+         * out an array needs entries of its own.
+         */
+        public Object[] toArray() {
+            return snapshot().toArray();
+        }
+        public <T> T[] toArray(final T[] a) {
+            return snapshot().toArray(a);
+        }
+        public Spliterator<Map.Entry<Object, Object>> spliterator() {
+            return new EntrySpliterator(0, table.slots().length, size());
+        }
+        private List<Map.Entry<Object, Object>> snapshot() {
+            final List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(size());
+            for (final Map.Entry<Object, Object> e : this)
+                entries.add(new AbstractMap.SimpleEntry<Object, Object>(e.getKey(), e.getValue()));
+            return entries;
+        }
+    }
+
+    /*
+     * The four specializations returned by create(). They
+     * repeat get and put on purpose: sharing them would mean
+     * sharing their call sites, and a call site that sees
+     * all four kinds of map can't be inlined.
+     */
+    private static final class Plain extends FlexiMap {
+        Plain() {
+            super((Closure2) null, null);
+        }
+
+        public Object get(final Object key) {
+            final int i = table.indexOf(key);
+            return i >= 0 ? table.valueAt(i) : null;
+        }
+
+        public Object put(final Object key, final Object value) {
+            modCount++;
+            return table.put(key, value);
+        }
+
+        Object transformPut(final Object oldvalue, final Object value) {
+            return value;
+        }
+
+        Object transformGet(final Object key, final Object value) {
+            return value;
+        }
+    }
+
+    private static final class PutOnly extends FlexiMap {
+        PutOnly(final Closure2 putfn) {
+            super(putfn, null);
+            this.putfn = putfn;
+        }
+
+        public Object get(final Object key) {
+            final int i = table.indexOf(key);
+            return i >= 0 ? table.valueAt(i) : null;
+        }
+
+        public Object put(final Object key, final Object value) {
+            final int i = table.probe(key);
+            if (i >= 0) {
+                final Object oldvalue = table.valueAt(i);
+                table.setValueAt(i, putfn.apply(oldvalue, value));
+                modCount++;
+                return oldvalue;
+            }
+            table.insertAt(-i - 1, key, putfn.apply(null, value));
+            modCount++;
+            return null;
+        }
+
+        Object transformPut(final Object oldvalue, final Object value) {
+            return putfn.apply(oldvalue, value);
+        }
+
+        Object transformGet(final Object key, final Object value) {
+            return value;
+        }
+
+        final private Closure2 putfn;
+    }
+
+    private static final class GetOnly extends FlexiMap {
+        GetOnly(final Closure2 getfn) {
+            super(null, getfn);
+            this.getfn = getfn;
+        }
+
+        public Object get(final Object key) {
+            final int i = table.indexOf(key);
+            return getfn.apply(key, i >= 0 ? table.valueAt(i) : null);
+        }
+
+        public Object put(final Object key, final Object value) {
+            modCount++;
+            final Object oldvalue = table.put(key, value);
+            return getfn.apply(key, oldvalue);
+        }
+
+        Object transformPut(final Object oldvalue, final Object value) {
+            return value;
+        }
+
+        Object transformGet(final Object key, final Object value) {
+            return getfn.apply(key, value);
+        }
+
+        final private Closure2 getfn;
+    }
+
+    private static final class PutAndGet extends FlexiMap {
+        PutAndGet(final Closure2 putfn, final Closure2 getfn) {
+            super(putfn, getfn);
+            this.putfn = putfn;
+            this.getfn = getfn;
+        }
+
+        public Object get(final Object key) {
+            final int i = table.indexOf(key);
+            return getfn.apply(key, i >= 0 ? table.valueAt(i) : null);
+        }
+
+        public Object put(final Object key, final Object value) {
+            final int i = table.probe(key);
+            if (i >= 0) {
+                final Object oldvalue = table.valueAt(i);
+                table.setValueAt(i, putfn.apply(oldvalue, value));
+                modCount++;
+                return getfn.apply(key, oldvalue);
+            }
+            table.insertAt(-i - 1, key, putfn.apply(null, value));
+            modCount++;
+            return getfn.apply(key, null);
+        }
+
+        Object transformPut(final Object oldvalue, final Object value) {
+            return putfn.apply(oldvalue, value);
+        }
+
+        Object transformGet(final Object key, final Object value) {
+            return getfn.apply(key, value);
+        }
+
+        final private Closure2 putfn;
+        final private Closure2 getfn;
+    }
+
+    /*
+     * Holds a new key's slot while its batch is worked out.
+     */
+    private static final Object RESERVED = new Object();
+
+    private static boolean eq(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    final private Closure2 onPut;
+    final private Closure2 onGet;
+    final private BatchClosure batchPut;
+    final ProbeTable table;
+
+    transient int modCount;
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+    private transient Set<Object> keySet;
+    private transient Collection<Object> values;
+}
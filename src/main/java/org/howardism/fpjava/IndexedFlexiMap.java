@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} that can answer "which keys have a value like this?"
+ * without looking at every entry.
+ * <p>
+ * An index is defined by a closure that is given a stored value (after
+ * "onPut", before "onGet") and returns what to index it by, or null to
+ * leave it out. Every put and remove brings the indexes up to date, so
+ * {@link #lookup} is a single hash lookup. An index added with
+ * {@link #addSortedIndex} keeps its index keys in order, and can also find
+ * the keys whose index keys fall in a range.
+ * </p><p>
+ * Each index remembers what it last indexed every key under, so values
+ * that "onPut" changes in place (like the lists in a multi-map) are moved
+ * correctly. The index keys are worked out before a value is stored, so
+ * an index closure that throws leaves both the map and its indexes as
+ * they were. The sets handed back are read-only, and those from
+ * {@link #lookup} follow later changes to the map. Like any other
+ * {@link FlexiMap}, this map is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class IndexedFlexiMap extends FlexiMap {
+
+    public IndexedFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        super(putfn, getfn);
+    }
+
+    /*
+     * Adds a hashed index, and fills it from the entries that
+     * are already in the map.
+     */
+    public void addIndex(final String name, final Closure extractor) {
+        add(name, new Index(Closures.arity1(extractor), new HashMap<Object, Set<Object>>()));
+    }
+
+    /*
+     * Adds an index that keeps its index keys in their natural
+     * order (or the comparator's, if given), for range lookups.
+     */
+    public void addSortedIndex(final String name, final Closure extractor, final Comparator<Object> order) {
+        add(name, new Index(Closures.arity1(extractor), new TreeMap<Object, Set<Object>>(order)));
+    }
+
+    public void addSortedIndex(final String name, final Closure extractor) {
+        addSortedIndex(name, extractor, null);
+    }
+
+    public void removeIndex(final String name) {
+        indexes.remove(name);
+    }
+
+    /*
+     * Returns the keys whose values are indexed under the given
+     * index key. The set finds the keys again each time it's
+     * read, so it's empty while there are none, and fills up
+     * again when some come along.
+     */
+    public Set<Object> lookup(final String name, final Object indexKey) {
+        final Map<Object, Set<Object>> postings = index(name).postings;
+        return new AbstractSet<Object>() {
+            public Iterator<Object> iterator() {
+                final Set<Object> keys = postings.get(indexKey);
+                return keys == null ? Collections.emptyIterator()
+                                    : Collections.unmodifiableSet(keys).iterator();
+            }
+            public int size() {
+                final Set<Object> keys = postings.get(indexKey);
+                return keys == null ? 0 : keys.size();
+            }
+            public boolean contains(final Object key) {
+                final Set<Object> keys = postings.get(indexKey);
+                return keys != null && keys.contains(key);
+            }
+        };
+    }
+
+    /*
+     * Returns the keys of a sorted index whose index keys are
+     * at least from and less than to, in index key order. A
+     * null bound leaves that end of the range open.
+     */
+    public Set<Object> range(final String name, final Object from, final Object to) {
+        final Index index = index(name);
+        if (!(index.postings instanceof NavigableMap))
+            throw new IllegalArgumentException("Index " + name + " isn't sorted");
+
+        NavigableMap<Object, Set<Object>> span = (NavigableMap<Object, Set<Object>>) index.postings;
+        if (from != null)
+            span = span.tailMap(from, true);
+        if (to != null)
+            span = span.headMap(to, false);
+
+        final Set<Object> keys = new LinkedHashSet<Object>();
+        for (final Set<Object> posting : span.values())
+            keys.addAll(posting);
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /*
+     * Returns the index keys of an index, with the number of
+     * keys under each. Handy for seeing how an index is spread.
+     */
+    public Map<Object, Integer> indexKeyCounts(final String name) {
+        final Map<Object, Set<Object>> postings = index(name).postings;
+        final Map<Object, Integer> counts = postings instanceof NavigableMap
+            ? new TreeMap<Object, Integer>(((NavigableMap<Object, Set<Object>>) postings).comparator())
+            : new HashMap<Object, Integer>();
+        for (final Map.Entry<Object, Set<Object>> posting : postings.entrySet())
+            counts.put(posting.getKey(), posting.getValue().size());
+        return counts;
+    }
+
+    /*
+     * Every index closure runs here, before the value is
+     * stored, and so does the check that a sorted index can
+     * compare the index key. The index keys wait in line for
+     * stored(), which
+     * comes in the same order (a batch stores all its values
+     * after working out all of their index keys).
+     */
+    void storing(final Object key, final Object oldvalue, final Object newvalue) {
+        if (indexes.isEmpty())
+            return;
+        final Object[] indexKeys = new Object[indexes.size()];
+        int i = 0;
+        try {
+            for (final Index index : indexes.values()) {
+                indexKeys[i] = index.extractor.apply(newvalue);
+                index.check(indexKeys[i++]);
+            }
+        }
+        catch (final RuntimeException e) {
+            extracted.clear();
+            throw e;
+        }
+        extracted.add(indexKeys);
+    }
+
+    void stored(final Object key, final Object oldvalue, final Object newvalue) {
+        if (indexes.isEmpty())
+            return;
+        final Object[] indexKeys = extracted.remove();
+        int i = 0;
+        for (final Index index : indexes.values())
+            index.post(key, indexKeys[i++]);
+    }
+
+    void removed(final Object key, final Object oldvalue) {
+        for (final Index index : indexes.values())
+            index.remove(key);
+    }
+
+    void cleared() {
+        for (final Index index : indexes.values()) {
+            index.postings.clear();
+            index.indexedAs.clear();
+        }
+    }
+
+    boolean hasChangeHooks() {
+        return true;
+    }
+
+    private void add(final String name, final Index index) {
+        if (indexes.containsKey(name))
+            throw new IllegalArgumentException("There is already an index named " + name);
+        final Object[] slots = table.slots();
+        for (int i = 0; i < slots.length; i += 2)
+            if (ProbeTable.isLive(slots[i]))
+                index.post(ProbeTable.unmaskNull(slots[i]), index.extractor.apply(slots[i + 1]));
+        indexes.put(name, index);
+    }
+
+    private Index index(final String name) {
+        final Index index = indexes.get(name);
+        if (index == null)
+            throw new IllegalArgumentException("There is no index named " + name);
+        return index;
+    }
+
+    /*
+     * The keys under each index key, and the index key each
+     * key is under.
+     */
+    private static final class Index {
+        Index(final Closure1 extractor, final Map<Object, Set<Object>> postings) {
+            this.extractor = extractor;
+            this.postings = postings;
+        }
+
+        /*
+         * Files the key under its new index key (or none).
+         */
+        void post(final Object key, final Object indexKey) {
+            final Object was = indexedAs.get(key);
+            if (was != null && was.equals(indexKey))
+                return;
+            if (was != null)
+                unpost(key, was);
+            if (indexKey != null) {
+                Set<Object> keys = postings.get(indexKey);
+                if (keys == null) {
+                    keys = new LinkedHashSet<Object>(4);
+                    postings.put(indexKey, keys);
+                }
+                keys.add(key);
+                indexedAs.put(key, indexKey);
+            }
+            else if (was != null) {
+                indexedAs.remove(key);
+            }
+        }
+
+        /*
+         * A sorted index only compares an index key when posting
+         * it, after the table has changed. This makes the same
+         * comparison up front (against a key it already has, or
+         * else the key itself, as TreeMap does), so a key that
+         * can't be compared throws before anything is stored.
+         */
+        @SuppressWarnings("unchecked")
+        void check(final Object indexKey) {
+            if (indexKey == null || !(postings instanceof NavigableMap))
+                return;
+            final NavigableMap<Object, Set<Object>> sorted = (NavigableMap<Object, Set<Object>>) postings;
+            final Object other = sorted.isEmpty() ? indexKey : sorted.firstKey();
+            final Comparator<Object> order = (Comparator<Object>) sorted.comparator();
+            if (order != null)
+                order.compare(indexKey, other);
+            else
+                ((Comparable<Object>) indexKey).compareTo(other);
+        }
+
+        void remove(final Object key) {
+            final Object was = indexedAs.remove(key);
+            if (was != null)
+                unpost(key, was);
+        }
+
+        private void unpost(final Object key, final Object indexKey) {
+            final Set<Object> keys = postings.get(indexKey);
+            keys.remove(key);
+            if (keys.isEmpty())
+                postings.remove(indexKey);
+        }
+
+        final Closure1 extractor;
+        final Map<Object, Set<Object>> postings;
+        final Map<Object, Object> indexedAs = new HashMap<Object, Object>();
+    }
+
+    final private Map<String, Index> indexes = new HashMap<String, Index>();
+    final private ArrayDeque<Object[]> extracted = new ArrayDeque<Object[]>();
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link ConcurrentFlexiMap} that survives a restart. Every put and remove
+ * is appended to a write-ahead <i>journal</i> file, and has been forced to
+ * disk by the time the call returns. Opening the map again replays the
+ * journal, running each put through "onPut" once more, so counters,
+ * multi-maps and the like come back just as they were.
+ * <p>
+ * Rather than forcing the file once per change, writers share the work
+ * (a <i>group commit</i>): each change is added to an in-memory buffer, and
+ * whichever writer gets to the disk first writes and forces the buffer for
+ * everybody waiting behind it.
+ * </p><p>
+ * Once the journal grows past a given size, a background thread
+ * <i>compacts</i> it, replacing it with one record per key holding the value
+ * stored now. (Writers wait while that happens.) Keys and values must be
+ * {@link java.io.Serializable}. A record torn by a crash at the end of the
+ * journal is dropped when the map is opened.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class JournaledFlexiMap extends ConcurrentFlexiMap implements Closeable {
+
+    /*
+     * Opens (or creates) the journal, and replays it into
+     * the map before returning.
+     */
+    public JournaledFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                             final Path journal, final long compactAfterBytes) throws IOException {
+        super(putfn, getfn);
+        if (compactAfterBytes < 1)
+            throw new IllegalArgumentException("The compaction size must be positive: " + compactAfterBytes);
+
+        this.path = journal;
+        this.compactAfter = compactAfterBytes;
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+        nextCompaction = Math.max(compactAfter, 2 * channel.size());
+    }
+
+    public Object put(final Object key, final Object value) {
+        rotation.readLock().lock();
+        final Object oldvalue;
+        try {
+            checkOpen();
+            oldvalue = super.put(key, value);
+        } finally {
+            rotation.readLock().unlock();
+        }
+        sync(appended);
+        return oldvalue;
+    }
+
+    public Object remove(final Object key) {
+        rotation.readLock().lock();
+        final Object oldvalue;
+        try {
+            checkOpen();
+            oldvalue = super.remove(key);
+        } finally {
+            rotation.readLock().unlock();
+        }
+        sync(appended);
+        return oldvalue;
+    }
+
+    /*
+     * Nobody else writes while the clear is journaled and
+     * made, so the journal sees it happen all at once.
+     */
+    public void clear() {
+        rotation.writeLock().lock();
+        try {
+            checkOpen();
+            append(encode(CLEAR, null, null, false));
+            super.clear();
+        } finally {
+            rotation.writeLock().unlock();
+        }
+        sync(appended);
+    }
+
+    /**
+     * Rewrites the journal with a single record for each key, holding the
+     * value stored for it now. This normally happens in the background, but
+     * may be called directly.
+     */
+    public void compact() throws IOException {
+        rotation.writeLock().lock();
+        try {
+            checkOpen();
+            sync(appended);
+
+            final Path temp = path.resolveSibling(path.getFileName() + ".compacting");
+            final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE);
+            try {
+                final ByteArrayOutputStream records = new ByteArrayOutputStream();
+                forEachStored(new Closure2() {
+                    public Object apply(final Object key, final Object value) {
+                        final byte[] record = encode(STORE, key, value, true);
+                        records.write(record, 0, record.length);
+                        return null;
+                    }
+                });
+                writeFully(out, records.toByteArray());
+                out.force(true);
+            } finally {
+                out.close();
+            }
+
+            synchronized (syncLock) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                nextCompaction = Math.max(compactAfter, 2 * channel.size());
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the journal file, in bytes.
+     */
+    public long journalSize() {
+        synchronized (syncLock) {
+            try {
+                return channel.size();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        rotation.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            sync(appended);
+            closed = true;
+            channel.close();
+        } finally {
+            rotation.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Called under the key's stripe lock, so the journal sees
+     * the changes to a key in the order they're made.
+     */
+    void beforePut(final Object key, final Object value) {
+        if (!replaying)
+            append(encode(PUT, key, value, true));
+    }
+
+    void beforeRemove(final Object key) {
+        if (!replaying)
+            append(encode(REMOVE, key, null, false));
+    }
+
+    private void append(final byte[] record) {
+        synchronized (buffer) {
+            buffer.write(record, 0, record.length);
+            appended++;
+        }
+    }
+
+    /*
+     * The group commit: returns once everything up to the given
+     * record is on disk. Whoever gets the lock first writes out
+     * the whole buffer, so the ones queued up behind usually find
+     * their records already taken care of.
+     */
+    private void sync(final long record) {
+        if (synced >= record)
+            return;
+        synchronized (syncLock) {
+            if (synced >= record)
+                return;
+            final byte[] bytes;
+            final long upTo;
+            synchronized (buffer) {
+                bytes = buffer.toByteArray();
+                buffer.reset();
+                upTo = appended;
+            }
+            try {
+                writeFully(channel, bytes);
+                channel.force(false);
+            } catch (final IOException e) {
+                failure = e;
+                throw new UncheckedIOException("Couldn't write the journal " + path, e);
+            }
+            synced = upTo;
+
+            if (!compacting && journalSize() > nextCompaction) {
+                compacting = true;
+                startCompaction();
+            }
+        }
+    }
+
+    private void startCompaction() {
+        final Thread compactor = new Thread("FlexiMap journal compaction") {
+            public void run() {
+                try {
+                    compact();
+                } catch (final IOException e) {
+                    failure = e;
+                } catch (final IllegalStateException e) {
+                    // closed in the meantime
+                } finally {
+                    compacting = false;
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /*
+     * Replays the journal into the map. Reading stops at the
+     * first record that is cut short or fails its checksum,
+     * and the journal is truncated there.
+     */
+    private void recover() throws IOException {
+        long valid = 0;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(0))));
+        replaying = true;
+        try {
+            while (true) {
+                final int length;
+                final long checksum;
+                final byte[] body;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt() & 0xFFFFFFFFL;
+                    if (length < 1 || length > channel.size())
+                        break;
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (final EOFException e) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(body, 0, body.length);
+                if (crc.getValue() != checksum)
+                    break;
+
+                replay(body);
+                valid += 8 + length;
+            }
+        } finally {
+            replaying = false;
+        }
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    private void replay(final byte[] body) throws IOException {
+        final byte op = body[0];
+        if (op == CLEAR) {
+            super.clear();
+            return;
+        }
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+        try {
+            final Object key = in.readObject();
+            if (op == PUT)
+                super.put(key, in.readObject());
+            else if (op == STORE)
+                store(key, in.readObject());
+            else if (op == REMOVE)
+                super.remove(key);
+            else
+                throw new IOException("Unknown journal record: " + op);
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Can't replay the journal " + path, e);
+        }
+    }
+
+    /*
+     * A record is its length, a checksum, and a body made of
+     * the operation followed by the serialized key and value.
+     */
+    private static byte[] encode(final byte op, final Object key, final Object value, final boolean withValue) {
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(op);
+            if (op != CLEAR) {
+                final ObjectOutputStream out = new ObjectOutputStream(body);
+                out.writeObject(key);
+                if (withValue)
+                    out.writeObject(value);
+                out.close();
+            }
+            final byte[] bytes = body.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+
+            final ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length);
+            record.putInt((int) crc.getValue());
+            record.put(bytes);
+            return record.array();
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Can't journal " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeFully(final FileChannel out, final byte[] bytes) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("The journal " + path + " is closed");
+        if (failure != null)
+            throw new UncheckedIOException("The journal " + path + " failed earlier", failure);
+    }
+
+    private static final byte PUT = 1;
+    private static final byte STORE = 2;
+    private static final byte REMOVE = 3;
+    private static final byte CLEAR = 4;
+
+    final private Path path;
+    final private long compactAfter;
+    final private ReadWriteLock rotation = new ReentrantReadWriteLock();
+    final private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    final private Object syncLock = new Object();
+
+    private FileChannel channel;
+    private volatile long appended;
+    private volatile long synced;
+    private volatile long nextCompaction;
+    private volatile boolean compacting;
+    private volatile boolean closed;
+    private volatile boolean replaying;
+    private volatile IOException failure;
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.time.Clock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link ConcurrentFlexiMap} that reads through to a slower store. When a
+ * key isn't in the map, get calls the <i>loader</i> closure with the key,
+ * stores what it returns (as is, without "onPut") and hands it to "onGet"
+ * as usual.
+ * <p>
+ * If many threads miss on the same key at once, only one of them calls the
+ * loader; the others wait for its result instead of all hitting the store
+ * together. If the loader throws, every waiting thread gets the exception
+ * and nothing is stored.
+ * </p><p>
+ * Entries may also <i>expire</i> some time after they were loaded (or put),
+ * after which get loads them again. With <i>refresh-ahead</i>, a get of an
+ * entry that is close to expiring returns the current value right away,
+ * but has the executor load a fresh one in the background, so popular keys
+ * never block on the loader at all.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class LoadingFlexiMap extends ConcurrentFlexiMap {
+
+    /*
+     * Loaded entries never expire.
+     */
+    public LoadingFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                           final Closure loader) {
+        this(putfn, getfn, loader, 0, 0, null, Clock.systemUTC());
+    }
+
+    /*
+     * Entries expire the given number of milliseconds after
+     * being loaded (or zero for never). Within the refresh-ahead
+     * window before that, a get also starts a reload on the
+     * executor (or zero for no refreshing).
+     */
+    public LoadingFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                           final Closure loader, final long expireAfterMillis,
+                           final long refreshAheadMillis, final Executor executor,
+                           final Clock clock) {
+        super(putfn, getfn);
+        if (expireAfterMillis < 0 || refreshAheadMillis < 0)
+            throw new IllegalArgumentException("Expiration times can't be negative");
+        if (refreshAheadMillis > 0 && (expireAfterMillis == 0 || executor == null))
+            throw new IllegalArgumentException("Refreshing ahead needs an expiration time and an executor");
+
+        this.loader = Closures.arity1(loader);
+        this.expireAfter = expireAfterMillis;
+        this.refreshAhead = refreshAheadMillis;
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    public Object get(final Object key) {
+        final Object value = lookup(key);
+        if (value == ABSENT)
+            return transformGet(key, load(key, value));
+        if (expireAfter > 0) {
+            final Long loaded = loadedAt.get(ProbeTable.maskNull(key));
+            final long age = loaded == null ? 0 : clock.millis() - loaded;
+            if (age >= expireAfter)
+                return transformGet(key, load(key, value));
+            if (refreshAhead > 0 && age >= expireAfter - refreshAhead)
+                refresh(key, value);
+        }
+        return transformGet(key, value);
+    }
+
+    /*
+     * A put counts as a fresh load as far as expiring goes.
+     */
+    public Object put(final Object key, final Object value) {
+        final Object oldvalue = super.put(key, value);
+        touch(key);
+        return oldvalue;
+    }
+
+    /*
+     * The key may only be on its way in, so any load of it is
+     * made stale whether or not there's anything to remove.
+     */
+    public Object remove(final Object key) {
+        markStale(key);
+        loadedAt.remove(ProbeTable.maskNull(key));
+        return super.remove(key);
+    }
+
+    public void clear() {
+        for (final LoadTask task : inFlight.values())
+            task.load.stale = true;
+        super.clear();
+        loadedAt.clear();
+    }
+
+    /*
+     * A put or remove makes any load of the same key that's
+     * under way stale, so it won't overwrite the newer value
+     * (or bring back the removed key) when it finishes. The put
+     * hook runs under the key's stripe lock, as does mayStore().
+     */
+    void beforePut(final Object key, final Object value) {
+        markStale(key);
+    }
+
+    /*
+     * A put or remove can also land after get saw the miss (or
+     * the expired value) but before the load was registered,
+     * where markStale() can't find it. So a load only stores if
+     * the key still holds exactly what the load started from.
+     */
+    boolean mayStore(final Object key, final Object current, final Object token) {
+        final Load load = (Load) token;
+        return !load.stale && current == load.from;
+    }
+
+    private void markStale(final Object key) {
+        final LoadTask task = inFlight.get(ProbeTable.maskNull(key));
+        if (task != null)
+            task.load.stale = true;
+    }
+
+    /*
+     * Loads a key, or if some other thread already is,
+     * waits for that one to finish instead. The value is the
+     * one get found (or ABSENT).
+     */
+    private Object load(final Object key, final Object from) {
+        final Object k = ProbeTable.maskNull(key);
+        FutureTask<Object> task = inFlight.get(k);
+        if (task == null) {
+            final LoadTask mine = new LoadTask(new Load(key, from));
+            task = inFlight.putIfAbsent(k, mine);
+            if (task == null) {
+                task = mine;
+                try {
+                    mine.run();
+                } finally {
+                    inFlight.remove(k, mine);
+                }
+            }
+        }
+        return await(task);
+    }
+
+    /*
+     * Starts a background load, unless one is going already.
+     */
+    private void refresh(final Object key, final Object from) {
+        final Object k = ProbeTable.maskNull(key);
+        if (inFlight.containsKey(k))
+            return;
+        final LoadTask task = new LoadTask(new Load(key, from)) {
+            protected void done() {
+                inFlight.remove(k, this);
+            }
+        };
+        if (inFlight.putIfAbsent(k, task) == null)
+            executor.execute(task);
+    }
+
+    private static Object await(final FutureTask<Object> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new IllegalStateException("Loader failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void touch(final Object key) {
+        if (expireAfter > 0)
+            loadedAt.put(ProbeTable.maskNull(key), clock.millis());
+    }
+
+    /*
+     * Calls the loader and stores the result, unless the key
+     * was put or removed since get looked at it. The caller waiting
+     * for the load gets the loaded value either way.
+     */
+    private class LoadTask extends FutureTask<Object> {
+        final Load load;
+
+        LoadTask(final Load load) {
+            super(load);
+            this.load = load;
+        }
+    }
+
+    private final class Load implements Callable<Object> {
+        final Object key;
+        final Object from;
+        volatile boolean stale = false;
+
+        Load(final Object key, final Object from) {
+            this.key = key;
+            this.from = from;
+        }
+
+        public Object call() {
+            final Object value = loader.apply(key);
+            if (storeIf(key, value, this))
+                touch(key);
+            return value;
+        }
+    }
+
+    final private Closure1 loader;
+    final private long expireAfter;
+    final private long refreshAhead;
+    final private Executor executor;
+    final private Clock clock;
+
+    final private ConcurrentMap<Object, LoadTask> inFlight =
+        new ConcurrentHashMap<Object, LoadTask>();
+    final private ConcurrentMap<Object, Long> loadedAt =
+        new ConcurrentHashMap<Object, Long>();
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.Arrays;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} for <code>long</code> keys and <code>long</code> values.
+ * This is the same as an {@link IntFlexiMap}, but for keys (like ids or
+ * timestamps) that don't fit in an <code>int</code>. The keys and values live
+ * in parallel <code>long[]</code> arrays, and the closures take primitives,
+ * so neither a get nor a put boxes anything or allocates any garbage.
+ * <p>
+ * Since a primitive can't be <code>null</code>, a key that isn't in the map
+ * has a <i>missing value</i> instead (zero, unless given otherwise). The
+ * "onPut" closure sees the missing value as the old value of a new key, and
+ * the "onGet" closure sees it for keys that aren't there, so a counter is
+ * just an "onPut" closure that adds the old and new values together.
+ * </p><p>
+ * The table uses linear probing, with zero marking an empty slot (the
+ * zero key itself is kept off to the side). It is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class LongFlexiMap {
+
+    public LongFlexiMap(final Option<LongLongClosure> putfn, final Option<LongLongClosure> getfn) {
+        this(putfn, getfn, 0L);
+    }
+
+    public LongFlexiMap(final Option<LongLongClosure> putfn, final Option<LongLongClosure> getfn,
+                       final long missingValue) {
+        onPut = putfn;
+        onGet = getfn;
+        missing = missingValue;
+        keys = new long[MINIMUM_CAPACITY];
+        values = new long[MINIMUM_CAPACITY];
+        mask = MINIMUM_CAPACITY - 1;
+    }
+
+    /*
+     * The arguments to "onGet" are the key and its value,
+     * or the missing value if the key isn't in the map.
+     */
+    public long get(final long key) {
+        final long value;
+        if (key == 0)
+            value = hasZeroKey ? zeroValue : missing;
+        else {
+            final int i = indexOf(key);
+            value = i >= 0 ? values[i] : missing;
+        }
+        return transformGet(key, value);
+    }
+
+    /*
+     * The arguments to "onPut" are the old value (or the
+     * missing value) and the new one. Returns the old value,
+     * passed through "onGet".
+     */
+    public long put(final long key, final long value) {
+        final long oldvalue;
+        if (key == 0) {
+            oldvalue = hasZeroKey ? zeroValue : missing;
+            zeroValue = transformPut(oldvalue, value);
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            return transformGet(key, oldvalue);
+        }
+
+        int i = mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key) {
+                oldvalue = values[i];
+                values[i] = transformPut(oldvalue, value);
+                return transformGet(key, oldvalue);
+            }
+            i = (i + 1) & mask;
+        }
+
+        values[i] = transformPut(missing, value);
+        keys[i] = key;
+        if (++size > keys.length / 4 * 3)
+            rehash(keys.length * 2);
+        return transformGet(key, missing);
+    }
+
+    /*
+     * Returns the value that was removed (or the missing
+     * value), passed through "onGet".
+     */
+    public long remove(final long key) {
+        final long oldvalue;
+        if (key == 0) {
+            oldvalue = hasZeroKey ? zeroValue : missing;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                size--;
+            }
+        }
+        else {
+            final int i = indexOf(key);
+            if (i < 0)
+                return transformGet(key, missing);
+            oldvalue = values[i];
+            shiftKeys(i);
+            size--;
+        }
+        return transformGet(key, oldvalue);
+    }
+
+    public boolean containsKey(final long key) {
+        return key == 0 ? hasZeroKey : indexOf(key) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0L);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    /*
+     * Returns a copy of the keys, in no particular order.
+     */
+    public long[] keys() {
+        final long[] result = new long[size];
+        int j = 0;
+        if (hasZeroKey)
+            result[j++] = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != 0)
+                result[j++] = keys[i];
+        return result;
+    }
+
+    private long transformPut(final long oldvalue, final long value) {
+        if (onPut.isPresent())
+            return onPut.get().apply(oldvalue, value);
+        else
+            return value;
+    }
+
+    private long transformGet(final long key, final long value) {
+        if (onGet.isPresent())
+            return onGet.get().apply(key, value);
+        else
+            return value;
+    }
+
+    private int indexOf(final long key) {
+        int i = mix(key) & mask;
+        long k;
+        while ((k = keys[i]) != 0) {
+            if (k == key)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /*
+     * Removing an entry shifts the entries after it back
+     * towards their home slots, so no tombstones are needed.
+     */
+    private void shiftKeys(int pos) {
+        while (true) {
+            final int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                final int slot = mix(k) & mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos)
+                    break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+
+        for (int j = 0; j < oldKeys.length; j++) {
+            final long k = oldKeys[j];
+            if (k != 0) {
+                int i = mix(k) & mask;
+                while (keys[i] != 0)
+                    i = (i + 1) & mask;
+                keys[i] = k;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int mix(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    final private Option<LongLongClosure> onPut;
+    final private Option<LongLongClosure> onGet;
+    final private long missing;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private boolean hasZeroKey;
+    private long zeroValue;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache that throws out the least recently used entry when
+ * it gets full. It is split into a number of segments, each a small
+ * access-ordered {@link LinkedHashMap} with a lock of its own, so readers of
+ * different keys don't line up behind one lock. (This makes the eviction
+ * order only approximately LRU across the whole cache.)
+ * <p>
+ * The cache counts its hits, misses and evictions, so it can be sized by
+ * watching how it does.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+final class LruCache
+{
+    /**
+     * Returned by {@link #lookup} when there is nothing (usable) cached.
+     */
+    static final Object MISS = new Object();
+
+    LruCache(final int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("The cache size must be positive: " + maximumSize);
+
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n * 16 <= maximumSize)
+            n <<= 1;
+
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(Math.max(1, maximumSize / n));
+    }
+
+    /*
+     * Returns the result cached for the key, but only if it was
+     * computed from this very source value. Anything else counts
+     * as a miss.
+     */
+    Object lookup(final Object key, final Object source) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final Memo memo = segment.get(key);
+            if (memo != null && memo.source == source) {
+                segment.hits++;
+                return memo.result;
+            }
+            segment.misses++;
+            return MISS;
+        }
+    }
+
+    void store(final Object key, final Object source, final Object result) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Memo(source, result));
+        }
+    }
+
+    void invalidate(final Object key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    void invalidateAll() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    long hitCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.hits;
+            }
+        }
+        return total;
+    }
+
+    long missCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.misses;
+            }
+        }
+        return total;
+    }
+
+    long evictionCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.evictions;
+            }
+        }
+        return total;
+    }
+
+    int size() {
+        int total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.size();
+            }
+        }
+        return total;
+    }
+
+    private Segment segmentFor(final Object key) {
+        final int h = (key == null ? 0 : key.hashCode()) * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /*
+     * Remembers which value a result was computed from.
+     */
+    private static final class Memo {
+        final Object source;
+        final Object result;
+
+        Memo(final Object source, final Object result) {
+            this.source = source;
+            this.result = result;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Object, Memo> {
+        private static final long serialVersionUID = 1L;
+
+        final int maximumSize;
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(final int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        protected boolean removeEldestEntry(final Map.Entry<Object, Memo> eldest) {
+            if (size() > maximumSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    final private Segment[] segments;
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A closure that remembers what another closure returned for each tuple of
+ * arguments, for pure closures that are expensive to call (parsing,
+ * lookups, normalizing). Many threads may call it at once.
+ * <p>
+ * The cache holds a bounded number of results. It is split into a number of
+ * segments, each a small hash table with a lock of its own. When a segment is
+ * full it throws out either its least recently used result, or (for
+ * {@link Eviction#LFU}) the least often used of the few least recently used
+ * ones. Results may also expire a given time after they were computed.
+ * </p><p>
+ * Arguments are compared with <code>equals</code>, and a call with one or
+ * two arguments finds its result without making a key object. When several
+ * threads ask for the same missing result at once, only one of them calls
+ * the closure and the others wait for it. If the closure throws, nothing is
+ * remembered and every waiting caller gets the exception.
+ * </p><p>
+ * The memoizer counts its hits (including calls that waited for another
+ * thread's result), misses, evictions and expirations.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Memoizer implements Closure, Closure1, Closure2
+{
+    /**
+     * Which result goes when the cache is full.
+     */
+    public enum Eviction {
+        LRU, LFU
+    }
+
+    /**
+     * How many results to keep, which to throw out, and for how
+     * long they stay good.
+     */
+    public static final class Policy {
+        public Policy(final Eviction eviction, final int maximumSize) {
+            this(eviction, maximumSize, 0, Clock.systemUTC());
+        }
+
+        /*
+         * Results expire the given number of milliseconds after
+         * being computed (or zero for never).
+         */
+        public Policy(final Eviction eviction, final int maximumSize,
+                      final long expireAfterMillis, final Clock clock) {
+            if (maximumSize < 1)
+                throw new IllegalArgumentException("The cache size must be positive: " + maximumSize);
+            if (expireAfterMillis < 0)
+                throw new IllegalArgumentException("Expiration times can't be negative");
+            this.eviction = eviction;
+            this.maximumSize = maximumSize;
+            this.expireAfter = expireAfterMillis;
+            this.clock = clock;
+        }
+
+        final Eviction eviction;
+        final int maximumSize;
+        final long expireAfter;
+        final Clock clock;
+    }
+
+    public static Memoizer memoize(final Closure fn, final Policy policy) {
+        return new Memoizer(fn, policy);
+    }
+
+    private Memoizer(final Closure fn, final Policy policy) {
+        this.fn = fn;
+        this.one = fn instanceof Closure1 ? (Closure1) fn : null;
+        this.two = fn instanceof Closure2 ? (Closure2) fn : null;
+        this.policy = policy;
+
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n * 16 <= policy.maximumSize)
+            n <<= 1;
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++)
+            segments[i] = new Segment(Math.max(1, policy.maximumSize / n));
+    }
+
+    public Object apply(final Object a) {
+        return call(hash(a), 1, a, null, null);
+    }
+
+    public Object apply(final Object a, final Object b) {
+        return call(31 * hash(a) + hash(b), 2, a, b, null);
+    }
+
+    public Object apply(final Object... objects) {
+        switch (objects.length) {
+        case 1:
+            return apply(objects[0]);
+        case 2:
+            return apply(objects[0], objects[1]);
+        default:
+            return call(Arrays.hashCode(objects), ANY, null, null, objects);
+        }
+    }
+
+    /*
+     * Forgets every result, though calls already under way
+     * still finish (without being remembered).
+     */
+    public void invalidateAll() {
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls answered without calling the closure.
+     */
+    public long hitCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.hits;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of calls that had to call the closure.
+     */
+    public long missCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.misses;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of results thrown out to make room.
+     */
+    public long evictionCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.evictions;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of results dropped for being too old.
+     */
+    public long expirationCount() {
+        long total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.expirations;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the fraction of calls that were hits (or one if there
+     * haven't been any calls yet).
+     */
+    public double hitRate() {
+        final long hits = hitCount();
+        final long total = hits + missCount();
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of results remembered right now.
+     */
+    public int size() {
+        int total = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.count;
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Finds the result for the arguments, waits for another
+     * thread computing it, or computes it itself. The arguments
+     * are either a and b (for one or two of them) or rest.
+     */
+    private Object call(final int h, final int arity, final Object a, final Object b, final Object[] rest) {
+        final int hash = spread(h);
+        final Segment segment = segmentFor(hash);
+        final Node node;
+        final FutureTask<Object> pending;
+        synchronized (segment) {
+            final Node found = segment.find(hash, arity, a, b, rest);
+            if (found != null && (found.task != null || !isExpired(found))) {
+                segment.hits++;
+                if (found.task == null) {
+                    segment.touch(found);
+                    return found.value;
+                }
+                node = null;
+                pending = found.task;
+            }
+            else {
+                if (found != null) {
+                    segment.unlink(found);
+                    segment.expirations++;
+                }
+                segment.misses++;
+                node = segment.add(hash, arity, a, b, rest == null ? null : rest.clone());
+                node.task = pending = new FutureTask<Object>(new Invoke(node));
+            }
+        }
+        if (node == null)
+            return await(pending);
+        return compute(segment, node, pending);
+    }
+
+    /*
+     * Calls the closure outside of the lock, then remembers
+     * the result (or forgets the node if the closure threw).
+     */
+    private Object compute(final Segment segment, final Node node, final FutureTask<Object> task) {
+        task.run();
+        boolean done = false;
+        try {
+            final Object result = await(task);
+            synchronized (segment) {
+                segment.complete(node, result, policy.expireAfter > 0 ? policy.clock.millis() : 0);
+            }
+            done = true;
+            return result;
+        } finally {
+            if (!done) {
+                synchronized (segment) {
+                    segment.unlink(node);
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(final Node node) {
+        return policy.expireAfter > 0 && policy.clock.millis() - node.computedAt >= policy.expireAfter;
+    }
+
+    private Object invoke(final Node node) {
+        switch (node.arity) {
+        case 1:
+            return one != null ? one.apply(node.a) : fn.apply(node.a);
+        case 2:
+            return two != null ? two.apply(node.a, node.b) : fn.apply(node.a, node.b);
+        default:
+            return fn.apply(node.rest.clone());
+        }
+    }
+
+    private static Object await(final FutureTask<Object> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new IllegalStateException("Memoized closure failed", cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int hash(final Object o) {
+        return o == null ? 0 : o.hashCode();
+    }
+
+    private static int spread(final int h) {
+        final int m = h * 0x9E3779B9;
+        return m ^ (m >>> 16);
+    }
+
+    private static boolean eq(final Object x, final Object y) {
+        return x == y || (x != null && x.equals(y));
+    }
+
+    /*
+     * The segment comes from the top bits of the hash, the
+     * slot in its table from the bottom ones.
+     */
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
+    }
+
+    /*
+     * Calls the closure for a node's arguments.
+     */
+    private final class Invoke implements Callable<Object> {
+        final Node node;
+
+        Invoke(final Node node) {
+            this.node = node;
+        }
+
+        public Object call() {
+            return invoke(node);
+        }
+    }
+
+    /*
+     * One remembered (or pending) result. While the closure is
+     * being called, the task is set and the node is only in
+     * the hash table, not in the usage order.
+     */
+    private static final class Node {
+        final int hash;
+        final int arity;
+        final Object a;
+        final Object b;
+        final Object[] rest;
+
+        Object value;
+        FutureTask<Object> task;
+        long computedAt;
+        long uses;
+        boolean removed;
+
+        Node next;
+        Node before;
+        Node after;
+
+        Node(final int hash, final int arity, final Object a, final Object b, final Object[] rest) {
+            this.hash = hash;
+            this.arity = arity;
+            this.a = a;
+            this.b = b;
+            this.rest = rest;
+        }
+
+        boolean matches(final int h, final int n, final Object x, final Object y, final Object[] r) {
+            if (hash != h || arity != n)
+                return false;
+            if (n == ANY)
+                return Arrays.equals(rest, r);
+            return eq(a, x) && (n == 1 || eq(b, y));
+        }
+    }
+
+    /*
+     * A chained hash table, plus a list of the computed nodes
+     * from the least to the most recently used. Everything here
+     * is called while holding the segment's lock.
+     */
+    private final class Segment {
+        Segment(final int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        Node find(final int hash, final int arity, final Object a, final Object b, final Object[] rest) {
+            for (Node n = table[hash & (table.length - 1)]; n != null; n = n.next)
+                if (n.matches(hash, arity, a, b, rest))
+                    return n;
+            return null;
+        }
+
+        Node add(final int hash, final int arity, final Object a, final Object b, final Object[] rest) {
+            if (++entries > table.length * 3 / 4)
+                resize();
+            final Node node = new Node(hash, arity, a, b, rest);
+            final int i = hash & (table.length - 1);
+            node.next = table[i];
+            table[i] = node;
+            return node;
+        }
+
+        /*
+         * Stores the result of a pending node, unless it was
+         * dropped while the closure was running.
+         */
+        void complete(final Node node, final Object value, final long now) {
+            node.value = value;
+            node.computedAt = now;
+            node.task = null;
+            if (node.removed)
+                return;
+            link(node);
+            count++;
+            while (count > maximumSize) {
+                unlink(victim());
+                evictions++;
+            }
+        }
+
+        void touch(final Node node) {
+            node.uses++;
+            if (tail != node) {
+                unlinkFromOrder(node);
+                link(node);
+            }
+        }
+
+        void unlink(final Node node) {
+            if (node.removed)
+                return;
+            final int i = node.hash & (table.length - 1);
+            if (table[i] == node)
+                table[i] = node.next;
+            else
+                for (Node n = table[i]; n != null; n = n.next)
+                    if (n.next == node) {
+                        n.next = node.next;
+                        break;
+                    }
+            entries--;
+            if (node.task == null) {
+                unlinkFromOrder(node);
+                count--;
+            }
+            node.removed = true;
+        }
+
+        void clear() {
+            for (final Node head : table)
+                for (Node n = head; n != null; n = n.next)
+                    n.removed = true;
+            Arrays.fill(table, null);
+            head = tail = null;
+            entries = 0;
+            count = 0;
+        }
+
+        /*
+         * LFU looks at the few least recently used nodes, and
+         * picks the one used least often, which keeps an old but
+         * popular result around without counting every node.
+         */
+        private Node victim() {
+            if (policy.eviction == Eviction.LRU)
+                return head;
+            Node victim = head;
+            int seen = 0;
+            for (Node n = head.after; n != null && ++seen < LFU_SAMPLE; n = n.after)
+                if (n.uses < victim.uses)
+                    victim = n;
+            return victim;
+        }
+
+        private void link(final Node node) {
+            node.after = null;
+            node.before = tail;
+            if (tail == null)
+                head = node;
+            else
+                tail.after = node;
+            tail = node;
+        }
+
+        private void unlinkFromOrder(final Node node) {
+            if (node.before == null)
+                head = node.after;
+            else
+                node.before.after = node.after;
+            if (node.after == null)
+                tail = node.before;
+            else
+                node.after.before = node.before;
+            node.before = node.after = null;
+        }
+
+        private void resize() {
+            final Node[] old = table;
+            table = new Node[old.length * 2];
+            for (final Node first : old) {
+                Node n = first;
+                while (n != null) {
+                    final Node next = n.next;
+                    final int i = n.hash & (table.length - 1);
+                    n.next = table[i];
+                    table[i] = n;
+                    n = next;
+                }
+            }
+        }
+
+        final int maximumSize;
+        Node[] table = new Node[16];
+        Node head;
+        Node tail;
+        int entries;
+        int count;
+        long hits;
+        long misses;
+        long evictions;
+        long expirations;
+    }
+
+    private static final int ANY = -1;
+    private static final int LFU_SAMPLE = 8;
+
+    final private Closure fn;
+    final private Closure1 one;
+    final private Closure2 two;
+    final private Policy policy;
+    final private Segment[] segments;
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} that remembers what its "onGet" closure returned, for
+ * when that closure is expensive (decoding or decorating the stored
+ * values, for instance). Getting a key again calls the closure only if the
+ * value stored for that key has changed since.
+ * <p>
+ * The cache holds at most a given number of keys, dropping the least
+ * recently used ones, and forgets a key as soon as it is put or removed.
+ * A cached result is also only used if it was computed from the very
+ * value (by identity) that is stored now. The closure should therefore
+ * depend on nothing but its key and value.
+ * </p><p>
+ * Any number of threads may read from the map at the same time, but like
+ * any other {@link FlexiMap}, writers need to be kept apart from everyone
+ * else.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class MemoizingFlexiMap extends FlexiMap {
+
+    public MemoizingFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                             final int maximumSize) {
+        super(putfn, getfn);
+        memoized = getfn.isPresent() ? Closures.arity2(getfn.get()) : null;
+        cache = new LruCache(maximumSize);
+    }
+
+    /*
+     * The value a put or remove hands back is no longer the one
+     * stored for the key, so it's worked out without the cache
+     * (and isn't counted as a miss).
+     */
+    public Object put(final Object key, final Object value) {
+        return uncached(key, putValue(key, value));
+    }
+
+    public Object remove(final Object key) {
+        return uncached(key, removeValue(key));
+    }
+
+    /*
+     * Every other value leaving the map comes through here, so
+     * this is where the cache sits.
+     */
+    Object transformGet(final Object key, final Object value) {
+        if (memoized == null)
+            return value;
+
+        final Object cached = cache.lookup(key, value);
+        if (cached != LruCache.MISS)
+            return cached;
+
+        final Object result = memoized.apply(key, value);
+        cache.store(key, value, result);
+        return result;
+    }
+
+    private Object uncached(final Object key, final Object value) {
+        return memoized == null ? value : memoized.apply(key, value);
+    }
+
+    void stored(final Object key, final Object oldvalue, final Object newvalue) {
+        cache.invalidate(key);
+    }
+
+    void removed(final Object key, final Object oldvalue) {
+        cache.invalidate(key);
+    }
+
+    void cleared() {
+        cache.invalidateAll();
+    }
+
+    boolean hasChangeHooks() {
+        return true;
+    }
+
+    /**
+     * Returns the number of gets answered from the cache.
+     */
+    public long hitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * Returns the number of gets that had to call the "onGet" closure.
+     */
+    public long missCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * Returns the number of cached results thrown out to make room.
+     */
+    public long evictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * Returns the number of keys with a cached result.
+     */
+    public int cacheSize() {
+        return cache.size();
+    }
+
+    final private Closure2 memoized;
+    final private LruCache cache;
+}
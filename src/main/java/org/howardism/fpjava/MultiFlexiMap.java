@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A multi-map: putting a value for a key adds it to the values already
+ * there, rather than replacing them. This does the job of a
+ * {@link FlexiMap} whose "onPut" closure appends to a list, without a list
+ * for every key.
+ * <p>
+ * Most keys only ever get one or two values, so a key with a single value
+ * keeps it right in the {@link ProbeTable} slot. Only when a second value
+ * arrives is it moved into a small array, which grows as needed.
+ * </p><p>
+ * Getting a key returns a read-only {@link List} of its values. The list
+ * doesn't copy anything: it reads straight from the map, and so it sees
+ * later changes to that key. Putting returns the values as they were
+ * before, in a list that doesn't change.
+ * </p><p>
+ * Unlike the other FlexiMaps, this one takes no closures. The merging an
+ * "onPut" closure would do is what the map is for, and since the values
+ * are kept one by one rather than as a single value, a closure for them
+ * is better applied by the caller before a value goes in or after it
+ * comes out of a list. This class is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class MultiFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object> {
+
+    public MultiFlexiMap() {
+        table = new ProbeTable();
+    }
+
+    public MultiFlexiMap(final int expectedKeys) {
+        table = new ProbeTable(expectedKeys);
+    }
+
+    /*
+     * Returns a view of the key's values, or null if the key
+     * doesn't have any.
+     */
+    public List<Object> get(final Object key) {
+        return table.indexOf(key) >= 0 ? new Values(key) : null;
+    }
+
+    /*
+     * Adds the value to the key's values. Returns the values
+     * the key had before, as a list that won't change, or null
+     * if this was the key's first value.
+     */
+    public List<Object> put(final Object key, final Object value) {
+        final int i = table.indexOf(key);
+        final List<Object> previous = i >= 0 ? snapshot(table.valueAt(i)) : null;
+        add(key, value);
+        return previous;
+    }
+
+    /*
+     * Adds the value to the key's values, returning true if
+     * the key is new to the map.
+     */
+    public boolean add(final Object key, final Object value) {
+        final int i = table.probe(key);
+        if (i < 0) {
+            table.insertAt(-i - 1, key, value);
+            modCount++;
+            valueCount++;
+            return true;
+        }
+        final Object stored = table.valueAt(i);
+        if (stored instanceof Bag) {
+            ((Bag) stored).add(value);
+        }
+        else {
+            final Bag bag = new Bag(2);
+            bag.add(stored);
+            bag.add(value);
+            table.setValueAt(i, bag);
+        }
+        modCount++;
+        valueCount++;
+        return false;
+    }
+
+    /*
+     * Adds a number of values at once, growing the key's
+     * array just the once.
+     */
+    public boolean addAll(final Object key, final Collection<?> values) {
+        if (values.isEmpty())
+            return false;
+        final int i = table.probe(key);
+        final Bag bag;
+        if (i < 0) {
+            if (values.size() == 1) {
+                add(key, values.iterator().next());
+                return true;
+            }
+            bag = new Bag(values.size());
+            table.insertAt(-i - 1, key, bag);
+        }
+        else if (table.valueAt(i) instanceof Bag) {
+            bag = (Bag) table.valueAt(i);
+            bag.ensureCapacity(bag.count + values.size());
+        }
+        else {
+            bag = new Bag(values.size() + 1);
+            bag.add(table.valueAt(i));
+            table.setValueAt(i, bag);
+        }
+        for (final Object value : values)
+            bag.add(value);
+        modCount++;
+        valueCount += values.size();
+        return true;
+    }
+
+    /*
+     * Removes every value of a key, returning them (or null
+     * if the key had none).
+     */
+    public List<Object> remove(final Object key) {
+        final int i = table.indexOf(key);
+        if (i < 0)
+            return null;
+        final List<Object> removed = detach(table.valueAt(i));
+        removeSlot(i);
+        return removed;
+    }
+
+    /*
+     * Removes one occurrence of a value from a key's values.
+     * A key left with a single value goes back to keeping it
+     * in its slot, and a key left with none is removed.
+     */
+    public boolean removeValue(final Object key, final Object value) {
+        final int i = table.indexOf(key);
+        if (i < 0)
+            return false;
+        final Object stored = table.valueAt(i);
+        if (!(stored instanceof Bag)) {
+            if (!eq(stored, value))
+                return false;
+            removeSlot(i);
+            return true;
+        }
+        final Bag bag = (Bag) stored;
+        final int at = bag.indexOf(value);
+        if (at < 0)
+            return false;
+        bag.removeAt(at);
+        if (bag.count == 1)
+            table.setValueAt(i, bag.values[0]);
+        modCount++;
+        valueCount--;
+        return true;
+    }
+
+    public boolean containsKey(final Object key) {
+        return table.indexOf(key) >= 0;
+    }
+
+    /*
+     * Returns true if the key has the value amongst its values.
+     */
+    public boolean containsEntry(final Object key, final Object value) {
+        final int i = table.indexOf(key);
+        if (i < 0)
+            return false;
+        final Object stored = table.valueAt(i);
+        return stored instanceof Bag ? ((Bag) stored).indexOf(value) >= 0 : eq(stored, value);
+    }
+
+    /*
+     * Returns the number of values a key has, without making a
+     * view of them.
+     */
+    public int valueCount(final Object key) {
+        final int i = table.indexOf(key);
+        if (i < 0)
+            return 0;
+        final Object stored = table.valueAt(i);
+        return stored instanceof Bag ? ((Bag) stored).count : 1;
+    }
+
+    /*
+     * Returns the number of values for all of the keys.
+     */
+    public long valueCount() {
+        return valueCount;
+    }
+
+    /*
+     * The number of keys, like any other map.
+     */
+    public int size() {
+        return table.size();
+    }
+
+    public boolean isEmpty() {
+        return table.size() == 0;
+    }
+
+    public void clear() {
+        if (table.size() != 0) {
+            table.clear();
+            valueCount = 0;
+            modCount++;
+        }
+    }
+
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator();
+                }
+                public int size() {
+                    return table.size();
+                }
+                public void clear() {
+                    MultiFlexiMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private void removeSlot(final int slot) {
+        final Object stored = table.valueAt(slot);
+        valueCount -= stored instanceof Bag ? ((Bag) stored).count : 1;
+        table.removeAt(slot);
+        modCount++;
+    }
+
+    /*
+     * Wraps the values of a key that is leaving the map. Its
+     * array won't be touched again, so it needn't be copied.
+     */
+    private static List<Object> detach(final Object stored) {
+        if (stored instanceof Bag) {
+            final Bag bag = (Bag) stored;
+            return Collections.unmodifiableList(Arrays.asList(bag.values).subList(0, bag.count));
+        }
+        return Collections.singletonList(stored);
+    }
+
+    /*
+     * The key's values as they are now, without copying them:
+     * adding only writes past the end of what the snapshot
+     * sees, and a bag that has been snapshot copies its array
+     * before removing anything from it.
+     */
+    private static List<Object> snapshot(final Object stored) {
+        if (stored instanceof Bag) {
+            final Bag bag = (Bag) stored;
+            bag.shared = true;
+            return Collections.unmodifiableList(Arrays.asList(bag.values).subList(0, bag.count));
+        }
+        return Collections.singletonList(stored);
+    }
+
+    private static boolean eq(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /*
+     * The values of a key that has more than one. Only this
+     * class ever makes one, so a stored Bag can't be mistaken
+     * for a value that was put.
+     */
+    private static final class Bag {
+        Bag(final int capacity) {
+            values = new Object[Math.max(capacity, 2)];
+        }
+
+        void add(final Object value) {
+            if (count == values.length)
+                ensureCapacity(count + (count >> 1) + 1);
+            values[count++] = value;
+        }
+
+        void ensureCapacity(final int capacity) {
+            if (capacity > values.length)
+                values = Arrays.copyOf(values, capacity);
+        }
+
+        int indexOf(final Object value) {
+            for (int i = 0; i < count; i++)
+                if (eq(values[i], value))
+                    return i;
+            return -1;
+        }
+
+        void removeAt(final int i) {
+            if (shared) {
+                values = values.clone();
+                shared = false;
+            }
+            System.arraycopy(values, i + 1, values, i, count - i - 1);
+            values[--count] = null;
+        }
+
+        Object[] values;
+        int count;
+        boolean shared;
+    }
+
+    /*
+     * A read-only view of a key's values. It finds the key's
+     * slot again only when the map has changed since it last
+     * looked, so reading through it is as cheap as reading an
+     * array.
+     */
+    private final class Values extends AbstractList<Object> implements RandomAccess {
+        Values(final Object key) {
+            this.key = key;
+        }
+
+        public Object get(final int i) {
+            final Object stored = refresh();
+            if (stored instanceof Bag) {
+                final Bag bag = (Bag) stored;
+                if (i >= bag.count)
+                    throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + bag.count);
+                return bag.values[i];
+            }
+            if (i != 0 || stored == NONE)
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+            return stored;
+        }
+
+        public int size() {
+            final Object stored = refresh();
+            return stored instanceof Bag ? ((Bag) stored).count : stored == NONE ? 0 : 1;
+        }
+
+        private Object refresh() {
+            if (seen != MultiFlexiMap.this.modCount) {
+                final int i = table.indexOf(key);
+                stored = i >= 0 ? table.valueAt(i) : NONE;
+                seen = MultiFlexiMap.this.modCount;
+            }
+            return stored;
+        }
+
+        final private Object key;
+        private Object stored;
+        private int seen = MultiFlexiMap.this.modCount - 1;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        public boolean hasNext() {
+            final Object[] slots = table.slots();
+            while (next < slots.length && !ProbeTable.isLive(slots[next]))
+                next += 2;
+            return next < slots.length;
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next;
+            next += 2;
+            final Object key = table.keyAt(last);
+            return new AbstractMap.SimpleImmutableEntry<Object, Object>(key, new Values(key));
+        }
+
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeSlot(last);
+            last = -1;
+            expectedModCount = modCount;
+        }
+
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+    }
+
+    private static final Object NONE = new Object();
+
+    final private ProbeTable table;
+    private long valueCount;
+    private transient int modCount;
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+}
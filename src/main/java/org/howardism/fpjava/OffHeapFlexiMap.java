@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} that keeps its entries outside of the Java heap, so
+ * that maps with tens of millions of entries don't weigh on the garbage
+ * collector.
+ * <p>
+ * Keys and values are encoded with a {@link Codec} into <i>slabs</i>:
+ * large direct buffers that records are appended to. The hash index is a
+ * direct buffer as well, holding for each slot the key's hash and where
+ * its record lives. The closures still see ordinary objects; values are
+ * decoded on the way out and encoded again on the way in.
+ * </p><p>
+ * Replacing or removing an entry leaves its old record behind as garbage,
+ * and the slabs are compacted once there is more garbage than live data.
+ * The memory held is reported by {@link #offHeapBytes()}, and
+ * {@link #close()} hands it back straight away rather than waiting for the
+ * buffers to be collected. Keys are matched by their encoded bytes, so a
+ * key codec must always encode equal keys the same way.
+ * </p><p>
+ * Like {@link FlexiMap}, this map is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class OffHeapFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object>, Closeable {
+
+    /**
+     * The size of a slab when none is given: one megabyte.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    public OffHeapFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                           final Codec keyCodec, final Codec valueCodec) {
+        this(putfn, getfn, keyCodec, valueCodec, DEFAULT_SLAB_SIZE);
+    }
+
+    /*
+     * Records bigger than a slab get a slab of their own, so
+     * the slab size is only a matter of how much memory is
+     * grabbed at a time.
+     */
+    public OffHeapFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                           final Codec keyCodec, final Codec valueCodec, final int slabSize) {
+        if (slabSize < 64)
+            throw new IllegalArgumentException("The slab size is too small: " + slabSize);
+
+        onPut = putfn.isPresent() ? Closures.arity2(putfn.get()) : null;
+        onGet = getfn.isPresent() ? Closures.arity2(getfn.get()) : null;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.slabSize = slabSize;
+        index = ByteBuffer.allocateDirect(MINIMUM_CAPACITY * SLOT);
+        capacity = MINIMUM_CAPACITY;
+    }
+
+    public Object get(final Object key) {
+        ensureOpen();
+        final int slot = probe(key, hash(key));
+        return transformGet(key, slot >= 0 ? readValue(slot) : null);
+    }
+
+    public boolean containsKey(final Object key) {
+        ensureOpen();
+        return probe(key, hash(key)) >= 0;
+    }
+
+    /*
+     * The new value is always appended as a fresh record, and
+     * the slot is pointed at it. The old record (if any) is
+     * then just garbage.
+     */
+    public Object put(final Object key, final Object value) {
+        ensureOpen();
+        final int hash = hash(key);
+        final int found = probe(key, hash);
+        final Object oldvalue = found >= 0 ? readValue(found) : null;
+        final Object newvalue = transformPut(oldvalue, value);
+
+        final int valueSize = newvalue == null ? 0 : valueCodec.size(newvalue);
+        final int recordSize = 8 + keySize + valueSize;
+        final int slab = reserve(recordSize);
+        final ByteBuffer buf = slabs.get(slab);
+        final int offset = top - recordSize;
+
+        buf.position(offset);
+        buf.putInt(keyScratch == null ? -1 : keySize);
+        if (keyScratch != null) {
+            keyScratch.flip();
+            buf.put(keyScratch);
+        }
+        buf.putInt(newvalue == null ? -1 : valueSize);
+        if (newvalue != null)
+            valueCodec.write(newvalue, buf);
+        if (buf.position() != offset + recordSize)
+            throw new IllegalStateException("The codec wrote a different number of bytes than it sized");
+        liveBytes += recordSize;
+
+        if (found >= 0) {
+            release(found);
+            setSlot(found, hash, slab + 1, offset);
+        }
+        else {
+            final int slot = -found - 1;
+            if (index.getInt(slot * SLOT + 4) == EMPTY)
+                used++;
+            setSlot(slot, hash, slab + 1, offset);
+            size++;
+            modCount++;
+            if (used > capacity / 3 * 2)
+                rehash(capacityFor(size + 1));
+        }
+        compactIfWasteful();
+        return transformGet(key, oldvalue);
+    }
+
+    public Object remove(final Object key) {
+        ensureOpen();
+        final int slot = probe(key, hash(key));
+        if (slot < 0)
+            return transformGet(key, null);
+
+        final Object oldvalue = readValue(slot);
+        removeSlot(slot);
+        return transformGet(key, oldvalue);
+    }
+
+    public void clear() {
+        ensureOpen();
+        freeSlabs();
+        free(index);
+        index = ByteBuffer.allocateDirect(MINIMUM_CAPACITY * SLOT);
+        capacity = MINIMUM_CAPACITY;
+        size = 0;
+        used = 0;
+        modCount++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator();
+                }
+                public int size() {
+                    return size;
+                }
+                public void clear() {
+                    OffHeapFlexiMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /*
+     * Frees the index and the slabs. The map can't be used
+     * afterwards; closing it again does nothing.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        freeSlabs();
+        free(index);
+        index = null;
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes held outside of the heap: the index and
+     * every slab, whether in use or not.
+     */
+    public long offHeapBytes() {
+        if (closed)
+            return 0;
+        long total = index.capacity();
+        for (final ByteBuffer slab : slabs)
+            total += slab.capacity();
+        return total;
+    }
+
+    /**
+     * Returns the number of bytes taken by the records of the entries that
+     * are in the map.
+     */
+    public long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Returns the number of bytes taken by records that were replaced or
+     * removed, and will go away when the slabs are next compacted.
+     */
+    public long garbageBytes() {
+        return garbageBytes;
+    }
+
+    Object transformPut(final Object oldvalue, final Object value) {
+        if (onPut != null)
+            return onPut.apply(oldvalue, value);
+        else
+            return value;
+    }
+
+    Object transformGet(final Object key, final Object value) {
+        if (onGet != null)
+            return onGet.apply(key, value);
+        else
+            return value;
+    }
+
+    /*
+     * Encodes the key into the scratch buffer and looks for
+     * it. Returns the slot of the key, or (-insertionPoint - 1)
+     * like ProbeTable.probe(), reusing the first tombstone.
+     */
+    private int probe(final Object key, final int hash) {
+        encodeKey(key);
+        int i = hash & (capacity - 1);
+        int firstDeleted = -1;
+
+        while (true) {
+            final int at = i * SLOT;
+            final int slab = index.getInt(at + 4);
+            if (slab == EMPTY)
+                return -(firstDeleted >= 0 ? firstDeleted : i) - 1;
+            if (slab == DELETED) {
+                if (firstDeleted < 0)
+                    firstDeleted = i;
+            }
+            else if (index.getInt(at) == hash && keyMatches(slabs.get(slab - 1), index.getInt(at + 8)))
+                return i;
+            i = (i + 1) & (capacity - 1);
+        }
+    }
+
+    private void encodeKey(final Object key) {
+        if (key == null) {
+            keyScratch = null;
+            keySize = 0;
+            return;
+        }
+        keySize = keyCodec.size(key);
+        if (scratch == null || scratch.capacity() < keySize)
+            scratch = ByteBuffer.allocate(Math.max(keySize, 64));
+        scratch.clear();
+        keyCodec.write(key, scratch);
+        keyScratch = scratch;
+    }
+
+    private boolean keyMatches(final ByteBuffer slab, final int offset) {
+        final int length = slab.getInt(offset);
+        if (keyScratch == null)
+            return length == -1;
+        if (length != keySize)
+            return false;
+        for (int j = 0; j < length; j++)
+            if (slab.get(offset + 4 + j) != keyScratch.get(j))
+                return false;
+        return true;
+    }
+
+    private Object readKey(final int slot) {
+        final ByteBuffer slab = slabs.get(index.getInt(slot * SLOT + 4) - 1);
+        final int offset = index.getInt(slot * SLOT + 8);
+        if (slab.getInt(offset) < 0)
+            return null;
+        slab.position(offset + 4);
+        return keyCodec.read(slab);
+    }
+
+    private Object readValue(final int slot) {
+        final ByteBuffer slab = slabs.get(index.getInt(slot * SLOT + 4) - 1);
+        final int offset = index.getInt(slot * SLOT + 8);
+        final int valueAt = offset + 4 + Math.max(slab.getInt(offset), 0);
+        if (slab.getInt(valueAt) < 0)
+            return null;
+        slab.position(valueAt + 4);
+        return valueCodec.read(slab);
+    }
+
+    private int recordSize(final ByteBuffer slab, final int offset) {
+        final int keyLength = Math.max(slab.getInt(offset), 0);
+        return 8 + keyLength + Math.max(slab.getInt(offset + 4 + keyLength), 0);
+    }
+
+    private void setSlot(final int slot, final int hash, final int slab, final int offset) {
+        final int at = slot * SLOT;
+        index.putInt(at, hash);
+        index.putInt(at + 4, slab);
+        index.putInt(at + 8, offset);
+    }
+
+    /*
+     * Leaves a tombstone, so an iterator walking the slots
+     * doesn't see any other entry move.
+     */
+    private void removeSlot(final int slot) {
+        release(slot);
+        index.putInt(slot * SLOT + 4, DELETED);
+        size--;
+        modCount++;
+        compactIfWasteful();
+    }
+
+    /*
+     * Counts the record a slot points at as garbage.
+     */
+    private void release(final int slot) {
+        final int at = slot * SLOT;
+        final int bytes = recordSize(slabs.get(index.getInt(at + 4) - 1), index.getInt(at + 8));
+        liveBytes -= bytes;
+        garbageBytes += bytes;
+    }
+
+    /*
+     * Makes room for a record in the last slab (or in a new
+     * one), returning the slab's number. The record goes just
+     * below the new top.
+     */
+    private int reserve(final int recordSize) {
+        if (slabs.isEmpty() || recordSize > slabs.get(slabs.size() - 1).capacity() - top) {
+            slabs.add(ByteBuffer.allocateDirect(Math.max(slabSize, recordSize)));
+            top = 0;
+        }
+        top += recordSize;
+        return slabs.size() - 1;
+    }
+
+    /*
+     * Builds a new index out of the live slots, using the
+     * hashes stored with them. The tombstones are left behind,
+     * so an index full of them is rebuilt at the same size (or
+     * smaller) rather than doubled.
+     */
+    private void rehash(final int newCapacity) {
+        final ByteBuffer old = index;
+        final int oldCapacity = capacity;
+        index = ByteBuffer.allocateDirect(newCapacity * SLOT);
+        capacity = newCapacity;
+
+        for (int j = 0; j < oldCapacity; j++) {
+            final int at = j * SLOT;
+            final int slab = old.getInt(at + 4);
+            if (slab > 0) {
+                final int hash = old.getInt(at);
+                int i = hash & (capacity - 1);
+                while (index.getInt(i * SLOT + 4) != EMPTY)
+                    i = (i + 1) & (capacity - 1);
+                setSlot(i, hash, slab, old.getInt(at + 8));
+            }
+        }
+        used = size;
+        free(old);
+    }
+
+    /*
+     * The smallest power of two that holds the entries at no
+     * more than two thirds full, as in ProbeTable.
+     */
+    private static int capacityFor(final int expectedSize) {
+        final long wanted = (long) expectedSize * 3 / 2 + 1;
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < wanted && capacity < MAXIMUM_CAPACITY)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /*
+     * Copies the live records into fresh slabs once the garbage
+     * outweighs them (and is worth more than a slab), then
+     * frees the old slabs.
+     */
+    private void compactIfWasteful() {
+        if (garbageBytes <= liveBytes || garbageBytes <= slabSize)
+            return;
+
+        final List<ByteBuffer> old = slabs;
+        slabs = new ArrayList<ByteBuffer>();
+        top = 0;
+        for (int i = 0; i < capacity; i++) {
+            final int at = i * SLOT;
+            final int slab = index.getInt(at + 4);
+            if (slab > 0) {
+                final ByteBuffer from = old.get(slab - 1).duplicate();
+                final int offset = index.getInt(at + 8);
+                final int bytes = recordSize(from, offset);
+                final int to = reserve(bytes);
+                from.limit(offset + bytes).position(offset);
+                final ByteBuffer dest = slabs.get(to);
+                dest.position(top - bytes);
+                dest.put(from);
+                index.putInt(at + 4, to + 1);
+                index.putInt(at + 8, top - bytes);
+            }
+        }
+        for (final ByteBuffer slab : old)
+            free(slab);
+        garbageBytes = 0;
+    }
+
+    private void freeSlabs() {
+        for (final ByteBuffer slab : slabs)
+            free(slab);
+        slabs = new ArrayList<ByteBuffer>();
+        top = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("The map has been closed");
+    }
+
+    private static int hash(final Object key) {
+        final int h = (key == null ? 0 : key.hashCode()) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Releases a direct buffer's memory now. Newer JVMs offer
+     * Unsafe.invokeCleaner for this, older ones a cleaner on
+     * the buffer itself. If neither can be reached, the memory
+     * is freed whenever the buffer is collected. (A mapped file
+     * is unmapped the same way.)
+     */
+    static void free(final ByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            }
+            else {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (final Exception e) {
+            // Left for the garbage collector.
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            while (next < capacity && index.getInt(next * SLOT + 4) <= 0)
+                next++;
+            return next < capacity;
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next++;
+            final Object key = readKey(last);
+            return new AbstractMap.SimpleEntry<Object, Object>(key, transformGet(key, readValue(last))) {
+                private static final long serialVersionUID = 1L;
+
+                public Object setValue(final Object v) {
+                    final Object old = put(getKey(), v);
+                    super.setValue(get(getKey()));
+                    return old;
+                }
+            };
+        }
+
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeSlot(last);
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private static final int SLOT = 12;
+    private static final int MINIMUM_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 1 << 27;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        }
+        catch (final Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    final private Closure2 onPut;
+    final private Closure2 onGet;
+    final private Codec keyCodec;
+    final private Codec valueCodec;
+    final private int slabSize;
+
+    private ByteBuffer index;
+    private int capacity;
+    private int size;
+    private int used;
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int top;
+    private long liveBytes;
+    private long garbageBytes;
+    private boolean closed;
+    private transient int modCount;
+
+    private ByteBuffer scratch;
+    private ByteBuffer keyScratch;
+    private int keySize;
+
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+}
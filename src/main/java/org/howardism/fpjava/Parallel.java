@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Applies closures across a collection on a fork-join pool: the
+ * <code>map</code>, <code>filter</code>, <code>reduce</code>,
+ * <code>groupBy</code> and <code>flatMap</code> that go with the
+ * {@link Closure}.
+ * <p>
+ * The items are copied into an array, which is split in half again and again
+ * until each piece is down to a size that gives every worker a few pieces,
+ * or until the pool already has more than enough work queued up, in which
+ * case a piece is just done where it is. A collection no bigger than the
+ * <i>sequential cutoff</i> is done on the calling thread, without the pool.
+ * </p><p>
+ * The results come back in the order of the items, unless the
+ * <code>Parallel</code> is made unordered. Only <code>groupBy</code> gets
+ * cheaper for that (the others keep their order at no cost), so it is the
+ * only one whose groups come back in no particular order.
+ * </p><p>
+ * The closures may run on any number of threads at once, so they should
+ * keep to themselves, and the collection mustn't change while they run.
+ * The lists returned are fixed-size, like those of {@link Arrays#asList}.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Parallel
+{
+    /**
+     * Collections up to this size are done on the calling thread.
+     */
+    public static final int DEFAULT_CUTOFF = 1024;
+
+    /*
+     * Ordered, on the common pool.
+     */
+    public Parallel() {
+        this(ForkJoinPool.commonPool(), true, DEFAULT_CUTOFF);
+    }
+
+    public Parallel(final ForkJoinPool pool, final boolean ordered) {
+        this(pool, ordered, DEFAULT_CUTOFF);
+    }
+
+    public Parallel(final ForkJoinPool pool, final boolean ordered, final int sequentialCutoff) {
+        if (sequentialCutoff < 1)
+            throw new IllegalArgumentException("The sequential cutoff must be positive: " + sequentialCutoff);
+        this.pool = pool;
+        this.ordered = ordered;
+        this.cutoff = sequentialCutoff;
+    }
+
+    /*
+     * Returns what the closure returns for each item.
+     */
+    public List<Object> map(final Collection<?> items, final Closure function) {
+        final Closure1 fn = Closures.arity1(function);
+        final Object[] in = items.toArray();
+        final Object[] out = new Object[in.length];
+        run(in, new Op() {
+            Object leaf(final Object[] items, final int lo, final int hi) {
+                for (int i = lo; i < hi; i++)
+                    out[i] = fn.apply(items[i]);
+                return null;
+            }
+        });
+        return Arrays.asList(out);
+    }
+
+    /*
+     * Returns the items the closure returns Boolean.TRUE for.
+     */
+    public List<Object> filter(final Collection<?> items, final Closure predicate) {
+        final Closure1 fn = Closures.arity1(predicate);
+        return flatten(run(items.toArray(), new Op() {
+            Object leaf(final Object[] items, final int lo, final int hi) {
+                final List<Object> kept = new ArrayList<Object>();
+                for (int i = lo; i < hi; i++)
+                    if (Boolean.TRUE.equals(fn.apply(items[i])))
+                        kept.add(items[i]);
+                return kept;
+            }
+            Object combine(final Object left, final Object right) {
+                return Concat.of(left, right);
+            }
+        }));
+    }
+
+    /*
+     * Returns everything in the collections (or other iterables)
+     * the closure returns for each item, skipping nulls.
+     */
+    public List<Object> flatMap(final Collection<?> items, final Closure function) {
+        final Closure1 fn = Closures.arity1(function);
+        return flatten(run(items.toArray(), new Op() {
+            Object leaf(final Object[] items, final int lo, final int hi) {
+                final List<Object> results = new ArrayList<Object>();
+                for (int i = lo; i < hi; i++) {
+                    final Object result = fn.apply(items[i]);
+                    if (result instanceof Collection)
+                        results.addAll((Collection<?>) result);
+                    else if (result != null)
+                        for (final Object o : (Iterable<?>) result)
+                            results.add(o);
+                }
+                return results;
+            }
+            Object combine(final Object left, final Object right) {
+                return Concat.of(left, right);
+            }
+        }));
+    }
+
+    /*
+     * Combines the items two at a time with the reducer, which
+     * must be associative, since the pieces are reduced on their
+     * own first. Returns null for an empty collection.
+     */
+    public Object reduce(final Collection<?> items, final Closure reducer) {
+        final Closure2 fn = Closures.arity2(reducer);
+        final Object result = run(items.toArray(), new Op() {
+            Object leaf(final Object[] items, final int lo, final int hi) {
+                if (lo == hi)
+                    return NOTHING;
+                Object result = items[lo];
+                for (int i = lo + 1; i < hi; i++)
+                    result = fn.apply(result, items[i]);
+                return result;
+            }
+            Object combine(final Object left, final Object right) {
+                return left == NOTHING ? right : right == NOTHING ? left : fn.apply(left, right);
+            }
+        });
+        return result == NOTHING ? null : result;
+    }
+
+    /*
+     * Groups the items by what the closure returns for each of
+     * them. The groups of an ordered Parallel come in the order
+     * their keys first turn up, and hold their items in order.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Object, List<Object>> groupBy(final Collection<?> items, final Closure classifier) {
+        final Closure1 fn = Closures.arity1(classifier);
+        final Object result = run(items.toArray(), new Op() {
+            Object leaf(final Object[] items, final int lo, final int hi) {
+                final Map<Object, List<Object>> groups = ordered
+                        ? new LinkedHashMap<Object, List<Object>>()
+                        : new HashMap<Object, List<Object>>();
+                for (int i = lo; i < hi; i++) {
+                    final Object key = fn.apply(items[i]);
+                    List<Object> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<Object>();
+                        groups.put(key, group);
+                    }
+                    group.add(items[i]);
+                }
+                return groups;
+            }
+            Object combine(final Object left, final Object right) {
+                Map<Object, List<Object>> into = (Map<Object, List<Object>>) left;
+                Map<Object, List<Object>> from = (Map<Object, List<Object>>) right;
+                if (!ordered && from.size() > into.size()) {
+                    into = from;
+                    from = (Map<Object, List<Object>>) left;
+                }
+                for (final Map.Entry<Object, List<Object>> entry : from.entrySet()) {
+                    final List<Object> group = into.get(entry.getKey());
+                    if (group == null)
+                        into.put(entry.getKey(), entry.getValue());
+                    else
+                        group.addAll(entry.getValue());
+                }
+                return into;
+            }
+        });
+        return (Map<Object, List<Object>>) result;
+    }
+
+    /*
+     * Runs an operation over all of the items, on the calling
+     * thread if there are too few to be worth splitting.
+     */
+    private Object run(final Object[] items, final Op op) {
+        final int leafSize = Math.max(cutoff, items.length / (pool.getParallelism() * 4));
+        final Task task = new Task(op, items, leafSize, 0, items.length);
+        return items.length <= cutoff ? task.compute() : pool.invoke(task);
+    }
+
+    /*
+     * Copies the pieces collected by filter or flatMap into
+     * one list, in order.
+     */
+    private static List<Object> flatten(final Object pieces) {
+        final Object[] out = new Object[Concat.size(pieces)];
+        Concat.copy(pieces, out, 0);
+        return Arrays.asList(out);
+    }
+
+    /*
+     * What an operation does with a range of items, and how it
+     * puts the results of two neighbouring ranges together.
+     */
+    private abstract static class Op {
+        abstract Object leaf(Object[] items, int lo, int hi);
+
+        Object combine(final Object left, final Object right) {
+            return null;
+        }
+    }
+
+    /*
+     * Splits a range of items in half until it's down to the
+     * leaf size, or until the pool has plenty of other work to
+     * steal, when the rest of the range is done in one go.
+     */
+    private static final class Task extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        Task(final Op op, final Object[] items, final int leafSize, final int lo, final int hi) {
+            this.op = op;
+            this.items = items;
+            this.leafSize = leafSize;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected Object compute() {
+            if (hi - lo <= leafSize || (inForkJoinPool() && getSurplusQueuedTaskCount() > SURPLUS))
+                return op.leaf(items, lo, hi);
+
+            final int mid = (lo + hi) >>> 1;
+            final Task right = new Task(op, items, leafSize, mid, hi);
+            right.fork();
+            final Object left = new Task(op, items, leafSize, lo, mid).compute();
+            return op.combine(left, right.join());
+        }
+
+        final private Op op;
+        final private Object[] items;
+        final private int leafSize;
+        final private int lo;
+        final private int hi;
+    }
+
+    /*
+     * Two pieces of a result joined without copying them; the
+     * copying happens once, at the end.
+     */
+    private static final class Concat {
+        static Object of(final Object left, final Object right) {
+            final int leftSize = size(left);
+            final int rightSize = size(right);
+            if (leftSize == 0)
+                return right;
+            if (rightSize == 0)
+                return left;
+            return new Concat(left, right, leftSize + rightSize);
+        }
+
+        static int size(final Object piece) {
+            return piece instanceof Concat ? ((Concat) piece).size : ((List<?>) piece).size();
+        }
+
+        static int copy(final Object piece, final Object[] out, final int at) {
+            if (piece instanceof Concat) {
+                final Concat concat = (Concat) piece;
+                return copy(concat.right, out, copy(concat.left, out, at));
+            }
+            final List<?> list = (List<?>) piece;
+            for (int i = 0; i < list.size(); i++)
+                out[at + i] = list.get(i);
+            return at + list.size();
+        }
+
+        private Concat(final Object left, final Object right, final int size) {
+            this.left = left;
+            this.right = right;
+            this.size = size;
+        }
+
+        final private Object left;
+        final private Object right;
+        final private int size;
+    }
+
+    private static final Object NOTHING = new Object();
+    private static final int SURPLUS = 3;
+
+    final private ForkJoinPool pool;
+    final private boolean ordered;
+    final private int cutoff;
+}
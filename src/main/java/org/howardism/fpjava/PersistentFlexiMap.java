@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.howardism.options.Option;
+
+/**
+ * A thread-safe {@link FlexiMap} whose contents can be frozen at any moment
+ * with {@link #snapshot()}, at no more cost than reading a field.
+ * <p>
+ * The entries live in a hash array mapped trie that is never changed in
+ * place. A put or a remove builds new nodes along the path to its key,
+ * sharing the rest of the trie with the version before it, and then
+ * publishes the new root. A snapshot just holds on to a root, so it stays
+ * exactly as it was while the map moves on, and can be read or iterated
+ * without any locking.
+ * </p><p>
+ * Writers take turns, so "onPut" is called once per put and sees the
+ * latest value, just like {@link ConcurrentFlexiMap}. Readers never wait.
+ * A snapshot only shares the values themselves, so it is only as frozen as
+ * they are: an "onPut" closure that changes a value in place (appending to
+ * a list, say) changes it in every snapshot too, and should make a new
+ * value instead.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PersistentFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object> {
+
+    public PersistentFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        onPut = putfn.isPresent() ? Closures.arity2(putfn.get()) : null;
+        onGet = getfn.isPresent() ? Closures.arity2(getfn.get()) : null;
+    }
+
+    public Object get(final Object key) {
+        final Object value = find(current.root, key);
+        return transformGet(key, value == ABSENT ? null : value);
+    }
+
+    public boolean containsKey(final Object key) {
+        return find(current.root, key) != ABSENT;
+    }
+
+    public Object put(final Object key, final Object value) {
+        final Object k = ProbeTable.maskNull(key);
+        final int hash = hash(k);
+        final Object oldvalue;
+        synchronized (writeLock) {
+            final Version version = current;
+            final Object found = version.root.find(0, hash, k);
+            oldvalue = found == ABSENT ? null : found;
+            final Node root = version.root.assoc(0, hash, k, transformPut(oldvalue, value));
+            current = new Version(root, found == ABSENT ? version.size + 1 : version.size);
+        }
+        return transformGet(key, oldvalue);
+    }
+
+    public Object remove(final Object key) {
+        final Object k = ProbeTable.maskNull(key);
+        final int hash = hash(k);
+        Object oldvalue = null;
+        synchronized (writeLock) {
+            final Version version = current;
+            final Object found = version.root.find(0, hash, k);
+            if (found != ABSENT) {
+                oldvalue = found;
+                final Node root = version.root.without(0, hash, k);
+                current = new Version(root == null ? BitmapNode.EMPTY : root, version.size - 1);
+            }
+        }
+        return transformGet(key, oldvalue);
+    }
+
+    public void clear() {
+        synchronized (writeLock) {
+            current = EMPTY;
+        }
+    }
+
+    public int size() {
+        return current.size;
+    }
+
+    public boolean isEmpty() {
+        return current.size == 0;
+    }
+
+    /*
+     * Iterates over the version current when the iterator was
+     * made. Removing through it removes from the live map.
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator(current.root, PersistentFlexiMap.this);
+                }
+                public int size() {
+                    return current.size;
+                }
+                public void clear() {
+                    PersistentFlexiMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Returns a read-only map of the entries as they are right now. Later
+     * changes to this map don't show up in it. Values still go through
+     * "onGet" as they are read.
+     */
+    public Map<Object, Object> snapshot() {
+        return new Snapshot(current);
+    }
+
+    Object transformPut(final Object oldvalue, final Object value) {
+        if (onPut != null)
+            return onPut.apply(oldvalue, value);
+        else
+            return value;
+    }
+
+    Object transformGet(final Object key, final Object value) {
+        if (onGet != null)
+            return onGet.apply(key, value);
+        else
+            return value;
+    }
+
+    private static Object find(final Node root, final Object key) {
+        final Object k = ProbeTable.maskNull(key);
+        return root.find(0, hash(k), k);
+    }
+
+    private static int hash(final Object maskedKey) {
+        final int h = maskedKey.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean eq(final Object a, final Object b) {
+        return a == b || a.equals(b);
+    }
+
+    private static int bitFor(final int hash, final int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /*
+     * A root and the number of entries under it, published
+     * together so a snapshot's size always matches its trie.
+     */
+    private static final class Version {
+        Version(final Node root, final int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        final Node root;
+        final int size;
+    }
+
+    /*
+     * Every node keeps its entries as pairs in one array: a key
+     * followed by its value, or a null key followed by the node
+     * a level below. Keys are masked, so a null key can only
+     * mean a child node. None of these methods change a node;
+     * they return a new one (or the same one, if nothing needed
+     * changing).
+     */
+    private abstract static class Node {
+        Node(final Object[] array) {
+            this.array = array;
+        }
+
+        /*
+         * Returns the key's value, or ABSENT.
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(int shift, int hash, Object key, Object value);
+
+        /*
+         * Returns null when the last entry goes.
+         */
+        abstract Node without(int shift, int hash, Object key);
+
+        final Object[] array;
+    }
+
+    /*
+     * Holds the entries whose hashes share the bits above this
+     * level, indexed by the next five bits. Only the slots that
+     * are in use take up room in the array.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        BitmapNode(final int bitmap, final Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        Object find(final int shift, final int hash, final Object key) {
+            final int bit = bitFor(hash, shift);
+            if ((bitmap & bit) == 0)
+                return ABSENT;
+            final int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            final Object k = array[i];
+            if (k == null)
+                return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            return eq(key, k) ? array[i + 1] : ABSENT;
+        }
+
+        Node assoc(final int shift, final int hash, final Object key, final Object value) {
+            final int bit = bitFor(hash, shift);
+            final int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+
+            if ((bitmap & bit) == 0) {
+                final Object[] a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, i);
+                a[i] = key;
+                a[i + 1] = value;
+                System.arraycopy(array, i, a, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, a);
+            }
+
+            final Object k = array[i];
+            final Object v = array[i + 1];
+            if (k == null) {
+                final Node child = ((Node) v).assoc(shift + 5, hash, key, value);
+                return child == v ? this : with(i, null, child);
+            }
+            if (eq(key, k))
+                return v == value ? this : with(i, k, value);
+            return with(i, null, pair(shift + 5, k, v, hash, key, value));
+        }
+
+        Node without(final int shift, final int hash, final Object key) {
+            final int bit = bitFor(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            final int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+
+            final Object k = array[i];
+            if (k == null) {
+                final Node child = ((Node) array[i + 1]).without(shift + 5, hash, key);
+                if (child == array[i + 1])
+                    return this;
+                if (child != null)
+                    return with(i, null, child);
+            }
+            else if (!eq(key, k)) {
+                return this;
+            }
+
+            if (bitmap == bit)
+                return null;
+            final Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, a);
+        }
+
+        private BitmapNode with(final int i, final Object key, final Object value) {
+            final Object[] a = array.clone();
+            a[i] = key;
+            a[i + 1] = value;
+            return new BitmapNode(bitmap, a);
+        }
+
+        /*
+         * Makes a node for two entries that landed in the same
+         * slot. Keys whose whole hashes match go in a collision
+         * node; any others part ways within the next few levels.
+         */
+        private static Node pair(final int shift, final Object k1, final Object v1,
+                                 final int h2, final Object k2, final Object v2) {
+            final int h1 = hash(k1);
+            if (h1 == h2)
+                return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+            return EMPTY.assoc(shift, h1, k1, v1).assoc(shift, h2, k2, v2);
+        }
+
+        final private int bitmap;
+    }
+
+    /*
+     * Holds keys that have exactly the same hash, searched one
+     * after another.
+     */
+    private static final class CollisionNode extends Node {
+        CollisionNode(final int hash, final Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        Object find(final int shift, final int hash, final Object key) {
+            if (hash != this.hash)
+                return ABSENT;
+            final int i = indexOf(key);
+            return i >= 0 ? array[i + 1] : ABSENT;
+        }
+
+        Node assoc(final int shift, final int hash, final Object key, final Object value) {
+            if (hash != this.hash)
+                return new BitmapNode(bitFor(this.hash, shift), new Object[] { null, this })
+                    .assoc(shift, hash, key, value);
+
+            final int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value)
+                    return this;
+                final Object[] a = array.clone();
+                a[i + 1] = value;
+                return new CollisionNode(hash, a);
+            }
+            final Object[] a = new Object[array.length + 2];
+            System.arraycopy(array, 0, a, 0, array.length);
+            a[array.length] = key;
+            a[array.length + 1] = value;
+            return new CollisionNode(hash, a);
+        }
+
+        Node without(final int shift, final int hash, final Object key) {
+            if (hash != this.hash)
+                return this;
+            final int i = indexOf(key);
+            if (i < 0)
+                return this;
+            if (array.length == 2)
+                return null;
+            final Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+            return new CollisionNode(hash, a);
+        }
+
+        private int indexOf(final Object key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (eq(key, array[i]))
+                    return i;
+            return -1;
+        }
+
+        final private int hash;
+    }
+
+    /*
+     * A read-only map over one version of the trie.
+     */
+    private final class Snapshot extends AbstractMap<Object, Object> {
+        Snapshot(final Version version) {
+            this.version = version;
+        }
+
+        public Object get(final Object key) {
+            final Object value = find(version.root, key);
+            return transformGet(key, value == ABSENT ? null : value);
+        }
+
+        public boolean containsKey(final Object key) {
+            return find(version.root, key) != ABSENT;
+        }
+
+        public int size() {
+            return version.size;
+        }
+
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator(version.root, null);
+                }
+                public int size() {
+                    return version.size;
+                }
+            };
+        }
+
+        final private Version version;
+    }
+
+    /*
+     * Walks the trie depth first, with a stack of the arrays
+     * on the way down. A trie is never more than eight levels
+     * deep: seven levels of five bits cover the whole hash, and
+     * a collision node may sit below those.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        EntryIterator(final Node root, final PersistentFlexiMap owner) {
+            this.owner = owner;
+            arrays[0] = root.array;
+        }
+
+        public boolean hasNext() {
+            while (depth >= 0) {
+                final Object[] a = arrays[depth];
+                if (positions[depth] >= a.length) {
+                    depth--;
+                    continue;
+                }
+                if (a[positions[depth]] != null)
+                    return true;
+                final Node child = (Node) a[positions[depth] + 1];
+                positions[depth] += 2;
+                depth++;
+                arrays[depth] = child.array;
+                positions[depth] = 0;
+            }
+            return false;
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Object[] a = arrays[depth];
+            final int i = positions[depth];
+            positions[depth] += 2;
+            lastKey = ProbeTable.unmaskNull(a[i]);
+            canRemove = true;
+            return new AbstractMap.SimpleImmutableEntry<Object, Object>(lastKey, transformGet(lastKey, a[i + 1]));
+        }
+
+        public void remove() {
+            if (owner == null)
+                throw new UnsupportedOperationException("A snapshot can't be changed");
+            if (!canRemove)
+                throw new IllegalStateException();
+            owner.remove(lastKey);
+            canRemove = false;
+        }
+
+        final private PersistentFlexiMap owner;
+        final private Object[][] arrays = new Object[10][];
+        final private int[] positions = new int[10];
+        private int depth = 0;
+        private Object lastKey;
+        private boolean canRemove;
+    }
+
+    private static final Object ABSENT = new Object();
+    private static final Version EMPTY = new Version(BitmapNode.EMPTY, 0);
+
+    final private Closure2 onPut;
+    final private Closure2 onGet;
+    final private Object writeLock = new Object();
+    private volatile Version current = EMPTY;
+
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+}
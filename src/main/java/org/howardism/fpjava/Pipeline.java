@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * A chain of one argument closures (validate, default a null, transform,
+ * and so on) fused into a single {@link MethodHandle}, instead of a closure
+ * calling a closure calling a closure.
+ * <p>
+ * Each stage is called through {@link Closure1}, so no argument array is
+ * made along the way, and the stages are glued together with
+ * {@link MethodHandles#filterReturnValue} and
+ * {@link MethodHandles#guardWithTest}. The JIT sees the whole pipeline as one
+ * call, and can inline as much of it as it likes. A pipeline given another
+ * pipeline as a stage splices in its handle rather than calling it.
+ * </p><p>
+ * The JIT can only fold the stages into the caller when it knows which
+ * pipeline it's calling. For the full effect, keep the handle from
+ * {@link #asMethodHandle()} in a <code>static final</code> field and call
+ * it with <code>invokeExact</code>; calling {@link #apply(Object)} on a
+ * pipeline held anywhere else still works, but goes through the handle
+ * as an ordinary, uninlined call.
+ * </p><p>
+ * Pipelines are immutable: <code>andThen</code> and friends return a new
+ * one. A pipeline is itself a {@link Closure} and a {@link Closure1}, so it
+ * can go anywhere a closure can.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Pipeline implements Closure, Closure1
+{
+    /*
+     * A pipeline of just the one closure, called with one
+     * argument.
+     */
+    public static Pipeline of(final Closure fn) {
+        return new Pipeline(handleFor(fn));
+    }
+
+    /*
+     * A pipeline that returns its argument, handy as a start
+     * for building one up.
+     */
+    public static Pipeline identity() {
+        return IDENTITY;
+    }
+
+    /*
+     * Calls the test with the argument, and then either the
+     * first or the second closure with the same argument. Any
+     * value other than Boolean.TRUE counts as false.
+     */
+    public static Pipeline branch(final Closure test, final Closure then, final Closure otherwise) {
+        return new Pipeline(MethodHandles.guardWithTest(testFor(test), handleFor(then), handleFor(otherwise)));
+    }
+
+    /*
+     * Returns a pipeline that calls this one, and then the
+     * given closure with what this one returned.
+     */
+    public Pipeline andThen(final Closure next) {
+        return new Pipeline(MethodHandles.filterReturnValue(handle, handleFor(next)));
+    }
+
+    /*
+     * Returns a pipeline that calls the given closure, and then
+     * this one with what it returned.
+     */
+    public Pipeline compose(final Closure before) {
+        return new Pipeline(MethodHandles.filterReturnValue(handleFor(before), handle));
+    }
+
+    /*
+     * Adds a stage that only runs when the test passes for the
+     * value coming out of this pipeline. Otherwise the value
+     * goes on unchanged.
+     */
+    public Pipeline when(final Closure test, final Closure then) {
+        return andThen(branch(test, then, IDENTITY));
+    }
+
+    /*
+     * Adds a stage that runs one closure or the other,
+     * depending on the test, with the value coming out of this
+     * pipeline.
+     */
+    public Pipeline when(final Closure test, final Closure then, final Closure otherwise) {
+        return andThen(branch(test, then, otherwise));
+    }
+
+    /*
+     * The fused handle, of type (Object)Object, for callers
+     * that want to keep it in a static final field of their
+     * own, where the JIT treats it as a constant.
+     */
+    public MethodHandle asMethodHandle() {
+        return handle;
+    }
+
+    public Object apply(final Object a) {
+        try {
+            return (Object) handle.invokeExact(a);
+        }
+        catch (final RuntimeException e) {
+            throw e;
+        }
+        catch (final Error e) {
+            throw e;
+        }
+        catch (final Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    public Object apply(final Object... objects) {
+        if (objects.length != 1)
+            throw new IllegalArgumentException("Expected 1 argument, but got " + objects.length);
+        return apply(objects[0]);
+    }
+
+    private Pipeline(final MethodHandle handle) {
+        this.handle = handle;
+    }
+
+    /*
+     * A pipeline is spliced in as is; any other closure is
+     * called through its one argument version.
+     */
+    private static MethodHandle handleFor(final Closure fn) {
+        if (fn == null)
+            throw new NullPointerException("A pipeline stage can't be null");
+        if (fn instanceof Pipeline)
+            return ((Pipeline) fn).handle;
+        return APPLY.bindTo(Closures.arity1(fn));
+    }
+
+    private static MethodHandle testFor(final Closure test) {
+        return MethodHandles.filterReturnValue(handleFor(test), IS_TRUE);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean isTrue(final Object value) {
+        return value == Boolean.TRUE || Boolean.TRUE.equals(value);
+    }
+
+    private static final MethodHandle APPLY;
+    private static final MethodHandle IS_TRUE;
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            APPLY = lookup.findVirtual(Closure1.class, "apply", MethodType.methodType(Object.class, Object.class));
+            IS_TRUE = lookup.findStatic(Pipeline.class, "isTrue", MethodType.methodType(boolean.class, Object.class));
+        }
+        catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final Pipeline IDENTITY =
+            new Pipeline(MethodHandles.identity(Object.class));
+
+    final private MethodHandle handle;
+}
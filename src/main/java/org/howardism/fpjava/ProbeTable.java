@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+/**
+ * The storage behind a {@link FlexiMap}: an open-addressing hash table using
+ * linear probing. Keys and values are interleaved in a single array (the key
+ * at an even index, its value right after it), so a lookup touches one
+ * array and usually one cache line.
+ * <p>
+ * Removed entries leave a tombstone behind, which keeps the probe sequences
+ * of the other keys intact. Tombstones are swept out whenever the table is
+ * rebuilt.
+ * </p><p>
+ * This class knows nothing about closures; it just stores whatever it is
+ * given. It is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+final class ProbeTable
+{
+    /**
+     * Stands in for a <code>null</code> key, since an empty slot is null.
+     */
+    static final Object NULL_KEY = new Object();
+
+    /**
+     * Marks a slot whose entry has been removed.
+     */
+    static final Object DELETED = new Object();
+
+    private static final int MINIMUM_CAPACITY = 8;
+
+    ProbeTable() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    ProbeTable(final int expectedSize) {
+        table = new Object[2 * capacityFor(expectedSize)];
+    }
+
+    /*
+     * Returns the index of the key's slot if the key is present. Otherwise,
+     * returns (-insertionPoint - 1), where the insertion point is the slot
+     * a new entry for this key should go into. Callers can then read the old
+     * value and write the new one without probing a second time.
+     */
+    int probe(final Object key) {
+        final Object k = maskNull(key);
+        final Object[] tab = table;
+        final int len = tab.length;
+        int i = indexFor(k, len);
+        int firstDeleted = -1;
+
+        while (true) {
+            final Object item = tab[i];
+            if (item == null)
+                return -(firstDeleted >= 0 ? firstDeleted : i) - 1;
+            if (item == DELETED) {
+                if (firstDeleted < 0)
+                    firstDeleted = i;
+            }
+            else if (item == k || item.equals(k))
+                return i;
+            i = nextIndex(i, len);
+        }
+    }
+
+    /*
+     * Returns the index of the key's slot, or -1 if it isn't in the table.
+     */
+    int indexOf(final Object key) {
+        final int i = probe(key);
+        return i >= 0 ? i : -1;
+    }
+
+    /*
+     * Stores a new entry at an insertion point given by probe(). The table
+     * may be rebuilt afterwards, so any slot index held by the caller is no
+     * longer valid.
+     */
+    void insertAt(final int slot, final Object key, final Object value) {
+        if (table[slot] == null)
+            used++;
+        table[slot] = maskNull(key);
+        table[slot + 1] = value;
+        size++;
+        if (used > threshold())
+            rehash(size + 1);
+    }
+
+    /*
+     * Stores a value for a key, returning the previous value (if any).
+     */
+    Object put(final Object key, final Object value) {
+        final int i = probe(key);
+        if (i >= 0) {
+            final Object old = table[i + 1];
+            table[i + 1] = value;
+            return old;
+        }
+        insertAt(-i - 1, key, value);
+        return null;
+    }
+
+    /*
+     * Leaves a tombstone in the given (occupied) slot.
+     */
+    void removeAt(final int slot) {
+        table[slot] = DELETED;
+        table[slot + 1] = null;
+        size--;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(table, null);
+        size = 0;
+        used = 0;
+    }
+
+    /*
+     * Makes room for the given number of entries in one go, instead of
+     * rebuilding the table several times as it grows.
+     */
+    void ensureCapacity(final int expectedSize) {
+        if (capacityFor(expectedSize) * 2 > table.length)
+            rehash(expectedSize);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /*
+     * The raw slots: even indexes are keys (possibly NULL_KEY or DELETED,
+     * or null when empty), odd indexes are their values. Views iterate over
+     * this directly.
+     */
+    Object[] slots() {
+        return table;
+    }
+
+    /*
+     * Returns the key at a slot, translating NULL_KEY back to null.
+     */
+    Object keyAt(final int slot) {
+        return unmaskNull(table[slot]);
+    }
+
+    Object valueAt(final int slot) {
+        return table[slot + 1];
+    }
+
+    void setValueAt(final int slot, final Object value) {
+        table[slot + 1] = value;
+    }
+
+    /*
+     * Returns true if the slot holds a live entry.
+     */
+    static boolean isLive(final Object item) {
+        return item != null && item != DELETED;
+    }
+
+    static Object maskNull(final Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    static Object unmaskNull(final Object key) {
+        return key == NULL_KEY ? null : key;
+    }
+
+    /*
+     * Rebuilds the table big enough to hold the given number of entries,
+     * dropping any tombstones along the way.
+     */
+    private void rehash(final int expectedSize) {
+        final Object[] old = table;
+        final int len = 2 * capacityFor(Math.max(expectedSize, size));
+        final Object[] tab = new Object[len];
+
+        for (int j = 0; j < old.length; j += 2) {
+            final Object item = old[j];
+            if (isLive(item)) {
+                int i = indexFor(item, len);
+                while (tab[i] != null)
+                    i = nextIndex(i, len);
+                tab[i] = item;
+                tab[i + 1] = old[j + 1];
+            }
+        }
+        table = tab;
+        used = size;
+    }
+
+    /*
+     * Resize when two-thirds of the slots are taken (counting tombstones),
+     * which keeps the probe sequences short.
+     */
+    private int threshold() {
+        return table.length / 2 * 2 / 3;
+    }
+
+    private static int capacityFor(final int expectedSize) {
+        final long wanted = (long) expectedSize * 3 / 2 + 1;
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < wanted && capacity < (1 << 29))
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /*
+     * Spreads the hash code so that keys with clustered hash codes (small
+     * integers, for instance) don't end up in one long probe sequence.
+     */
+    private static int indexFor(final Object key, final int len) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) << 1) & (len - 1);
+    }
+
+    private static int nextIndex(final int i, final int len) {
+        return (i + 2) & (len - 1);
+    }
+
+    private Object[] table;
+    private int size;
+    private int used;
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} that tells a {@link ChangePublisher} about every
+ * change made to it: the key, the value stored before and the value stored
+ * after (the values as "onPut" left them, not as "onGet" would show them).
+ * <p>
+ * Publishing only adds the change to each subscriber's buffer, and costs
+ * nothing at all while there are no subscribers. Like any other
+ * {@link FlexiMap}, this map is not thread-safe, but its subscribers hear
+ * about the changes on threads of their own. With a publisher that blocks
+ * writers, a subscriber mustn't wait on whatever lock keeps the writers
+ * of this map apart.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PublishingFlexiMap extends FlexiMap {
+
+    public PublishingFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        this(putfn, getfn, new ChangePublisher());
+    }
+
+    public PublishingFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                              final ChangePublisher publisher) {
+        super(putfn, getfn);
+        this.publisher = publisher;
+    }
+
+    /*
+     * Subscribe to this to hear about the changes.
+     */
+    public ChangePublisher changes() {
+        return publisher;
+    }
+
+    void stored(final Object key, final Object oldvalue, final Object newvalue) {
+        if (publisher.hasSubscribers())
+            publisher.publish(new ChangePublisher.Change(ChangePublisher.Change.Kind.PUT, key, oldvalue, newvalue));
+    }
+
+    void removed(final Object key, final Object oldvalue) {
+        if (publisher.hasSubscribers())
+            publisher.publish(new ChangePublisher.Change(ChangePublisher.Change.Kind.REMOVE, key, oldvalue, null));
+    }
+
+    void cleared() {
+        if (publisher.hasSubscribers())
+            publisher.publish(new ChangePublisher.Change(ChangePublisher.Change.Kind.CLEAR, null, null, null));
+    }
+
+    boolean hasChangeHooks() {
+        return true;
+    }
+
+    final private ChangePublisher publisher;
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+/**
+ * A string built up a piece at a time. Appending doesn't copy anything: it
+ * makes a new rope holding the piece and pointing back at the old rope,
+ * which stays as it was. Building a string out of thousands of pieces
+ * therefore copies each character once instead of once per append. The
+ * string itself is only put together when it is asked for, and is kept
+ * from then on.
+ * <p>
+ * This is meant to be the value of a {@link FlexiMap} that accumulates
+ * strings for a key. Rather than an "onPut" closure that concatenates the
+ * old string with the new one, use the pair of closures given here:
+ * </p>
+ * <pre>
+ *   FlexiMap map = new FlexiMap( Some.thing(Rope.appending(", ")),   // put
+ *                                Some.thing(Rope.rendering()) );      // get
+ *   map.add("key", "another piece");
+ * </pre>
+ * <p>
+ * A get returns the string. So does a put, for the value it replaced,
+ * which means rendering the whole rope on every put; appending with
+ * {@link FlexiMap#add} instead skips that, and keeps each append constant
+ * time. Putting the string together isn't thread-safe, so a rope shouldn't
+ * be shared between threads before it has been rendered.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public final class Rope implements CharSequence
+{
+    public Rope() {
+        this(null, "");
+    }
+
+    public Rope(final Object first) {
+        this(null, String.valueOf(first));
+    }
+
+    private Rope(final Rope prefix, final String piece) {
+        this.prefix = prefix;
+        this.piece = piece;
+        this.length = (prefix == null ? 0 : prefix.length) + piece.length();
+    }
+
+    /*
+     * Returns a new rope with a piece added to the end, in
+     * constant time. This rope stays as it was.
+     */
+    public Rope append(final Object piece) {
+        final String s = String.valueOf(piece);
+        if (s.length() == 0)
+            return this;
+        return new Rope(this, s);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(final int index) {
+        return toString().charAt(index);
+    }
+
+    public CharSequence subSequence(final int start, final int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /*
+     * Puts the pieces together the first time it's called,
+     * walking back only as far as a rope that has already been
+     * rendered. The result then takes the place of the pieces,
+     * so the ropes in front of it can be collected.
+     */
+    public String toString() {
+        if (prefix == null)
+            return piece;
+
+        final char[] chars = new char[length];
+        int at = length;
+        Rope rope = this;
+        while (rope.prefix != null) {
+            at -= rope.piece.length();
+            rope.piece.getChars(0, rope.piece.length(), chars, at);
+            rope = rope.prefix;
+        }
+        rope.piece.getChars(0, rope.piece.length(), chars, 0);
+
+        piece = new String(chars);
+        prefix = null;
+        return piece;
+    }
+
+    /**
+     * Returns an "onPut" closure that starts a rope with the first value
+     * put for a key, and appends the separator and the value to it after
+     * that.
+     */
+    public static Closure appending(final String separator) {
+        return Closures.asClosure(new Closure2() {
+            public Object apply(final Object old, final Object value) {
+                if (old == null)
+                    return new Rope(value);
+                return ((Rope) old).append(separator).append(value);
+            }
+        });
+    }
+
+    /**
+     * Returns an "onGet" closure that turns a rope into its string.
+     */
+    public static Closure rendering() {
+        return Closures.asClosure(new Closure2() {
+            public Object apply(final Object key, final Object value) {
+                return value == null ? null : value.toString();
+            }
+        });
+    }
+
+    private Rope prefix;
+    private String piece;
+    final private int length;
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+
+/**
+ * A lazy sequence, whose <code>map</code>, <code>filter</code>,
+ * <code>take</code> and <code>zip</code> stages are closures. Nothing
+ * happens until something at the end (<code>each</code>,
+ * <code>toList</code>, <code>reduce</code>, an iterator) asks for the items.
+ * <p>
+ * That end runs a single loop pulling one item at a time through all of the
+ * stages, so there are no lists in between, and a sequence can go on
+ * forever as long as something (like <code>take</code>) stops it. Once a
+ * <code>take</code> has its items, nothing more is pulled from the source.
+ * Back to back <code>map</code>s are fused into one {@link Pipeline}, and
+ * back to back <code>take</code>s into one.
+ * </p><p>
+ * A sequence can be run any number of times (each run starts over from the
+ * source), unless its source is an {@link Iterator}. Sequences are
+ * immutable: every stage returns a new one.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public abstract class Seq implements Iterable<Object>
+{
+    public static Seq of(final Object... items) {
+        return of(Arrays.asList(items.clone()));
+    }
+
+    public static Seq of(final Iterable<?> items) {
+        return new Seq() {
+            Cursor cursor() {
+                return from(items.iterator());
+            }
+        };
+    }
+
+    /*
+     * A sequence that can only be run once, since the iterator
+     * can't start over.
+     */
+    public static Seq of(final Iterator<?> items) {
+        return new Seq() {
+            Cursor cursor() {
+                return from(items);
+            }
+        };
+    }
+
+    /*
+     * The integers from the first up to (but not including) the
+     * last.
+     */
+    public static Seq range(final int from, final int to) {
+        return new Seq() {
+            Cursor cursor() {
+                return new Cursor() {
+                    boolean advance() {
+                        if (next >= to)
+                            return false;
+                        current = next++;
+                        return true;
+                    }
+                    private int next = from;
+                };
+            }
+        };
+    }
+
+    /*
+     * The infinite sequence of the seed, what the closure
+     * returns for the seed, what it returns for that, and so on.
+     */
+    public static Seq iterate(final Object seed, final Closure next) {
+        final Closure1 fn = Closures.arity1(next);
+        return new Seq() {
+            Cursor cursor() {
+                return new Cursor() {
+                    boolean advance() {
+                        current = started ? fn.apply(current) : seed;
+                        started = true;
+                        return true;
+                    }
+                    private boolean started = false;
+                };
+            }
+        };
+    }
+
+    public Seq map(final Closure function) {
+        return new Mapped(this, function);
+    }
+
+    /*
+     * Keeps the items the closure returns Boolean.TRUE for.
+     */
+    public Seq filter(final Closure predicate) {
+        final Seq upstream = this;
+        final Closure1 fn = Closures.arity1(predicate);
+        return new Seq() {
+            Cursor cursor() {
+                final Cursor in = upstream.cursor();
+                return new Cursor() {
+                    boolean advance() {
+                        while (in.advance()) {
+                            if (Boolean.TRUE.equals(fn.apply(in.current))) {
+                                current = in.current;
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * Just the first n items.
+     */
+    public Seq take(final long n) {
+        if (n < 0)
+            throw new IllegalArgumentException("Can't take a negative number of items: " + n);
+        return new Taken(this, n);
+    }
+
+    /*
+     * Pairs up the items of the two sequences with the closure,
+     * stopping when either one runs out.
+     */
+    public Seq zip(final Seq other, final Closure combiner) {
+        final Seq upstream = this;
+        final Closure2 fn = Closures.arity2(combiner);
+        return new Seq() {
+            Cursor cursor() {
+                final Cursor left = upstream.cursor();
+                final Cursor right = other.cursor();
+                return new Cursor() {
+                    boolean advance() {
+                        if (!left.advance() || !right.advance())
+                            return false;
+                        current = fn.apply(left.current, right.current);
+                        return true;
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * Calls the closure with every item. (Not forEach, which
+     * Iterable already has for a Consumer.)
+     */
+    public void each(final Closure action) {
+        final Closure1 fn = Closures.arity1(action);
+        final Cursor c = cursor();
+        while (c.advance())
+            fn.apply(c.current);
+    }
+
+    public List<Object> toList() {
+        final List<Object> items = new ArrayList<Object>();
+        final Cursor c = cursor();
+        while (c.advance())
+            items.add(c.current);
+        return items;
+    }
+
+    /*
+     * Combines the items two at a time, from the first to the
+     * last. Returns null for an empty sequence.
+     */
+    public Object reduce(final Closure reducer) {
+        final Closure2 fn = Closures.arity2(reducer);
+        final Cursor c = cursor();
+        if (!c.advance())
+            return null;
+        Object result = c.current;
+        while (c.advance())
+            result = fn.apply(result, c.current);
+        return result;
+    }
+
+    public Option<Object> first() {
+        final Cursor c = cursor();
+        return c.advance() ? Some.thing(c.current) : None.thing();
+    }
+
+    public long count() {
+        long count = 0;
+        final Cursor c = cursor();
+        while (c.advance())
+            count++;
+        return count;
+    }
+
+    public Iterator<Object> iterator() {
+        final Cursor c = cursor();
+        return new Iterator<Object>() {
+            public boolean hasNext() {
+                if (!ready && !done) {
+                    ready = c.advance();
+                    done = !ready;
+                }
+                return ready;
+            }
+
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                ready = false;
+                return c.current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private boolean ready = false;
+            private boolean done = false;
+        };
+    }
+
+    /*
+     * Starts a run through the sequence.
+     */
+    abstract Cursor cursor();
+
+    /*
+     * Pulls the items of one run. Each call to advance() moves
+     * on to the next item and leaves it in current, or returns
+     * false when there are no more.
+     */
+    abstract static class Cursor {
+        abstract boolean advance();
+
+        Object current;
+    }
+
+    private static Cursor from(final Iterator<?> items) {
+        return new Cursor() {
+            boolean advance() {
+                if (!items.hasNext())
+                    return false;
+                current = items.next();
+                return true;
+            }
+        };
+    }
+
+    /*
+     * A map of a map becomes one map, with the two closures
+     * fused into a pipeline.
+     */
+    private static final class Mapped extends Seq {
+        Mapped(final Seq upstream, final Closure function) {
+            if (upstream instanceof Mapped) {
+                final Mapped mapped = (Mapped) upstream;
+                this.upstream = mapped.upstream;
+                this.function = Pipeline.of(mapped.function).andThen(function);
+            }
+            else {
+                this.upstream = upstream;
+                this.function = function;
+            }
+            this.fn = Closures.arity1(this.function);
+        }
+
+        Cursor cursor() {
+            final Cursor in = upstream.cursor();
+            return new Cursor() {
+                boolean advance() {
+                    if (!in.advance())
+                        return false;
+                    current = fn.apply(in.current);
+                    return true;
+                }
+            };
+        }
+
+        final private Seq upstream;
+        final private Closure function;
+        final private Closure1 fn;
+    }
+
+    /*
+     * A take of a take is just the smaller one. The cursor
+     * stops before pulling the item after the last one taken.
+     */
+    private static final class Taken extends Seq {
+        Taken(final Seq upstream, final long n) {
+            if (upstream instanceof Taken) {
+                this.upstream = ((Taken) upstream).upstream;
+                this.n = Math.min(n, ((Taken) upstream).n);
+            }
+            else {
+                this.upstream = upstream;
+                this.n = n;
+            }
+        }
+
+        Cursor cursor() {
+            final Cursor in = upstream.cursor();
+            return new Cursor() {
+                boolean advance() {
+                    if (taken >= n || !in.advance())
+                        return false;
+                    taken++;
+                    current = in.current;
+                    return true;
+                }
+                private long taken = 0;
+            };
+        }
+
+        final private Seq upstream;
+        final private long n;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.howardism.options.Option;
+
+/**
+ * A thread-safe {@link FlexiMap} without any locks on the keys. The keys
+ * are split over a number of <i>shards</i>, and each shard is a plain
+ * {@link FlexiMap} owned by a thread of its own. Every get, put and remove
+ * becomes a command on the shard's queue, and the shard's thread runs them
+ * one after another, so the closures never run concurrently for the keys
+ * of a shard and need no synchronization at all.
+ * <p>
+ * Each operation comes in two flavors: the usual {@link Map} methods wait
+ * for the answer, while the <code>...Async</code> methods return a
+ * {@link CompletableFuture} straight away. A shard's thread sleeps when its
+ * queue is empty and, once woken, works through everything that has piled
+ * up before sleeping again. {@link #putAll(Map)} sends a single command to
+ * each shard for all of its keys.
+ * </p><p>
+ * The closures must not call back into this map; a shard waiting on
+ * itself would never finish. The views are copies taken a shard at a
+ * time. Closing the map runs whatever commands are queued, then stops the
+ * threads.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ShardedFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object>, Closeable {
+
+    /*
+     * One shard per processor, unless told otherwise.
+     */
+    public ShardedFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn) {
+        this(putfn, getfn, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn, final int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("The number of shards must be positive: " + shardCount);
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(FlexiMap.create(putfn, getfn));
+            shards[i].setName("FlexiMap shard " + i);
+            shards[i].setDaemon(true);
+            shards[i].start();
+        }
+    }
+
+    public CompletableFuture<Object> getAsync(final Object key) {
+        return shardFor(key).submit(new Command() {
+            Object run(final Map<Object, Object> map) {
+                return map.get(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Object> putAsync(final Object key, final Object value) {
+        return shardFor(key).submit(new Command() {
+            Object run(final Map<Object, Object> map) {
+                return map.put(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Object> removeAsync(final Object key) {
+        return shardFor(key).submit(new Command() {
+            Object run(final Map<Object, Object> map) {
+                return map.remove(key);
+            }
+        });
+    }
+
+    /*
+     * Groups the entries by shard, so each shard gets (and is
+     * woken for) one command holding all of its entries. The
+     * future completes when every shard is done.
+     */
+    public CompletableFuture<Void> putAllAsync(final Map<?, ?> entries) {
+        final List<List<Map.Entry<?, ?>>> groups = new ArrayList<List<Map.Entry<?, ?>>>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            groups.add(new ArrayList<Map.Entry<?, ?>>());
+        for (final Map.Entry<?, ?> entry : entries.entrySet())
+            groups.get(indexFor(entry.getKey())).add(entry);
+
+        final List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+        for (int i = 0; i < shards.length; i++) {
+            final List<Map.Entry<?, ?>> group = groups.get(i);
+            if (group.isEmpty())
+                continue;
+            futures.add(shards[i].submit(new Command() {
+                Object run(final Map<Object, Object> map) {
+                    for (final Map.Entry<?, ?> entry : group)
+                        map.put(entry.getKey(), entry.getValue());
+                    return null;
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    public Object get(final Object key) {
+        return await(getAsync(key));
+    }
+
+    public Object put(final Object key, final Object value) {
+        return await(putAsync(key, value));
+    }
+
+    public Object remove(final Object key) {
+        return await(removeAsync(key));
+    }
+
+    public void putAll(final Map<?, ?> entries) {
+        await(putAllAsync(entries));
+    }
+
+    public boolean containsKey(final Object key) {
+        return (Boolean) await(shardFor(key).submit(new Command() {
+            Object run(final Map<Object, Object> map) {
+                return map.containsKey(key);
+            }
+        }));
+    }
+
+    public int size() {
+        long total = 0;
+        for (final Object n : onEveryShard(new Command() {
+            Object run(final Map<Object, Object> map) {
+                return map.size();
+            }
+        }))
+            total += (Integer) n;
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    public void clear() {
+        onEveryShard(new Command() {
+            Object run(final Map<Object, Object> map) {
+                map.clear();
+                return null;
+            }
+        });
+    }
+
+    /*
+     * A copy of the entries, taken one shard at a time. Values
+     * set through an entry, and entries removed through the
+     * iterator, go back through the map.
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                final List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>();
+                for (final Object copy : onEveryShard(new Command() {
+                    Object run(final Map<Object, Object> map) {
+                        final List<Map.Entry<Object, Object>> list =
+                            new ArrayList<Map.Entry<Object, Object>>(map.size());
+                        for (final Map.Entry<Object, Object> entry : map.entrySet())
+                            list.add(new AbstractMap.SimpleEntry<Object, Object>(entry.getKey(), entry.getValue()) {
+                                private static final long serialVersionUID = 1L;
+
+                                public Object setValue(final Object v) {
+                                    final Object old = ShardedFlexiMap.this.put(getKey(), v);
+                                    super.setValue(ShardedFlexiMap.this.get(getKey()));
+                                    return old;
+                                }
+                            });
+                        return list;
+                    }
+                })) {
+                    @SuppressWarnings("unchecked")
+                    final List<Map.Entry<Object, Object>> list = (List<Map.Entry<Object, Object>>) copy;
+                    entries.addAll(list);
+                }
+                final Iterator<Map.Entry<Object, Object>> iter = entries.iterator();
+                return new Iterator<Map.Entry<Object, Object>>() {
+                    public boolean hasNext() {
+                        return iter.hasNext();
+                    }
+                    public Map.Entry<Object, Object> next() {
+                        last = iter.next();
+                        return last;
+                    }
+                    public void remove() {
+                        if (last == null)
+                            throw new IllegalStateException();
+                        ShardedFlexiMap.this.remove(last.getKey());
+                        last = null;
+                    }
+                    private Map.Entry<Object, Object> last;
+                };
+            }
+            public int size() {
+                return ShardedFlexiMap.this.size();
+            }
+            public void clear() {
+                ShardedFlexiMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Runs the commands already queued, then stops the shards' threads.
+     * Anything sent afterwards fails with an {@link IllegalStateException}.
+     */
+    public void close() {
+        closed = true;
+        for (final Shard shard : shards)
+            LockSupport.unpark(shard);
+
+        boolean interrupted = false;
+        for (final Shard shard : shards) {
+            while (shard.isAlive()) {
+                try {
+                    shard.join();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /*
+     * Sends a command to every shard, and waits for all of the
+     * answers (in shard order).
+     */
+    private List<Object> onEveryShard(final Command command) {
+        final List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>(shards.length);
+        for (final Shard shard : shards)
+            futures.add(shard.submit(command.copy()));
+        final List<Object> results = new ArrayList<Object>(shards.length);
+        for (final CompletableFuture<Object> future : futures)
+            results.add(await(future));
+        return results;
+    }
+
+    /*
+     * Waits for a future, handing back whatever the closures
+     * threw rather than a CompletionException wrapped around it.
+     */
+    private static <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private int indexFor(final Object key) {
+        final int h = (key == null ? 0 : key.hashCode()) * 0x85EBCA6B;
+        return ((h ^ (h >>> 15)) & 0x7FFFFFFF) % shards.length;
+    }
+
+    private Shard shardFor(final Object key) {
+        return shards[indexFor(key)];
+    }
+
+    /*
+     * Something for a shard's thread to do with its map. A
+     * command carries the future for its answer, so one sent to
+     * every shard is copied for each of them.
+     */
+    private abstract static class Command {
+        abstract Object run(Map<Object, Object> map);
+
+        Command copy() {
+            final Command original = this;
+            return new Command() {
+                Object run(final Map<Object, Object> map) {
+                    return original.run(map);
+                }
+            };
+        }
+
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+    }
+
+    /*
+     * A shard's thread, its map, and the queue of commands for
+     * it. Any thread may add to the queue, but only the shard's
+     * thread takes from it or touches the map.
+     */
+    private final class Shard extends Thread {
+        Shard(final Map<Object, Object> map) {
+            this.map = map;
+        }
+
+        /*
+         * A command that lands just as the map closes is taken
+         * back off the queue, unless the shard has already got
+         * to it.
+         */
+        CompletableFuture<Object> submit(final Command command) {
+            if (closed)
+                throw new IllegalStateException("The map has been closed");
+            queue.offer(command);
+            if (closed && queue.remove(command))
+                throw new IllegalStateException("The map has been closed");
+            if (sleeping)
+                LockSupport.unpark(this);
+            return command.future;
+        }
+
+        /*
+         * Drains the queue, then parks. The sleeping flag is set
+         * before the queue is checked one last time, so a command
+         * added in between either gets seen or unparks us.
+         */
+        public void run() {
+            while (true) {
+                Command command;
+                while ((command = queue.poll()) != null) {
+                    try {
+                        command.future.complete(command.run(map));
+                    } catch (final Throwable e) {
+                        command.future.completeExceptionally(e);
+                    }
+                }
+                if (closed && queue.isEmpty())
+                    return;
+                sleeping = true;
+                if (queue.isEmpty() && !closed)
+                    LockSupport.park(this);
+                sleeping = false;
+            }
+        }
+
+        final private Map<Object, Object> map;
+        final private ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<Command>();
+        private volatile boolean sleeping;
+    }
+
+    final private Shard[] shards;
+    private volatile boolean closed;
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link FlexiMap} restored from a <i>snapshot</i> file, without putting
+ * the entries back one at a time. The snapshot holds the values as they
+ * were stored (after "onPut"), along with a hash index of the keys, so
+ * opening one is just a matter of memory-mapping the file: no matter how
+ * many entries it has, it is ready to use right away.
+ * <p>
+ * Reads are answered straight from the mapped file. The first time a key
+ * is put or removed, its entry is copied into an ordinary {@link FlexiMap}
+ * (the <i>overlay</i>), which takes over for that key from then on. The
+ * "onPut" and "onGet" closures behave just as they would have on the
+ * original map.
+ * </p><p>
+ * Keys and values are written with {@link Codec}s (see {@link Codecs}).
+ * A snapshot file can't be larger than 2GB. The file stays mapped (and, on
+ * some systems, can't be replaced or deleted) until {@link #close()} is
+ * called, after which the map can't be used. Like {@link FlexiMap}, this
+ * map is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class SnapshotFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object>, Closeable {
+
+    /*
+     * Maps the snapshot file. The closures should be the same
+     * ones the original map was using.
+     */
+    public SnapshotFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn, final Path file,
+                            final Codec keyCodec, final Codec valueCodec) throws IOException {
+        this.overlay = new FlexiMap(putfn, getfn);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            base = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (base.capacity() < HEADER || base.getInt(0) != MAGIC)
+            throw new IOException(file + " isn't a FlexiMap snapshot");
+        baseLive = base.getInt(4);
+        mask = base.getInt(8) - 1;
+    }
+
+    /**
+     * Writes the entries of a map, as stored (before "onGet"), into a new
+     * snapshot file. The file is written under a temporary name and moved
+     * into place at the end, so an old snapshot is never left half-written.
+     */
+    public static void save(final FlexiMap map, final Path file,
+                            final Codec keyCodec, final Codec valueCodec) throws IOException {
+        final Writer writer = new Writer(file, keyCodec, valueCodec, map.size());
+        try {
+            final Object[] slots = map.table.slots();
+            for (int i = 0; i < slots.length; i += 2)
+                if (ProbeTable.isLive(slots[i]))
+                    writer.add(ProbeTable.unmaskNull(slots[i]), slots[i + 1]);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes this map, including any changes made since it was opened,
+     * into a new snapshot file.
+     */
+    public void save(final Path file) throws IOException {
+        final Writer writer = new Writer(file, keyCodec, valueCodec, size());
+        try {
+            final Object[] slots = overlay.table.slots();
+            for (int i = 0; i < slots.length; i += 2)
+                if (ProbeTable.isLive(slots[i]))
+                    writer.add(ProbeTable.unmaskNull(slots[i]), slots[i + 1]);
+            for (final BaseCursor cursor = new BaseCursor(); cursor.advance(); )
+                writer.add(cursor.key, readValue(cursor.offset));
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * Unmaps the snapshot file straight away, rather than
+     * whenever the buffer happens to be collected. Reading from
+     * the map after this throws an IllegalStateException.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        OffHeapFlexiMap.free(base);
+    }
+
+    public Object get(final Object key) {
+        if (touched(key))
+            return overlay.get(key);
+        final int offset = find(key);
+        return overlay.transformGet(key, offset < 0 ? null : readValue(offset));
+    }
+
+    /*
+     * The first put to a key from the snapshot copies its
+     * stored value into the overlay, so "onPut" sees it as
+     * the old value.
+     */
+    public Object put(final Object key, final Object value) {
+        if (removed.remove(key) || overlay.containsKey(key))
+            return overlay.put(key, value);
+        promote(key);
+        return overlay.put(key, value);
+    }
+
+    public Object remove(final Object key) {
+        if (baseCleared || removed.contains(key))
+            return overlay.remove(key);
+        if (overlay.containsKey(key)) {
+            final Object oldvalue = overlay.remove(key);
+            if (find(key) >= 0)
+                removed.add(key);
+            return oldvalue;
+        }
+        final int offset = find(key);
+        if (offset < 0)
+            return overlay.remove(key);
+        removed.add(key);
+        baseLive--;
+        return overlay.transformGet(key, readValue(offset));
+    }
+
+    public boolean containsKey(final Object key) {
+        if (touched(key))
+            return overlay.containsKey(key);
+        return find(key) >= 0;
+    }
+
+    public int size() {
+        return overlay.size() + baseLive;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /*
+     * Nothing in the snapshot counts any more.
+     */
+    public void clear() {
+        overlay.clear();
+        removed.clear();
+        baseCleared = true;
+        baseLive = 0;
+    }
+
+    /*
+     * The overlay's entries first, then the snapshot's entries
+     * that haven't been touched. Changes go through the map.
+     */
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                return new EntryIterator();
+            }
+            public int size() {
+                return SnapshotFlexiMap.this.size();
+            }
+        };
+    }
+
+    private boolean touched(final Object key) {
+        return baseCleared || overlay.containsKey(key) || removed.contains(key);
+    }
+
+    private void promote(final Object key) {
+        final int offset = find(key);
+        if (offset >= 0) {
+            overlay.table.put(key, readValue(offset));
+            baseLive--;
+        }
+    }
+
+    /*
+     * Returns the offset of the key's record in the snapshot,
+     * or -1. The index holds each key's hash next to the offset,
+     * so only keys with the same hash get decoded.
+     */
+    private int find(final Object key) {
+        if (baseCleared)
+            return -1;
+        ensureOpen();
+        final int h = key == null ? 0 : key.hashCode();
+        final ByteBuffer in = base.duplicate();
+        int i = spread(h) & mask;
+        while (true) {
+            final int slot = HEADER + i * 8;
+            final int offset = base.getInt(slot + 4);
+            if (offset == 0)
+                return -1;
+            if (base.getInt(slot) == h) {
+                in.position(offset);
+                final Object k = read(in, keyCodec);
+                if (k == null ? key == null : k.equals(key))
+                    return offset;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private Object readValue(final int offset) {
+        ensureOpen();
+        final ByteBuffer in = base.duplicate();
+        in.position(offset);
+        final int keyLength = in.getInt();
+        if (keyLength > 0)
+            in.position(in.position() + keyLength);
+        return read(in, valueCodec);
+    }
+
+    /*
+     * Each key and value is its length (or -1 for null)
+     * followed by what the codec wrote.
+     */
+    private static Object read(final ByteBuffer in, final Codec codec) {
+        final int length = in.getInt();
+        if (length < 0)
+            return null;
+        final int end = in.position() + length;
+        final Object o = codec.read(in);
+        in.position(end);
+        return o;
+    }
+
+    /*
+     * The mapped memory is gone after close, and reading it
+     * would crash the JVM rather than throw.
+     */
+    private void ensureOpen() {
+        if (closed)
+            throw new IllegalStateException("The map has been closed");
+    }
+
+    private static int spread(final int h) {
+        final int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+    /*
+     * Walks the snapshot's index, skipping touched keys.
+     */
+    private final class BaseCursor {
+        int slot = -1;
+        int offset;
+        Object key;
+
+        boolean advance() {
+            if (baseCleared)
+                return false;
+            ensureOpen();
+            final ByteBuffer in = base.duplicate();
+            while (++slot <= mask) {
+                offset = base.getInt(HEADER + slot * 8 + 4);
+                if (offset != 0) {
+                    in.position(offset);
+                    key = read(in, keyCodec);
+                    if (!overlay.containsKey(key) && !removed.contains(key))
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        final Iterator<Map.Entry<Object, Object>> overlaid = overlayEntries().iterator();
+        final BaseCursor cursor = new BaseCursor();
+        Map.Entry<Object, Object> next = null;
+        Object lastKey = null;
+        boolean canRemove = false;
+
+        public boolean hasNext() {
+            if (next == null) {
+                if (overlaid.hasNext())
+                    next = overlaid.next();
+                else if (cursor.advance())
+                    next = entry(cursor.key, overlay.transformGet(cursor.key, readValue(cursor.offset)));
+            }
+            return next != null;
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Map.Entry<Object, Object> e = next;
+            next = null;
+            lastKey = e.getKey();
+            canRemove = true;
+            return e;
+        }
+
+        public void remove() {
+            if (!canRemove)
+                throw new IllegalStateException();
+            SnapshotFlexiMap.this.remove(lastKey);
+            canRemove = false;
+        }
+    }
+
+    /*
+     * Copies the overlay's entries, since removing from the
+     * snapshot while iterating changes the overlay.
+     */
+    private List<Map.Entry<Object, Object>> overlayEntries() {
+        final List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(overlay.size());
+        for (final Map.Entry<Object, Object> e : overlay.entrySet())
+            entries.add(entry(e.getKey(), e.getValue()));
+        return entries;
+    }
+
+    private Map.Entry<Object, Object> entry(final Object key, final Object value) {
+        return new AbstractMap.SimpleEntry<Object, Object>(key, value) {
+            private static final long serialVersionUID = 1L;
+
+            public Object setValue(final Object v) {
+                final Object old = put(getKey(), v);
+                super.setValue(get(getKey()));
+                return old;
+            }
+        };
+    }
+
+    /*
+     * Writes the records one after another, then the header and
+     * the index in front of them once they're all known. Closing
+     * a writer that hasn't finished throws its file away.
+     */
+    private static final class Writer implements Closeable {
+        final Path file;
+        final Path temp;
+        final Codec keyCodec;
+        final Codec valueCodec;
+        final FileChannel out;
+        final int[] index;
+        final int indexMask;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        long position;
+        boolean finished;
+
+        Writer(final Path file, final Codec keyCodec, final Codec valueCodec,
+               final int count) throws IOException {
+            this.file = file;
+            this.temp = file.resolveSibling(file.getFileName() + ".writing");
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+
+            int capacity = 2;
+            while (capacity < 2L * count)
+                capacity <<= 1;
+            index = new int[2 * capacity];
+            indexMask = capacity - 1;
+
+            out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+            position = HEADER + 8L * capacity;
+            out.position(position);
+        }
+
+        void add(final Object key, final Object value) throws IOException {
+            final int keySize = key == null ? 0 : keyCodec.size(key);
+            final int valueSize = value == null ? 0 : valueCodec.size(value);
+            final int size = 8 + keySize + valueSize;
+            if (position + size > Integer.MAX_VALUE)
+                throw new IOException("The snapshot would be larger than 2GB");
+
+            final int h = key == null ? 0 : key.hashCode();
+            int i = spread(h) & indexMask;
+            while (index[2 * i + 1] != 0)
+                i = (i + 1) & indexMask;
+            index[2 * i] = h;
+            index[2 * i + 1] = (int) position;
+
+            if (size > buffer.remaining())
+                drain();
+            final ByteBuffer record = size > buffer.capacity() ? ByteBuffer.allocate(size) : buffer;
+            write(record, key, keySize, keyCodec);
+            write(record, value, valueSize, valueCodec);
+            if (record != buffer) {
+                record.flip();
+                while (record.hasRemaining())
+                    out.write(record);
+            }
+            position += size;
+        }
+
+        void finish() throws IOException {
+            try {
+                drain();
+                final ByteBuffer header = ByteBuffer.allocate(HEADER + 4 * index.length);
+                header.putInt(MAGIC);
+                header.putInt(countOf(index));
+                header.putInt(indexMask + 1);
+                for (final int n : index)
+                    header.putInt(n);
+                header.flip();
+                long at = 0;
+                while (header.hasRemaining())
+                    at += out.write(header, at);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        public void close() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            buffer.clear();
+        }
+
+        private static void write(final ByteBuffer record, final Object o, final int size, final Codec codec) {
+            if (o == null)
+                record.putInt(-1);
+            else {
+                record.putInt(size);
+                codec.write(o, record);
+            }
+        }
+
+        private static int countOf(final int[] index) {
+            int count = 0;
+            for (int i = 1; i < index.length; i += 2)
+                if (index[i] != 0)
+                    count++;
+            return count;
+        }
+    }
+
+    private static final int MAGIC = 0x464D5331;    // "FMS1"
+    private static final int HEADER = 12;
+
+    final private FlexiMap overlay;
+    final private Set<Object> removed = new HashSet<Object>();
+    final private Codec keyCodec;
+    final private Codec valueCodec;
+    final private MappedByteBuffer base;
+    final private int mask;
+
+    private int baseLive;
+    private boolean baseCleared;
+    private boolean closed;
+}
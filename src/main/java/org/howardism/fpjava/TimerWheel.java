@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of when things are due, so that finding the ones that are
+ * due never means looking at the ones that aren't. Scheduling and
+ * cancelling a timer take constant time.
+ * <p>
+ * The timers hang off a hierarchy of wheels, each with 64 buckets. A
+ * bucket of the first wheel holds the timers due in one particular
+ * millisecond, a bucket of the second wheel those due in one particular
+ * span of 64 milliseconds, and so on up through six wheels, which covers
+ * a couple of years. As time passes a higher wheel's bucket, its timers
+ * drop down to a lower wheel, until they come due in the first. A timer
+ * further off than the top wheel reaches just waits in its last bucket and
+ * is looked at again each time round.
+ * </p><p>
+ * Time only moves when {@link #advance} is called. This class is not
+ * thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+final class TimerWheel
+{
+    /**
+     * A scheduled timer, which doubles as a node in its bucket's list.
+     */
+    static final class Timer {
+        Timer(final Object key) {
+            this.key = key;
+        }
+
+        final Object key;
+        long deadline;
+        Timer prev;
+        Timer next;
+    }
+
+    TimerWheel(final long now) {
+        time = now;
+        buckets = new Timer[LEVELS][BUCKETS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final Timer sentinel = new Timer(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                buckets[level][i] = sentinel;
+            }
+        }
+    }
+
+    /*
+     * Returns a new timer for the key, due at the given time.
+     */
+    Timer schedule(final Object key, final long deadline) {
+        final Timer timer = new Timer(key);
+        timer.deadline = deadline;
+        link(timer);
+        size++;
+        return timer;
+    }
+
+    /*
+     * Moves a timer to a new time, putting it back on the wheel
+     * if it had expired or been cancelled.
+     */
+    void reschedule(final Timer timer, final long deadline) {
+        if (timer.next != null)
+            unlink(timer);
+        else
+            size++;
+        timer.deadline = deadline;
+        link(timer);
+    }
+
+    void cancel(final Timer timer) {
+        if (timer.next != null) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /*
+     * Moves the time on to now, and hands the key of every
+     * timer that has come due to the closure. A timer is off
+     * the wheel by the time its closure is called.
+     */
+    void advance(final long now, final Closure1 expired) {
+        final long previous = time;
+        if (now <= previous)
+            return;
+        time = now;
+
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = level * BITS;
+            final long previousTicks = previous >>> shift;
+            final long ticks = now >>> shift;
+            if (ticks == previousTicks)
+                break;
+            final int count = (int) Math.min(ticks - previousTicks, BUCKETS);
+            for (int t = 1; t <= count; t++)
+                sweep(level, (int) ((previousTicks + t) & MASK), expired);
+        }
+    }
+
+    void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final Timer sentinel = buckets[level][i];
+                for (Timer t = sentinel.next; t != sentinel; ) {
+                    final Timer next = t.next;
+                    t.prev = null;
+                    t.next = null;
+                    t = next;
+                }
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+            }
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long time() {
+        return time;
+    }
+
+    /*
+     * Empties one bucket: the timers that are due expire, and
+     * the others go back onto whichever wheel now suits them
+     * (a lower one, usually).
+     */
+    private void sweep(final int level, final int index, final Closure1 expired) {
+        final Timer sentinel = buckets[level][index];
+        if (sentinel.next == sentinel)
+            return;
+
+        final List<Timer> timers = new ArrayList<Timer>();
+        for (Timer t = sentinel.next; t != sentinel; t = t.next)
+            timers.add(t);
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+
+        for (final Timer timer : timers) {
+            if (timer.deadline <= time) {
+                timer.prev = null;
+                timer.next = null;
+                size--;
+                expired.apply(timer.key);
+            }
+            else {
+                link(timer);
+            }
+        }
+    }
+
+    /*
+     * A timer goes on the lowest wheel whose reach covers the
+     * time left until it is due. One that is already due goes
+     * in the bucket swept next.
+     */
+    private void link(final Timer timer) {
+        final long deadline = Math.max(timer.deadline, time + 1);
+        final long delay = deadline - time;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (BITS * (level + 1)))
+            level++;
+
+        final long ticks;
+        if (level == LEVELS - 1 && delay >= 1L << (BITS * LEVELS))
+            ticks = (time >>> (BITS * level)) + BUCKETS - 1;
+        else
+            ticks = deadline >>> (BITS * level);
+
+        final Timer sentinel = buckets[level][(int) (ticks & MASK)];
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private static void unlink(final Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final long MASK = BUCKETS - 1;
+    private static final int LEVELS = 6;
+
+    final private Timer[][] buckets;
+    private long time;
+    private int size;
+}
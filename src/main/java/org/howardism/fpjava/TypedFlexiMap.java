@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map whose values all have the one type, given up front: what a
+ * {@link FlexiMap} with a type-checking "onPut" closure does, without the
+ * closure or the boxes.
+ * <p>
+ * The keys sit in an open-addressing table, and the values in a
+ * <i>column</i> of the same length: an <code>int[]</code>,
+ * <code>long[]</code> or <code>double[]</code> for numbers, or for strings
+ * an <code>int[]</code> of codes into a pool holding each distinct string
+ * once. A value of any other type is turned away with a
+ * {@link ClassCastException}, and a null value with a
+ * {@link NullPointerException}, before anything is stored.
+ * </p><p>
+ * The usual {@link Map} methods box and unbox their numbers; the
+ * <code>getInt</code>/<code>putInt</code> family (and the ones for longs
+ * and doubles) don't. This class is not thread-safe.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class TypedFlexiMap extends AbstractMap<Object, Object> implements Map<Object, Object> {
+
+    /*
+     * The value type is Integer, Long, Double (or their
+     * primitive classes), or String.
+     */
+    public TypedFlexiMap(final Class<?> valueType) {
+        this(valueType, 8);
+    }
+
+    public TypedFlexiMap(final Class<?> valueType, final int expectedSize) {
+        int capacity = 8;
+        while (capacity < (long) expectedSize * 3 / 2 + 1 && capacity < (1 << 30))
+            capacity <<= 1;
+        keys = new Object[capacity];
+
+        if (valueType == Integer.class || valueType == int.class)
+            column = new IntColumn(capacity);
+        else if (valueType == Long.class || valueType == long.class)
+            column = new LongColumn(capacity);
+        else if (valueType == Double.class || valueType == double.class)
+            column = new DoubleColumn(capacity);
+        else if (valueType == String.class)
+            column = new StringColumn(capacity, new StringPool());
+        else
+            throw new IllegalArgumentException("No column for values of type: " + valueType.getName());
+        type = column.type();
+    }
+
+    public Object get(final Object key) {
+        final int i = indexOf(key);
+        return i >= 0 ? column.get(i) : null;
+    }
+
+    public Object put(final Object key, final Object value) {
+        check(value);
+        final int i = slotFor(key);
+        final Object oldvalue = keys[i] == null || keys[i] == ProbeTable.DELETED ? null : column.get(i);
+        if (oldvalue != null)
+            column.release(i);
+        column.set(i, value);
+        claim(i, key);
+        return oldvalue;
+    }
+
+    public Object remove(final Object key) {
+        final int i = indexOf(key);
+        if (i < 0)
+            return null;
+        final Object oldvalue = column.get(i);
+        removeSlot(i);
+        return oldvalue;
+    }
+
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if (size == 0 && used == 0)
+            return;
+        for (int i = 0; i < keys.length; i++)
+            if (ProbeTable.isLive(keys[i]))
+                column.release(i);
+        Arrays.fill(keys, null);
+        size = 0;
+        used = 0;
+        modCount++;
+    }
+
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<Object, Object>>() {
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator();
+                }
+                public int size() {
+                    return size;
+                }
+                public void clear() {
+                    TypedFlexiMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /*
+     * The unboxed versions of get and put. Each only works on
+     * a map of its own type, and get returns the given value
+     * for a missing key.
+     */
+    public int getInt(final Object key, final int missing) {
+        final int i = indexOf(key);
+        return i >= 0 ? ints().values[i] : missing;
+    }
+
+    public void putInt(final Object key, final int value) {
+        ints();
+        final int i = slotFor(key);
+        ints().values[i] = value;
+        claim(i, key);
+    }
+
+    public long getLong(final Object key, final long missing) {
+        final int i = indexOf(key);
+        return i >= 0 ? longs().values[i] : missing;
+    }
+
+    public void putLong(final Object key, final long value) {
+        longs();
+        final int i = slotFor(key);
+        longs().values[i] = value;
+        claim(i, key);
+    }
+
+    public double getDouble(final Object key, final double missing) {
+        final int i = indexOf(key);
+        return i >= 0 ? doubles().values[i] : missing;
+    }
+
+    public void putDouble(final Object key, final double value) {
+        doubles();
+        final int i = slotFor(key);
+        doubles().values[i] = value;
+        claim(i, key);
+    }
+
+    /*
+     * Returns the type of the values, always a boxed one.
+     */
+    public Class<?> valueType() {
+        return type;
+    }
+
+    private void check(final Object value) {
+        if (value == null)
+            throw new NullPointerException("This map doesn't hold null values");
+        if (value.getClass() != type)
+            throw new ClassCastException("This map implementation only allows values of type: " + type.getName());
+    }
+
+    private IntColumn ints() {
+        if (column instanceof IntColumn)
+            return (IntColumn) column;
+        throw new ClassCastException("This map holds values of type: " + type.getName());
+    }
+
+    private LongColumn longs() {
+        if (column instanceof LongColumn)
+            return (LongColumn) column;
+        throw new ClassCastException("This map holds values of type: " + type.getName());
+    }
+
+    private DoubleColumn doubles() {
+        if (column instanceof DoubleColumn)
+            return (DoubleColumn) column;
+        throw new ClassCastException("This map holds values of type: " + type.getName());
+    }
+
+    private int indexOf(final Object key) {
+        final Object k = ProbeTable.maskNull(key);
+        final int mask = keys.length - 1;
+        for (int i = indexFor(k, mask); ; i = (i + 1) & mask) {
+            final Object item = keys[i];
+            if (item == null)
+                return -1;
+            if (item != ProbeTable.DELETED && (item == k || item.equals(k)))
+                return i;
+        }
+    }
+
+    /*
+     * Returns the key's slot, or the slot a new entry for it
+     * should go in (reusing the first tombstone on the way).
+     * Only a new key that would take an empty slot can make the
+     * table grow, in which case the column is replaced too.
+     */
+    private int slotFor(final Object key) {
+        final int i = probe(key);
+        if (keys[i] != null || used + 1 <= keys.length / 3 * 2)
+            return i;
+        rehash(size + 1 > keys.length / 3 ? keys.length * 2 : keys.length);
+        return probe(key);
+    }
+
+    private int probe(final Object key) {
+        final Object k = ProbeTable.maskNull(key);
+        final int mask = keys.length - 1;
+        int firstDeleted = -1;
+        for (int i = indexFor(k, mask); ; i = (i + 1) & mask) {
+            final Object item = keys[i];
+            if (item == null)
+                return firstDeleted >= 0 ? firstDeleted : i;
+            if (item == ProbeTable.DELETED) {
+                if (firstDeleted < 0)
+                    firstDeleted = i;
+            }
+            else if (item == k || item.equals(k))
+                return i;
+        }
+    }
+
+    /*
+     * Marks a slot returned by slotFor() as holding the key,
+     * once its value has been stored.
+     */
+    private void claim(final int i, final Object key) {
+        final Object item = keys[i];
+        if (item == null || item == ProbeTable.DELETED) {
+            if (item == null)
+                used++;
+            keys[i] = ProbeTable.maskNull(key);
+            size++;
+            modCount++;
+        }
+    }
+
+    private void removeSlot(final int i) {
+        column.release(i);
+        keys[i] = ProbeTable.DELETED;
+        size--;
+        modCount++;
+    }
+
+    /*
+     * Builds new arrays of the given length, moving the keys
+     * and their values over and leaving the tombstones behind.
+     */
+    private void rehash(final int capacity) {
+        final Object[] oldKeys = keys;
+        final Column oldColumn = column;
+        keys = new Object[capacity];
+        column = oldColumn.emptyCopy(capacity);
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (ProbeTable.isLive(oldKeys[j])) {
+                int i = indexFor(oldKeys[j], mask);
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                oldColumn.copy(j, column, i);
+            }
+        }
+        used = size;
+    }
+
+    private static int indexFor(final Object key, final int mask) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /*
+     * A column keeps a value for each slot of the key table.
+     * It only ever gets values of its own type.
+     */
+    private abstract static class Column {
+        abstract Class<?> type();
+
+        abstract Object get(int slot);
+
+        abstract void set(int slot, Object value);
+
+        /*
+         * Called when a slot's value is replaced or removed.
+         */
+        void release(final int slot) {
+        }
+
+        abstract Column emptyCopy(int capacity);
+
+        abstract void copy(int from, Column to, int slot);
+    }
+
+    private static final class IntColumn extends Column {
+        IntColumn(final int capacity) {
+            values = new int[capacity];
+        }
+        Class<?> type() {
+            return Integer.class;
+        }
+        Object get(final int slot) {
+            return values[slot];
+        }
+        void set(final int slot, final Object value) {
+            values[slot] = (Integer) value;
+        }
+        Column emptyCopy(final int capacity) {
+            return new IntColumn(capacity);
+        }
+        void copy(final int from, final Column to, final int slot) {
+            ((IntColumn) to).values[slot] = values[from];
+        }
+
+        final int[] values;
+    }
+
+    private static final class LongColumn extends Column {
+        LongColumn(final int capacity) {
+            values = new long[capacity];
+        }
+        Class<?> type() {
+            return Long.class;
+        }
+        Object get(final int slot) {
+            return values[slot];
+        }
+        void set(final int slot, final Object value) {
+            values[slot] = (Long) value;
+        }
+        Column emptyCopy(final int capacity) {
+            return new LongColumn(capacity);
+        }
+        void copy(final int from, final Column to, final int slot) {
+            ((LongColumn) to).values[slot] = values[from];
+        }
+
+        final long[] values;
+    }
+
+    private static final class DoubleColumn extends Column {
+        DoubleColumn(final int capacity) {
+            values = new double[capacity];
+        }
+        Class<?> type() {
+            return Double.class;
+        }
+        Object get(final int slot) {
+            return values[slot];
+        }
+        void set(final int slot, final Object value) {
+            values[slot] = (Double) value;
+        }
+        Column emptyCopy(final int capacity) {
+            return new DoubleColumn(capacity);
+        }
+        void copy(final int from, final Column to, final int slot) {
+            ((DoubleColumn) to).values[slot] = values[from];
+        }
+
+        final double[] values;
+    }
+
+    /*
+     * Strings are stored as codes into a pool. The pool counts
+     * how many slots use each string, and reuses the code of a
+     * string nobody uses any more.
+     */
+    private static final class StringColumn extends Column {
+        StringColumn(final int capacity, final StringPool pool) {
+            codes = new int[capacity];
+            this.pool = pool;
+        }
+        Class<?> type() {
+            return String.class;
+        }
+        Object get(final int slot) {
+            return pool.strings.get(codes[slot]);
+        }
+        void set(final int slot, final Object value) {
+            codes[slot] = pool.intern((String) value);
+        }
+        void release(final int slot) {
+            pool.release(codes[slot]);
+        }
+        Column emptyCopy(final int capacity) {
+            return new StringColumn(capacity, pool);
+        }
+        void copy(final int from, final Column to, final int slot) {
+            ((StringColumn) to).codes[slot] = codes[from];
+        }
+
+        final int[] codes;
+        final private StringPool pool;
+    }
+
+    private static final class StringPool {
+        int intern(final String s) {
+            Integer code = codes.get(s);
+            if (code == null) {
+                if (free.isEmpty()) {
+                    code = strings.size();
+                    strings.add(s);
+                    if (code == refs.length)
+                        refs = Arrays.copyOf(refs, refs.length * 2);
+                }
+                else {
+                    code = free.remove(free.size() - 1);
+                    strings.set(code, s);
+                }
+                codes.put(s, code);
+            }
+            refs[code]++;
+            return code;
+        }
+
+        void release(final int code) {
+            if (--refs[code] == 0) {
+                codes.remove(strings.get(code));
+                strings.set(code, null);
+                free.add(code);
+            }
+        }
+
+        final List<String> strings = new ArrayList<String>();
+        final private HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        final private List<Integer> free = new ArrayList<Integer>();
+        private int[] refs = new int[16];
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Object>> {
+        public boolean hasNext() {
+            while (next < keys.length && !ProbeTable.isLive(keys[next]))
+                next++;
+            return next < keys.length;
+        }
+
+        public Map.Entry<Object, Object> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next++;
+            final int slot = last;
+            return new AbstractMap.SimpleEntry<Object, Object>(ProbeTable.unmaskNull(keys[slot]), column.get(slot)) {
+                private static final long serialVersionUID = 1L;
+
+                /*
+                 * Writes straight to the entry's slot, which can't
+                 * make the table grow under the iterator.
+                 */
+                public Object setValue(final Object value) {
+                    check(value);
+                    if (modCount != expectedModCount)
+                        throw new ConcurrentModificationException();
+                    column.release(slot);
+                    column.set(slot, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeSlot(last);
+            last = -1;
+            expectedModCount = modCount;
+        }
+
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+    }
+
+    final private Class<?> type;
+    private Object[] keys;
+    private Column column;
+    private int size;
+    private int used;
+    private transient int modCount;
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.howardism.options.Option;
+
+/**
+ * A {@link ConcurrentFlexiMap} that mirrors its changes to a downstream
+ * <i>sink</i>, without making the writers wait for it. A put or remove
+ * only marks its key as pending; a background thread later hands the
+ * pending keys to the sink closure in batches, either when enough of them
+ * pile up or when the flush interval runs out.
+ * <p>
+ * The sink is called with two arguments: a {@link Map} of the keys that
+ * were put, with the values stored for them now (after "onPut", before
+ * "onGet"), and a {@link Set} of the keys that were removed. Since the
+ * values are read when the batch is written, any number of puts to a key
+ * in between are coalesced into one update carrying the latest value.
+ * </p><p>
+ * The number of pending keys is bounded. When the sink falls that far
+ * behind, writers of new keys block until it catches up. If the sink
+ * throws, its keys stay pending, and the exception comes out of the next
+ * call to {@link #flush()} or {@link #close()}. Once the map is closed,
+ * changing it throws an {@link IllegalStateException}.
+ * </p>
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class WriteBehindFlexiMap extends ConcurrentFlexiMap implements Closeable {
+
+    public WriteBehindFlexiMap(final Option<Closure> putfn, final Option<Closure> getfn,
+                               final Closure sink, final int batchSize,
+                               final long flushIntervalMillis, final int capacity) {
+        super(putfn, getfn);
+        if (batchSize < 1 || capacity < batchSize)
+            throw new IllegalArgumentException("Need a positive batch size, and room for at least one batch");
+        if (flushIntervalMillis < 1)
+            throw new IllegalArgumentException("The flush interval must be positive: " + flushIntervalMillis);
+
+        this.sink = Closures.arity2(sink);
+        this.batchSize = batchSize;
+        this.flushInterval = flushIntervalMillis;
+        this.capacity = capacity;
+
+        flusher = new Thread("FlexiMap write-behind") {
+            public void run() {
+                flushInBackground();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public Object put(final Object key, final Object value) {
+        ensureOpen();
+        final Object oldvalue = super.put(key, value);
+        markPending(key);
+        return oldvalue;
+    }
+
+    /*
+     * Removing a key that isn't there sends nothing to the sink.
+     */
+    public Object remove(final Object key) {
+        ensureOpen();
+        final Object oldvalue = removeKey(key);
+        if (oldvalue == ABSENT)
+            return transformGet(key, null);
+        markPending(key);
+        return transformGet(key, oldvalue);
+    }
+
+    /*
+     * Every key goes out to the sink as a removal.
+     */
+    public void clear() {
+        ensureOpen();
+        for (final Object key : new ArrayList<Object>(keySet()))
+            markPending(key);
+        super.clear();
+    }
+
+    /**
+     * Writes every pending change to the sink before returning.
+     */
+    public void flush() {
+        while (writeBatch() > 0)
+            ;
+        final RuntimeException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the background thread, and flushes whatever is left.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        flush();
+    }
+
+    /**
+     * Returns the number of keys waiting to be written.
+     */
+    public int pendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    private void ensureOpen() {
+        synchronized (lock) {
+            if (closed)
+                throw new IllegalStateException("The map has been closed");
+        }
+    }
+
+    /*
+     * Blocks while the queue is full, unless the key is
+     * pending already (and so takes no more room). The batch
+     * being written still counts, as it comes back if the sink
+     * fails. A change
+     * that raced with close() is flushed straight away, as
+     * nothing else would ever write it.
+     */
+    private void markPending(final Object key) {
+        final Object k = ProbeTable.maskNull(key);
+        boolean interrupted = false;
+        final boolean late;
+        synchronized (lock) {
+            while (pending.size() + writing >= capacity && !pending.contains(k) && !closed) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (pending.add(k) && pending.size() == batchSize)
+                lock.notifyAll();
+            late = closed;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (late)
+            flush();
+    }
+
+    /*
+     * Writes a batch whenever one fills up, or the interval
+     * passes with something pending. After a failure, waits
+     * out a whole interval before trying again, and goes back
+     * to normal once a batch gets through.
+     */
+    private void flushInBackground() {
+        while (true) {
+            synchronized (lock) {
+                final long deadline = System.currentTimeMillis() + flushInterval;
+                long remaining = flushInterval;
+                while (!closed && (failure != null || pending.size() < batchSize) && remaining > 0) {
+                    try {
+                        lock.wait(remaining);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (closed)
+                    return;
+            }
+            try {
+                writeBatch();
+                failure = null;
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /*
+     * Takes up to a batch of keys off the queue, reads their
+     * current values, and hands them to the sink. Only one
+     * batch is written at a time, and a failed batch goes back
+     * in front of the keys marked since, so the sink sees the
+     * changes to a key in order. Returns how many keys were
+     * written.
+     */
+    private int writeBatch() {
+        synchronized (sinkLock) {
+            final List<Object> keys = new ArrayList<Object>();
+            synchronized (lock) {
+                final Iterator<Object> iter = pending.iterator();
+                while (iter.hasNext() && keys.size() < batchSize) {
+                    keys.add(iter.next());
+                    iter.remove();
+                }
+                writing = keys.size();
+            }
+            if (keys.isEmpty())
+                return 0;
+
+            final Map<Object, Object> updates = new LinkedHashMap<Object, Object>();
+            final Set<Object> removals = new LinkedHashSet<Object>();
+            for (final Object k : keys) {
+                final Object key = ProbeTable.unmaskNull(k);
+                final Object value = lookup(key);
+                if (value == ABSENT)
+                    removals.add(key);
+                else
+                    updates.put(key, value);
+            }
+
+            boolean written = false;
+            try {
+                sink.apply(updates, removals);
+                written = true;
+            } finally {
+                synchronized (lock) {
+                    if (!written) {
+                        final Set<Object> later = new LinkedHashSet<Object>(pending);
+                        pending.clear();
+                        pending.addAll(keys);
+                        pending.addAll(later);
+                    }
+                    writing = 0;
+                    lock.notifyAll();
+                }
+            }
+            return keys.size();
+        }
+    }
+
+    final private Closure2 sink;
+    final private int batchSize;
+    final private long flushInterval;
+    final private int capacity;
+    final private Thread flusher;
+
+    final private Object lock = new Object();
+    final private Object sinkLock = new Object();
+    final private Set<Object> pending = new LinkedHashSet<Object>();
+    private int writing;
+    private boolean closed;
+    private volatile RuntimeException failure;
+}
@@ -23,6 +23,10 @@ import java.util.Iterator;
 
 import javax.management.RuntimeErrorException;
 
+import org.howardism.fpjava.Closure1;
+import org.howardism.fpjava.Closures;
+import org.howardism.fpjava.Seq;
+
 /**
  * A collection of utility functions for dealing with with {@link Set}
  * instances.
@@ -72,6 +76,22 @@ public class SetUtils {
         };
     }
 
+    /**
+     * Creates a lazy {@link Seq} of the integers in a set, in order. Since a
+     * set can be infinite, stop the sequence with <code>take</code>.
+     * @param s      A set of integers
+     * @param lower  the lower bound (which if in the set, will be the first)
+     * @return       The members of the set from the lower bound up to (but
+     *               not including) {@link Integer#MAX_VALUE}
+     */
+    public static Seq seq(final Set<Integer> s, final int lower) {
+        return Seq.range(lower, Integer.MAX_VALUE).filter(Closures.asClosure(new Closure1() {
+            public Object apply(final Object n) {
+                return s.has((Integer) n);
+            }
+        }));
+    }
+
     /**
      * Creates an {@link Iterable} instance over a set.
      * @param s      A set
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Measures how many bytes the hot paths allocate per operation, using the
+ * per-thread allocation counter that HotSpot exposes. With fixed arity (or
+ * primitive) closures, a get or put shouldn't allocate anything at all.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class AllocationTest
+{
+    final static int OPS = 200000;
+
+    final static Object[] KEYS = { "a", "b", "c", "d", "e", "f", "g", "h" };
+
+    /*
+     * Keeps the larger of the two values, but only using
+     * values that Integer.valueOf caches, so nothing is boxed.
+     */
+    final static Closure keepLarger = Closures.asClosure(new Closure2() {
+        public Object apply(final Object oldvalue, final Object value) {
+            if (oldvalue == null || (Integer) value > (Integer) oldvalue)
+                return value;
+            return oldvalue;
+        }
+    });
+
+    final static Closure defaultToZero = Closures.asClosure(new Closure2() {
+        public Object apply(final Object key, final Object value) {
+            return value == null ? ZERO : value;
+        }
+    });
+
+    final static Integer ZERO = 0;
+
+    @Test
+    public void testFlexiMapIsAllocationFree() {
+        final FlexiMap map = new FlexiMap(Some.thing(keepLarger), Some.thing(defaultToZero));
+        for (final Object key : KEYS)
+            map.put(key, ZERO);
+
+        final Runnable ops = new Runnable() {
+            public void run() {
+                for (int i = 0; i < OPS; i++) {
+                    final Object key = KEYS[i & 7];
+                    map.put(key, i & 63);
+                    map.get(key);
+                }
+            }
+        };
+        assertEquals(0.0, bytesPerOp(ops), 0.5);
+    }
+
+    @Test
+    public void testIntFlexiMapIsAllocationFree() {
+        final Option<IntLongClosure> noGet = None.thing();
+        final IntFlexiMap map = new IntFlexiMap(Some.thing(new LongLongClosure() {
+            public long apply(final long oldvalue, final long value) {
+                return oldvalue + value;
+            }
+        }), noGet);
+        for (int key = 0; key < 1024; key++)
+            map.put(key, 1);
+
+        final Runnable ops = new Runnable() {
+            public void run() {
+                for (int i = 0; i < OPS; i++) {
+                    map.put(i & 1023, 1);
+                    map.get(i & 1023);
+                }
+            }
+        };
+        assertEquals(0.0, bytesPerOp(ops), 0.5);
+    }
+
+    /*
+     * Runs the operations a few times to let them warm up,
+     * then returns the bytes allocated per operation on the
+     * last run. Skips the test on a JVM that can't tell us.
+     */
+    private double bytesPerOp(final Runnable ops) {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final long id = Thread.currentThread().getId();
+        for (int i = 0; i < 5; i++)
+            ops.run();
+
+        final long before = threads.getThreadAllocatedBytes(id);
+        ops.run();
+        final long after = threads.getThreadAllocatedBytes(id);
+        return (double) (after - before) / OPS;
+    }
+}
@@ -106,4 +106,34 @@ public class ClosureTests {
             return Arrays.copyOfRange(o, 1, o.length-1);
         }
     }
+
+    // ------------------------------------------------------------- //
+
+    /**
+     * The fixed arity closures can be turned into a {@link Closure} and
+     * back again, and the round trip gives back the original.
+     */
+    @Test
+    public void testFixedArityAdapters() {
+        final Closure2 pair = new Closure2() {
+            public Object apply(final Object a, final Object b) {
+                return a + "+" + b;
+            }
+        };
+        final Closure varargs = Closures.asClosure(pair);
+        assertEquals("1+2", varargs.apply(1, 2));
+        assertSame(varargs, Closures.arity2(varargs));
+
+        final Closure1 truth = Closures.arity1(theTruth);
+        assertEquals(Boolean.TRUE, truth.apply("anything"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedArityAdapterChecksArguments() {
+        Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                return a;
+            }
+        }).apply(1, 2);
+    }
 }
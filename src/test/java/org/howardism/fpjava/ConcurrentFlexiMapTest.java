@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Stress tests making sure that the {@link ConcurrentFlexiMap} doesn't lose
+ * updates when many threads run the "onPut" closure for the same keys.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ConcurrentFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final static int THREADS = 8;
+    final static int PUTS_PER_THREAD = 20000;
+    final static int KEYS = 16;
+
+    /*
+     * The single threaded behavior is the same as FlexiMap's.
+     */
+    @Test
+    public void testBasicMap() {
+        final Map<Object, Object> map = new ConcurrentFlexiMap(noClosure, noClosure);
+        assertNull( map.put("key", "value-1") );
+        assertEquals("value-1", map.put("key", "value-2") );
+        assertEquals("value-2", map.get("key") );
+        map.put(null, null);
+        assertTrue( map.containsKey(null) );
+        assertEquals(2, map.size() );
+        assertEquals("value-2", map.remove("key") );
+        assertEquals(1, map.entrySet().size() );
+    }
+
+    /*
+     * Every thread bumps a handful of counters. If any of the
+     * read-merge-writes interleaved, the total comes up short.
+     */
+    @Test
+    public void testCounterLosesNoUpdates() throws InterruptedException {
+        final Map<Object, Object> map = new ConcurrentFlexiMap(Some.thing(counter), noClosure, 4);
+
+        hammer(map);
+
+        long total = 0;
+        for (final Object v : map.values())
+            total += (Integer) v;
+        assertEquals(KEYS, map.size() );
+        assertEquals((long) THREADS * PUTS_PER_THREAD, total);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMultiMapLosesNoUpdates() throws InterruptedException {
+        final Map<Object, Object> map = new ConcurrentFlexiMap(Some.thing(multiMapPut), noClosure);
+
+        hammer(map);
+
+        final Set<Object> seen = new HashSet<Object>();
+        for (final Object v : map.values())
+            seen.addAll((Collection<Object>) v);
+        assertEquals(THREADS * PUTS_PER_THREAD, seen.size() );
+    }
+
+    @Test
+    public void testStringConcatLosesNoUpdates() throws InterruptedException {
+        final Map<Object, Object> map = new ConcurrentFlexiMap(Some.thing(concat), noClosure);
+
+        hammer(map);
+
+        int appended = 0;
+        for (final Object v : map.values())
+            appended += ((String) v).split(",").length;
+        assertEquals(THREADS * PUTS_PER_THREAD, appended);
+    }
+
+    /*
+     * Starts all the threads at once, each putting a unique
+     * value under one of a few shared keys.
+     */
+    private void hammer(final Map<Object, Object> map) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            final Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < PUTS_PER_THREAD; i++)
+                        map.put(i % KEYS, id + "-" + i);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads)
+            thread.join();
+    }
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    final Closure multiMapPut = new Closure() {
+        @SuppressWarnings("unchecked")
+        public Object apply(final Object... objects) {
+            final List<Object> values;
+            if (objects[0] == null)
+                values = new ArrayList<Object>();
+            else
+                values = (List<Object>) objects[0];
+            values.add( objects[1] );
+            return values;
+        }
+    };
+
+    final Closure concat = new Closure() {
+        public Object apply(final Object... objects) {
+            if (objects[0] == null)
+                return objects[1];
+            else
+                return objects[0] + "," + objects[1];
+        }
+    };
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.howardism.fpjava.LoadingFlexiMapTest.MutableClock;
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ExpiringFlexiMap} (and the {@link TimerWheel} under it),
+ * moving a clock along by hand.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ExpiringFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final MutableClock clock = new MutableClock();
+    final List<Object> evicted = new ArrayList<Object>();
+
+    final Closure listener = new Closure() {
+        public Object apply(final Object... objects) {
+            evicted.add(objects[0] + "=" + objects[1]);
+            return null;
+        }
+    };
+
+    ExpiringFlexiMap makeMap(final Option<Closure> ttlfn) {
+        return new ExpiringFlexiMap(noClosure, noClosure, 1000, ttlfn, Some.thing(listener), clock);
+    }
+
+    @Test
+    public void testExpiry() {
+        final ExpiringFlexiMap map = makeMap(noClosure);
+        map.put("session", "alice");
+        clock.now = 999;
+        assertEquals("alice", map.get("session"));
+        assertEquals(1, map.timeToLive("session"));
+
+        clock.now = 1000;
+        assertNull( map.get("session") );
+        assertFalse( map.containsKey("session") );
+        assertTrue( map.isEmpty() );
+        assertEquals(-1, map.timeToLive("session"));
+        assertEquals("[session=alice]", evicted.toString());
+    }
+
+    @Test
+    public void testPutStartsOver() {
+        final ExpiringFlexiMap map = makeMap(noClosure);
+        map.put("key", "first");
+        clock.now = 800;
+        map.put("key", "second");
+        clock.now = 1500;
+        assertEquals("second", map.get("key"));
+        clock.now = 1800;
+        assertNull( map.get("key") );
+        assertEquals("[key=second]", evicted.toString());
+    }
+
+    /*
+     * Batches and values set through an entry start their time
+     * from now, even though nothing has expired since the clock
+     * moved on.
+     */
+    @Test
+    public void testEveryWriteStartsFromNow() {
+        final ExpiringFlexiMap map = makeMap(noClosure);
+        map.put("old", "value");
+        map.put("set", "value");
+        final Map<Object, Object> batch = new HashMap<Object, Object>();
+        batch.put("old", "again");
+        batch.put("new", "value");
+
+        clock.now = 600;
+        map.putAll(batch);
+        clock.now = 700;
+        final Iterator<Map.Entry<Object, Object>> entries = map.entrySet().iterator();
+        clock.now = 800;
+        while (entries.hasNext()) {
+            final Map.Entry<Object, Object> entry = entries.next();
+            if ("set".equals(entry.getKey()))
+                entry.setValue("changed");
+        }
+
+        clock.now = 1000;
+        assertEquals(600, map.timeToLive("old"));
+        assertEquals(600, map.timeToLive("new"));
+        assertEquals(800, map.timeToLive("set"));
+        assertTrue( evicted.isEmpty() );
+
+        clock.now = 1600;
+        assertEquals("changed", map.get("set"));
+        assertNull( map.get("new") );
+    }
+
+    @Test
+    public void testTimesToLive() {
+        final Closure ttl = new Closure() {
+            public Object apply(final Object... objects) {
+                return objects[0].toString().startsWith("long") ? 100000 : null;
+            }
+        };
+        final ExpiringFlexiMap map = makeMap(Some.thing(ttl));
+        map.put("short", 1);
+        map.put("long", 2);
+        map.put("given", 3, 50);
+
+        clock.now = 50;
+        assertEquals(2, map.size());
+        clock.now = 1000;
+        assertEquals(1, map.size());
+        clock.now = 99999;
+        assertEquals(2, map.get("long"));
+        clock.now = 100000;
+        assertTrue( map.isEmpty() );
+        assertEquals("[given=3, short=1, long=2]", evicted.toString());
+    }
+
+    /*
+     * Removed and cleared entries are gone for good, and don't
+     * go to the listener.
+     */
+    @Test
+    public void testRemoveAndClear() {
+        final ExpiringFlexiMap map = makeMap(noClosure);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.remove("a");
+        map.clear();
+        map.put("c", 3);
+        clock.now = 5000;
+        map.expire();
+        assertEquals("[c=3]", evicted.toString());
+    }
+
+    /*
+     * Lots of timers spread from milliseconds to days, with the
+     * clock jumping around by different amounts. Every entry
+     * has to go exactly when its time is up.
+     */
+    @Test
+    public void testManyTimers() {
+        final ExpiringFlexiMap map = makeMap(noClosure);
+        final Random random = new Random(11);
+        final long[] deadlines = new long[20000];
+        for (int i = 0; i < deadlines.length; i++) {
+            final long ttl = 1 + (long) Math.pow(10, random.nextDouble() * 9);
+            deadlines[i] = ttl;
+            map.put(i, i, ttl);
+        }
+
+        final long end = 1000000000L;
+        while (clock.now < end) {
+            clock.now = Math.min(end, clock.now + 1 + (long) Math.pow(10, random.nextDouble() * 7));
+            map.expire();
+            for (int i = 0; i < deadlines.length; i += 97)
+                assertEquals("key " + i + " at " + clock.now, deadlines[i] > clock.now, map.containsKey(i));
+        }
+        assertTrue( map.isEmpty() );
+        assertEquals(deadlines.length, evicted.size());
+    }
+}
@@ -20,14 +20,21 @@
 package org.howardism.fpjava;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 
 import org.howardism.options.None;
 import org.howardism.options.Option;
@@ -362,4 +369,318 @@ public class FlexiMapTest
         return new FlexiMap( Some.thing(multiStringPut), // put
                              noClosure );                // get
     }
+
+
+    /*
+     * Now that FlexiMap is a complete Map, the remaining methods
+     * should behave just like those of any other Map.
+     */
+    @Test
+    public void testSizeContainsAndRemove() {
+        final Map<Object, Object> map = makeBasicMap();
+        assertTrue( map.isEmpty() );
+
+        map.put("key-1", "value-1");
+        map.put("key-2", null);
+        map.put(null, "value-3");
+        assertEquals(3, map.size() );
+        assertTrue( map.containsKey("key-2") );
+        assertTrue( map.containsKey(null) );
+        assertTrue( map.containsValue("value-3") );
+        assertFalse( map.containsKey("key-4") );
+
+        assertEquals("value-1", map.remove("key-1") );
+        assertNull( map.remove("key-1") );
+        assertFalse( map.containsKey("key-1") );
+        assertEquals(2, map.size() );
+
+        map.clear();
+        assertTrue( map.isEmpty() );
+        assertNull( map.get(null) );
+    }
+
+    /*
+     * Lots of keys (and lots of removals) force the table to grow
+     * and sweep out the removed entries.
+     */
+    @Test
+    public void testManyKeys() {
+        final Map<Object, Object> map = makeBasicMap();
+        final Map<Object, Object> expected = new HashMap<Object, Object>();
+
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, "value-" + i);
+            expected.put(i, "value-" + i);
+            if (i % 3 == 0) {
+                map.remove(i / 2);
+                expected.remove(i / 2);
+            }
+        }
+        assertEquals(expected.size(), map.size() );
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode() );
+    }
+
+    /*
+     * The views see values the way get does: through onGet.
+     */
+    @Test
+    public void testViewsUseOnGet() {
+        final Map<Object, Object> map = makeDefaultValueForNullMap(0);
+        map.put("a", 1);
+        map.put("b", null);
+
+        assertTrue( map.containsValue(0) );
+        assertEquals(new HashSet<Object>(java.util.Arrays.asList("a", "b")), map.keySet() );
+
+        int total = 0;
+        for (final Object v : map.values())
+            total += (Integer) v;
+        assertEquals(1, total);
+
+        for (final Map.Entry<Object, Object> e : map.entrySet())
+            if (e.getKey().equals("b"))
+                assertEquals(0, e.getValue() );
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final Map<Object, Object> map = makeBasicMap();
+        for (int i = 0; i < 100; i++)
+            map.put(i, i);
+
+        final Iterator<Map.Entry<Object, Object>> iter = map.entrySet().iterator();
+        while (iter.hasNext())
+            if ((Integer) iter.next().getKey() % 2 == 0)
+                iter.remove();
+
+        assertEquals(50, map.size() );
+        assertFalse( map.containsKey(10) );
+        assertTrue( map.containsKey(11) );
+    }
+
+    /*
+     * Entries handed out by the iterator are reused, but copying
+     * them out into an array gives each one an entry of its own.
+     */
+    @Test
+    public void testEntrySetToArray() {
+        final Map<Object, Object> map = makeBasicMap();
+        map.put("a", 1);
+        map.put("b", 2);
+
+        final Object[] entries = map.entrySet().toArray();
+        final Map<Object, Object> copy = new HashMap<Object, Object>();
+        for (final Object e : entries)
+            copy.put(((Map.Entry<?, ?>) e).getKey(), ((Map.Entry<?, ?>) e).getValue());
+        assertEquals(map, copy);
+    }
+
+    /*
+     * Both putAll and Entry.setValue go through onPut.
+     */
+    @Test
+    public void testPutAllAndSetValueUseOnPut() {
+        final Map<Object, Object> map = makeStringConcatMap();
+        final Map<Object, Object> input = new HashMap<Object, Object>();
+        input.put("a", "value 1");
+        input.put("b", "value 2");
+        map.putAll(input);
+        map.putAll(input);
+        assertEquals("value 1, value 1", map.get("a"));
+
+        for (final Map.Entry<Object, Object> e : map.entrySet())
+            e.setValue("value 3");
+        assertEquals("value 2, value 2, value 3", map.get("b"));
+    }
+
+    /*
+     * FlexiMap.create picks a specialized map for whichever closures
+     * are given, but each one should behave just like the original.
+     */
+    @Test
+    public void testCreateSpecializations() {
+        final Map<Object, Object> plain = FlexiMap.create(noClosure, noClosure);
+        assertNull( plain.put("key", "value-1") );
+        assertEquals("value-1", plain.put("key", "value-2") );
+        assertEquals("value-2", plain.get("key") );
+
+        final Map<Object, Object> putOnly = FlexiMap.create(Some.thing(noMoreNulls), noClosure);
+        putOnly.put("key", "value");
+        try {
+            putOnly.put("key", null);
+            fail("Expected NullPointerException");
+        } catch (final NullPointerException e) {
+            // expected
+        }
+        assertEquals("value", putOnly.get("key") );
+
+        final Map<Object, Object> getOnly = FlexiMap.create(noClosure, Some.thing(upperCase));
+        assertNull( getOnly.put("key", "value") );
+        assertEquals("VALUE", getOnly.get("key") );
+        assertEquals("VALUE", getOnly.put("key", "other") );
+
+        final Map<Object, Object> both = FlexiMap.create(Some.thing(noMoreNulls), Some.thing(upperCase));
+        both.put("key", "value");
+        assertEquals("VALUE", both.put("key", "other") );
+        assertEquals("OTHER", both.values().iterator().next() );
+        assertEquals("OTHER", both.remove("key") );
+        assertTrue( both.isEmpty() );
+    }
+
+    final Closure upperCase = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[1] == null ? null : ((String) objects[1]).toUpperCase();
+        }
+    };
+
+    /*
+     * Every threshold, from one task per entry to no splitting
+     * at all, has to see every entry exactly once.
+     */
+    @Test
+    public void testParallelBulkOperations() {
+        final FlexiMap map = new FlexiMap(noClosure, Some.thing(doubled));
+        for (long i = 0; i < 100000; i++)
+            map.put(i, i);
+        map.remove(7L);
+
+        final long expected = 2 * (99999L * 100000 / 2 - 7);
+        for (final long threshold : new long[] { 1, 1000, 100000, Long.MAX_VALUE }) {
+            final AtomicLong sum = new AtomicLong();
+            map.forEachParallel(threshold, new Closure() {
+                public Object apply(final Object... objects) {
+                    sum.addAndGet((Long) objects[1]);
+                    return null;
+                }
+            });
+            assertEquals(expected, sum.get());
+            assertEquals(expected, map.reduceParallel(threshold, value, plus));
+        }
+
+        map.replaceAllParallel(1000, new Closure() {
+            public Object apply(final Object... objects) {
+                return (Long) objects[1] + 1;
+            }
+        });
+        assertEquals(2 * (expected + 99999), map.reduceParallel(1000, value, plus));
+        assertNull( new FlexiMap(noClosure, noClosure).reduceParallel(1, value, plus) );
+    }
+
+    @Test
+    public void testParallelStreams() {
+        final FlexiMap map = new FlexiMap(noClosure, Some.thing(doubled));
+        for (long i = 0; i < 100000; i++)
+            map.put(i, i);
+
+        assertEquals(100000, map.keySet().parallelStream().distinct().count());
+        assertEquals(99999L * 100000, map.values().parallelStream().mapToLong(new ToLongFunction<Object>() {
+            public long applyAsLong(final Object v) {
+                return (Long) v;
+            }
+        }).sum());
+        final Map<Object, Object> copy = new HashMap<Object, Object>();
+        for (final Object e : map.entrySet().parallelStream().toArray()) {
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(map, copy);
+    }
+
+    /*
+     * A batch closure gets every entry of a putAll in one call,
+     * with the old values lined up against the new ones.
+     */
+    @Test
+    public void testBatchedPutAll() {
+        final AtomicLong calls = new AtomicLong();
+        final Closure summing = Closures.batched(new BatchClosure() {
+            public void applyAll(final Object[] oldvalues, final Object[] values, final int count) {
+                calls.incrementAndGet();
+                for (int i = 0; i < count; i++)
+                    values[i] = oldvalues[i] == null ? values[i] : (Long) oldvalues[i] + (Long) values[i];
+            }
+        });
+        final FlexiMap map = new FlexiMap(Some.thing(summing), noClosure);
+        map.put(1L, 100L);
+        assertEquals(1, calls.get());
+
+        final Map<Object, Object> batch = new HashMap<Object, Object>();
+        for (long i = 0; i < 10000; i++)
+            batch.put(i, i);
+        map.putAll(batch);
+        assertEquals(2, calls.get());
+        assertEquals(10000, map.size());
+        assertEquals(101L, map.get(1L));
+        assertEquals(9999L, map.get(9999L));
+    }
+
+    @Test
+    public void testBatchedPutAllFailing() {
+        final Closure failing = Closures.batched(new BatchClosure() {
+            public void applyAll(final Object[] oldvalues, final Object[] values, final int count) {
+                for (int i = 0; i < count; i++)
+                    if (values[i] == null)
+                        throw new NullPointerException("No nulls in this batch");
+            }
+        });
+        final FlexiMap map = new FlexiMap(Some.thing(failing), noClosure);
+        map.put("old", "value");
+
+        final Map<Object, Object> batch = new HashMap<Object, Object>();
+        batch.put("old", "new value");
+        batch.put("new", null);
+        for (int i = 0; i < 100; i++)
+            batch.put(i, i);
+        try {
+            map.putAll(batch);
+            fail("Expected NullPointerException");
+        } catch (final NullPointerException e) {
+            // expected
+        }
+        assertEquals(1, map.size());
+        assertEquals("value", map.get("old"));
+        assertFalse( map.containsKey("new") );
+    }
+
+    /*
+     * Keys the input thinks are different but the map doesn't
+     * still go through the closure one after the other.
+     */
+    @Test
+    public void testBatchedPutAllRepeatedKeys() {
+        final Closure appending = Closures.batched(new BatchClosure() {
+            public void applyAll(final Object[] oldvalues, final Object[] values, final int count) {
+                for (int i = 0; i < count; i++)
+                    values[i] = oldvalues[i] == null ? values[i] : oldvalues[i] + "," + values[i];
+            }
+        });
+        final FlexiMap map = new FlexiMap(Some.thing(appending), noClosure);
+        final Map<Object, Object> batch = new IdentityHashMap<Object, Object>();
+        batch.put(new String("key"), "a");
+        batch.put(new String("key"), "b");
+        batch.put("other", "c");
+        map.putAll(batch);
+        assertEquals(2, map.size());
+        assertEquals(3, ((String) map.get("key")).length());
+    }
+
+    final Closure doubled = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[1] == null ? null : (Long) objects[1] * 2;
+        }
+    };
+
+    final Closure value = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[1];
+        }
+    };
+
+    final Closure plus = new Closure() {
+        public Object apply(final Object... objects) {
+            return (Long) objects[0] + (Long) objects[1];
+        }
+    };
 }
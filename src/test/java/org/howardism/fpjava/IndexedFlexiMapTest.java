@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the secondary indexes of an {@link IndexedFlexiMap}.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class IndexedFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final Closure firstLetter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? null : objects[0].toString().substring(0, 1);
+        }
+    };
+
+    final Closure length = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? null : objects[0].toString().length();
+        }
+    };
+
+    @Test
+    public void testLookup() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.put(1, "apple");
+        map.addIndex("letter", firstLetter);
+        map.put(2, "avocado");
+        map.put(3, "banana");
+        map.put(4, null);
+
+        assertEquals(new HashSet<Object>(Arrays.asList(1, 2)), map.lookup("letter", "a"));
+        assertEquals(new HashSet<Object>(Arrays.asList(3)), map.lookup("letter", "b"));
+        assertTrue( map.lookup("letter", "c").isEmpty() );
+
+        map.put(1, "cherry");
+        map.remove(3);
+        assertEquals(new HashSet<Object>(Arrays.asList(2)), map.lookup("letter", "a"));
+        assertTrue( map.lookup("letter", "b").isEmpty() );
+        assertEquals(new HashSet<Object>(Arrays.asList(1)), map.lookup("letter", "c"));
+        assertEquals(2, map.indexKeyCounts("letter").size());
+
+        final Iterator<Object> keys = map.keySet().iterator();
+        while (keys.hasNext())
+            if (keys.next().equals(2))
+                keys.remove();
+        assertTrue( map.lookup("letter", "a").isEmpty() );
+
+        map.clear();
+        assertTrue( map.lookup("letter", "c").isEmpty() );
+    }
+
+    @Test
+    public void testRange() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addSortedIndex("length", length);
+        map.addIndex("letter", firstLetter);
+        for (final String word : "a bb ccc dddd eeeee ffffff".split(" "))
+            map.put(word.charAt(0), word);
+
+        assertEquals(Arrays.asList('b', 'c', 'd'), new ArrayList<Object>(map.range("length", 2, 5)));
+        assertEquals(Arrays.asList('e', 'f'), new ArrayList<Object>(map.range("length", 5, null)));
+        assertEquals(Arrays.asList('a'), new ArrayList<Object>(map.range("length", null, 2)));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6),
+                     new ArrayList<Object>(map.indexKeyCounts("length").keySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeNeedsSortedIndex() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addIndex("letter", firstLetter);
+        map.range("letter", "a", "b");
+    }
+
+    /*
+     * A multi-map changes its lists in place, so the index has
+     * to remember where each key was, not work it out again
+     * from the old value.
+     */
+    @Test
+    public void testValuesChangedInPlace() {
+        final Closure multiMapPut = new Closure() {
+            @SuppressWarnings("unchecked")
+            public Object apply(final Object... objects) {
+                final List<Object> values = objects[0] == null
+                    ? new ArrayList<Object>() : (List<Object>) objects[0];
+                values.add( objects[1] );
+                return values;
+            }
+        };
+        final Closure count = new Closure() {
+            public Object apply(final Object... objects) {
+                return ((List<?>) objects[0]).size();
+            }
+        };
+        final IndexedFlexiMap map = new IndexedFlexiMap(Some.thing(multiMapPut), noClosure);
+        map.addSortedIndex("count", count);
+        for (int i = 0; i < 10; i++)
+            for (int j = 0; j <= i; j++)
+                map.put(i, j);
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(new HashSet<Object>(Arrays.asList(i)), map.lookup("count", i + 1));
+        assertEquals(10, map.range("count", null, null).size());
+        for (final Map.Entry<Object, Integer> entry : map.indexKeyCounts("count").entrySet())
+            assertEquals(Integer.valueOf(1), entry.getValue());
+    }
+
+    /*
+     * The parallel replaceAll keeps the indexes right, even
+     * though the indexes themselves aren't thread-safe.
+     */
+    @Test
+    public void testReplaceAllParallel() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addIndex("letter", firstLetter);
+        for (int i = 0; i < 10000; i++)
+            map.put(i, "a" + i);
+        map.replaceAllParallel(100, new Closure() {
+            public Object apply(final Object... objects) {
+                return (Integer) objects[0] % 2 == 0 ? objects[1] : "b" + objects[1];
+            }
+        });
+        assertEquals(5000, map.lookup("letter", "a").size());
+        assertEquals(5000, map.lookup("letter", "b").size());
+    }
+
+    /*
+     * A set from lookup keeps following its index key, even
+     * after it has been empty for a while.
+     */
+    @Test
+    public void testLookupFollowsChanges() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addIndex("letter", firstLetter);
+        final Set<Object> bs = map.lookup("letter", "b");
+        assertTrue( bs.isEmpty() );
+        map.put(1, "banana");
+        assertEquals(new HashSet<Object>(Arrays.asList(1)), bs);
+        map.remove(1);
+        assertTrue( bs.isEmpty() );
+        map.put(2, "blueberry");
+        assertTrue( bs.contains(2) );
+        assertEquals(1, bs.size());
+    }
+
+    /*
+     * An index closure that throws leaves the map and its
+     * indexes as they were, whichever way the value went in.
+     */
+    @Test
+    public void testFailingIndexChangesNothing() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addIndex("letter", firstLetter);
+        map.addIndex("picky", new Closure() {
+            public Object apply(final Object... objects) {
+                if ("".equals(objects[0]))
+                    throw new IllegalArgumentException("Nothing to index");
+                return objects[0];
+            }
+        });
+        map.put(1, "apple");
+
+        try {
+            map.put(1, "");
+            fail("The index should have thrown");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            map.put(2, "");
+            fail("The index should have thrown");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            map.entrySet().iterator().next().setValue("");
+            fail("The index should have thrown");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("apple", map.get(1));
+        assertFalse( map.containsKey(2) );
+        assertEquals(new HashSet<Object>(Arrays.asList(1)), map.lookup("letter", "a"));
+
+        map.put(3, "cherry");
+        assertEquals(new HashSet<Object>(Arrays.asList(3)), map.lookup("picky", "cherry"));
+        assertEquals(new HashSet<Object>(Arrays.asList(3)), map.lookup("letter", "c"));
+    }
+
+    /*
+     * An index key a sorted index can't compare with the ones
+     * it has stops the put before the map or any index changes.
+     */
+    @Test
+    public void testIncomparableIndexKeyChangesNothing() {
+        final IndexedFlexiMap map = new IndexedFlexiMap(noClosure, noClosure);
+        map.addIndex("letter", firstLetter);
+        map.addSortedIndex("self", new Closure() {
+            public Object apply(final Object... objects) {
+                return objects[0];
+            }
+        });
+        map.put(1, "apple");
+
+        try {
+            map.put(2, 42);
+            fail("The sorted index should have thrown");
+        }
+        catch (final ClassCastException e) {
+            // expected
+        }
+        try {
+            map.put(1, new Object());
+            fail("The sorted index should have thrown");
+        }
+        catch (final ClassCastException e) {
+            // expected
+        }
+        assertFalse( map.containsKey(2) );
+        assertEquals("apple", map.get(1));
+        assertTrue( map.lookup("letter", "4").isEmpty() );
+        assertEquals(new HashSet<Object>(Arrays.asList(1)), map.lookup("letter", "a"));
+        assertEquals(new HashSet<Object>(Arrays.asList(1)), map.lookup("self", "apple"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Makes sure a {@link JournaledFlexiMap} comes back the way it was after
+ * being closed (or torn apart) and opened again.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class JournaledFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    final Closure multiMapPut = new Closure() {
+        @SuppressWarnings("unchecked")
+        public Object apply(final Object... objects) {
+            final List<Object> values = objects[0] == null
+                ? new ArrayList<Object>() : (List<Object>) objects[0];
+            values.add( objects[1] );
+            return values;
+        }
+    };
+
+    @Test
+    public void testCountersSurviveRestart() throws IOException {
+        final Path journal = folder.newFile("counters.log").toPath();
+
+        JournaledFlexiMap map = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 1 << 20);
+        for (int i = 0; i < 100; i++)
+            map.put(i % 3, "hit");
+        map.remove(2);
+        map.close();
+
+        map = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 1 << 20);
+        assertEquals(34, map.get(0));
+        assertEquals(33, map.get(1));
+        assertFalse( map.containsKey(2) );
+        map.put(0, "hit");
+        assertEquals(35, map.get(0));
+        map.close();
+    }
+
+    @Test
+    public void testMultiMapAndClearSurviveRestart() throws IOException {
+        final Path journal = folder.newFile("multi.log").toPath();
+
+        JournaledFlexiMap map = new JournaledFlexiMap(Some.thing(multiMapPut), noClosure, journal, 1 << 20);
+        map.put("gone", "soon");
+        map.clear();
+        map.put("key", "value 1");
+        map.put("key", "value 2");
+        map.put(null, "no key");
+        map.close();
+
+        map = new JournaledFlexiMap(Some.thing(multiMapPut), noClosure, journal, 1 << 20);
+        assertEquals(Arrays.asList("value 1", "value 2"), map.get("key"));
+        assertEquals(Arrays.asList("no key"), map.get(null));
+        assertEquals(2, map.size());
+        map.close();
+    }
+
+    /*
+     * A crash in the middle of writing a record leaves junk at
+     * the end of the journal, which opening it should ignore.
+     */
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        final Path journal = folder.newFile("torn.log").toPath();
+
+        JournaledFlexiMap map = new JournaledFlexiMap(noClosure, noClosure, journal, 1 << 20);
+        map.put("key", "value");
+        map.close();
+        final long good = Files.size(journal);
+
+        Files.write(journal, new byte[] { 0, 0, 0, 42, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        map = new JournaledFlexiMap(noClosure, noClosure, journal, 1 << 20);
+        assertEquals("value", map.get("key"));
+        assertEquals(good, map.journalSize());
+        map.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        final Path journal = folder.newFile("compact.log").toPath();
+
+        JournaledFlexiMap map = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 1 << 30);
+        for (int i = 0; i < 500; i++)
+            map.put(i % 5, "hit");
+        final long before = map.journalSize();
+        map.compact();
+        assertTrue( map.journalSize() < before / 10 );
+        map.put(0, "hit");
+        map.close();
+
+        map = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 1 << 30);
+        assertEquals(101, map.get(0));
+        assertEquals(100, map.get(4));
+        map.close();
+    }
+
+    /*
+     * Several writers at once, sharing the forcing of the file,
+     * and compacting in the background as they go.
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final Path journal = folder.newFile("concurrent.log").toPath();
+        final JournaledFlexiMap map = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 4096);
+
+        final Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 250; i++)
+                        map.put(i % 10, "hit");
+                }
+            };
+            writers[t].start();
+        }
+        for (final Thread writer : writers)
+            writer.join();
+        map.close();
+
+        final JournaledFlexiMap reopened = new JournaledFlexiMap(Some.thing(counter), noClosure, journal, 4096);
+        int total = 0;
+        for (final Object v : reopened.values())
+            total += (Integer) v;
+        assertEquals(1000, total);
+        reopened.close();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.junit.Test;
+
+/**
+ * Tests the read-through {@link LoadingFlexiMap} against a loader that just
+ * counts how often it is called.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class LoadingFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final AtomicInteger loads = new AtomicInteger();
+
+    final Closure loader = new Closure() {
+        public Object apply(final Object... objects) {
+            return "loaded " + objects[0] + " #" + loads.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void testLoadsOnMiss() {
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, loader);
+        assertEquals("loaded key #1", map.get("key"));
+        assertEquals("loaded key #1", map.get("key"));
+        map.put("other", "stored");
+        assertEquals("stored", map.get("other"));
+        assertEquals(1, loads.get());
+    }
+
+    /*
+     * A hundred threads ask for the same cold key while the
+     * loader is stuck. Only one of them should call it.
+     */
+    @Test
+    public void testConcurrentMissesLoadOnce() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Closure slowLoader = new Closure() {
+            public Object apply(final Object... objects) {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "slow";
+            }
+        };
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, slowLoader);
+
+        final AtomicInteger wrong = new AtomicInteger();
+        final Thread[] threads = new Thread[100];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    if (!"slow".equals(map.get("cold")))
+                        wrong.incrementAndGet();
+                }
+            };
+            threads[t].start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (final Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, wrong.get());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testLoaderFailureIsNotStored() {
+        final Closure failing = new Closure() {
+            public Object apply(final Object... objects) {
+                if (loads.incrementAndGet() == 1)
+                    throw new IllegalStateException("store is down");
+                return "recovered";
+            }
+        };
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, failing);
+        try {
+            map.get("key");
+            fail("Expected the loader's exception");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertFalse( map.containsKey("key") );
+        assertEquals("recovered", map.get("key"));
+    }
+
+    @Test
+    public void testExpiryAndRefreshAhead() {
+        final MutableClock clock = new MutableClock();
+        final Executor inline = new Executor() {
+            public void execute(final Runnable task) {
+                task.run();
+            }
+        };
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, loader,
+                                                        1000, 200, inline, clock);
+
+        assertEquals("loaded key #1", map.get("key"));
+        clock.now = 500;
+        assertEquals("loaded key #1", map.get("key"));
+
+        // Within the refresh window: the current value comes back,
+        // but a reload has already happened behind it.
+        clock.now = 850;
+        assertEquals("loaded key #1", map.get("key"));
+        assertEquals("loaded key #2", map.get("key"));
+
+        // Past expiry: the get has to wait for the loader.
+        clock.now = 2000;
+        assertEquals("loaded key #3", map.get("key"));
+        assertEquals(3, loads.get());
+    }
+
+    /*
+     * A put or remove made while a slow load of the same key is
+     * under way wins over what the load brings back.
+     */
+    @Test
+    public void testWriteDuringLoadWins() throws InterruptedException {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Closure slowLoader = new Closure() {
+            public Object apply(final Object... objects) {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "loaded " + loads.incrementAndGet();
+            }
+        };
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, slowLoader);
+
+        final Thread putter = new Thread() {
+            public void run() {
+                map.get("put");
+            }
+        };
+        putter.start();
+        loading.await();
+        map.put("put", "newer");
+        release.countDown();
+        putter.join();
+        assertEquals("newer", map.get("put"));
+
+        final CountDownLatch loading2 = new CountDownLatch(1);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        final LoadingFlexiMap map2 = new LoadingFlexiMap(noClosure, noClosure, new Closure() {
+            public Object apply(final Object... objects) {
+                loading2.countDown();
+                try {
+                    release2.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "loaded";
+            }
+        });
+        final Thread remover = new Thread() {
+            public void run() {
+                map2.get("key");
+            }
+        };
+        remover.start();
+        loading2.await();
+        map2.remove("key");
+        release2.countDown();
+        remover.join();
+        assertFalse( map2.containsKey("key") );
+    }
+
+    /*
+     * A put that lands after get saw the miss, but before the
+     * load got going, still wins over the loaded value.
+     */
+    @Test
+    public void testPutBeforeLoadStartsWins() throws InterruptedException {
+        final CountDownLatch missed = new CountDownLatch(1);
+        final CountDownLatch put = new CountDownLatch(1);
+        final LoadingFlexiMap map = new LoadingFlexiMap(noClosure, noClosure, loader) {
+            Object lookup(final Object key) {
+                final Object value = super.lookup(key);
+                if (missed.getCount() > 0) {
+                    missed.countDown();
+                    try {
+                        put.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return value;
+            }
+        };
+        final Thread getter = new Thread() {
+            public void run() {
+                map.get("key");
+            }
+        };
+        getter.start();
+        missed.await();
+        map.put("key", "newer");
+        put.countDown();
+        getter.join();
+
+        assertEquals(1, loads.get());
+        assertEquals("newer", map.get("key"));
+    }
+
+    static class MutableClock extends Clock {
+        volatile long now = 0;
+
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+        public Clock withZone(final ZoneId zone) {
+            return this;
+        }
+        public long millis() {
+            return now;
+        }
+        public Instant instant() {
+            return Instant.ofEpochMilli(now);
+        }
+    }
+}
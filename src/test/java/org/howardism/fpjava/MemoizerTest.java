@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.howardism.fpjava.LoadingFlexiMapTest.MutableClock;
+import org.junit.Test;
+
+/**
+ * Tests the {@link Memoizer} closure cache.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class MemoizerTest
+{
+    final AtomicInteger calls = new AtomicInteger();
+
+    final Closure concat = new Closure() {
+        public Object apply(final Object... objects) {
+            calls.incrementAndGet();
+            final StringBuilder result = new StringBuilder();
+            for (final Object o : objects)
+                result.append(o);
+            return result.toString();
+        }
+    };
+
+    @Test
+    public void testRemembers() {
+        final Memoizer memo = Closures.memoize(concat, new Memoizer.Policy(Memoizer.Eviction.LRU, 100));
+        assertEquals("a", memo.apply("a"));
+        assertEquals("a", memo.apply("a"));
+        assertEquals("ab", memo.apply("a", "b"));
+        assertEquals("ab", memo.apply(new Object[] { "a", "b" }));
+        assertEquals("abc", memo.apply("a", "b", "c"));
+        assertEquals("abc", memo.apply("a", "b", "c"));
+        assertEquals("", memo.apply());
+        assertEquals("", memo.apply());
+        assertEquals("null", memo.apply((Object) null));
+        assertEquals("null", memo.apply((Object) null));
+
+        assertEquals(5, calls.get());
+        assertEquals(5, memo.missCount());
+        assertEquals(5, memo.hitCount());
+        assertEquals(0.5, memo.hitRate(), 0);
+        assertEquals(5, memo.size());
+
+        memo.invalidateAll();
+        assertEquals(0, memo.size());
+        memo.apply("a");
+        assertEquals(6, calls.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        final Memoizer memo = Memoizer.memoize(concat, new Memoizer.Policy(Memoizer.Eviction.LRU, 3));
+        memo.apply(1);
+        memo.apply(2);
+        memo.apply(3);
+        memo.apply(1);
+        memo.apply(4);
+        assertEquals(3, memo.size());
+        assertEquals(1, memo.evictionCount());
+
+        calls.set(0);
+        memo.apply(1);
+        memo.apply(3);
+        memo.apply(4);
+        assertEquals(0, calls.get());
+        memo.apply(2);
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testLeastFrequentlyUsed() {
+        final Memoizer memo = Memoizer.memoize(concat, new Memoizer.Policy(Memoizer.Eviction.LFU, 3));
+        memo.apply(1);
+        for (int i = 0; i < 10; i++)
+            memo.apply(1);
+        memo.apply(2);
+        memo.apply(2);
+        memo.apply(3);
+        memo.apply(3);
+        memo.apply(4);
+
+        calls.set(0);
+        memo.apply(1);
+        assertEquals(0, calls.get());
+        assertEquals(3, memo.size());
+    }
+
+    @Test
+    public void testExpiring() {
+        final MutableClock clock = new MutableClock();
+        final Memoizer memo = Memoizer.memoize(concat, new Memoizer.Policy(Memoizer.Eviction.LRU, 10, 1000, clock));
+        memo.apply("x");
+        clock.now = 999;
+        memo.apply("x");
+        assertEquals(1, calls.get());
+        clock.now = 1000;
+        memo.apply("x");
+        assertEquals(2, calls.get());
+        assertEquals(1, memo.expirationCount());
+    }
+
+    @Test
+    public void testFailuresAreNotRemembered() {
+        final RuntimeException problem = new IllegalStateException("Can't parse");
+        final Memoizer memo = Memoizer.memoize(Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                calls.incrementAndGet();
+                throw problem;
+            }
+        }), new Memoizer.Policy(Memoizer.Eviction.LRU, 10));
+        for (int i = 0; i < 2; i++) {
+            try {
+                memo.apply("bad");
+                fail("The closure should have thrown");
+            }
+            catch (IllegalStateException e) {
+                assertSame(problem, e);
+            }
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, memo.size());
+    }
+
+    @Test
+    public void testConcurrentCallsComputeOnce() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Memoizer memo = Memoizer.memoize(Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                calls.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "slow " + a;
+            }
+        }), new Memoizer.Policy(Memoizer.Eviction.LRU, 10));
+
+        final AtomicReference<Object> failure = new AtomicReference<Object>();
+        final Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    final Object result = memo.apply("key");
+                    if (!"slow key".equals(result))
+                        failure.set(result);
+                }
+            };
+            threads[i].start();
+        }
+        started.await();
+        Thread.sleep(50);
+        release.countDown();
+        for (final Thread t : threads)
+            t.join();
+
+        assertEquals(null, failure.get());
+        assertEquals(1, calls.get());
+        assertEquals(1, memo.missCount());
+        assertEquals(threads.length - 1, memo.hitCount());
+    }
+
+    @Test
+    public void testManyKeys() {
+        final Memoizer memo = Memoizer.memoize(concat, new Memoizer.Policy(Memoizer.Eviction.LFU, 1000));
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i + "-" + (i % 7), memo.apply(i, "-" + (i % 7)));
+        assertTrue(memo.size() <= 1000);
+        assertEquals(10000, memo.missCount());
+        assertEquals(10000 - memo.size(), memo.evictionCount());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Checks that the {@link MemoizingFlexiMap} only calls its "onGet" closure
+ * when it has to, and never hands back a stale result.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class MemoizingFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final AtomicInteger calls = new AtomicInteger();
+
+    /*
+     * Pretend this is expensive, and count how often it runs.
+     */
+    final Closure describe = new Closure() {
+        public Object apply(final Object... objects) {
+            calls.incrementAndGet();
+            return objects[0] + "=" + objects[1];
+        }
+    };
+
+    @Test
+    public void testRepeatedGetsAreCached() {
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(noClosure, Some.thing(describe), 100);
+        map.put("key", "value");
+        calls.set(0);
+
+        for (int i = 0; i < 10; i++)
+            assertEquals("key=value", map.get("key"));
+
+        assertEquals(1, calls.get());
+        assertEquals(9, map.hitCount());
+    }
+
+    @Test
+    public void testPutAndRemoveInvalidate() {
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(noClosure, Some.thing(describe), 100);
+        map.put("key", "value-1");
+        assertEquals("key=value-1", map.get("key"));
+        map.put("key", "value-2");
+        assertEquals("key=value-2", map.get("key"));
+        map.remove("key");
+        assertEquals("key=null", map.get("key"));
+        map.put("key", "value-3");
+        map.clear();
+        assertEquals("key=null", map.get("key"));
+    }
+
+    /*
+     * The multi-map's "onPut" changes the stored list in place,
+     * so the identity of the stored value never changes. The put
+     * itself has to throw the cached result away.
+     */
+    /*
+     * The old value a put or remove returns is worked out, but
+     * not cached against a value that's gone.
+     */
+    @Test
+    public void testPutAndRemoveLeaveCacheAlone() {
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(noClosure, Some.thing(describe), 100);
+        assertEquals("key=null", map.put("key", "value-1"));
+        assertEquals("key=value-1", map.put("key", "value-2"));
+        assertEquals("key=value-2", map.remove("key"));
+        assertEquals("other=null", map.remove("other"));
+        assertEquals(0, map.cacheSize());
+        assertEquals(0, map.missCount());
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testInPlaceChangesInvalidate() {
+        final Closure append = new Closure() {
+            @SuppressWarnings("unchecked")
+            public Object apply(final Object... objects) {
+                final List<Object> values = objects[0] == null
+                    ? new ArrayList<Object>() : (List<Object>) objects[0];
+                values.add(objects[1]);
+                return values;
+            }
+        };
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(Some.thing(append), Some.thing(describe), 100);
+        map.put("key", "a");
+        assertEquals("key=[a]", map.get("key"));
+        map.put("key", "b");
+        assertEquals("key=[a, b]", map.get("key"));
+    }
+
+    @Test
+    public void testBoundedSize() {
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(noClosure, Some.thing(describe), 64);
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+            map.get(i);
+        }
+        assertTrue( map.cacheSize() <= 64 );
+        assertTrue( map.evictionCount() > 0 );
+        assertEquals("5=5", map.get(5));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final MemoizingFlexiMap map = new MemoizingFlexiMap(noClosure, Some.thing(describe), 256);
+        for (int i = 0; i < 512; i++)
+            map.put(i, i);
+        final long before = map.hitCount() + map.missCount();
+
+        final AtomicInteger wrong = new AtomicInteger();
+        final Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        final int key = (i * 7) % 512;
+                        if (!(key + "=" + key).equals(map.get(key)))
+                            wrong.incrementAndGet();
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (final Thread reader : readers)
+            reader.join();
+
+        assertEquals(0, wrong.get());
+        assertEquals(80000, map.hitCount() + map.missCount() - before);
+    }
+}
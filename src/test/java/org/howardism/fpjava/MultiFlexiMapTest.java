@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link MultiFlexiMap}, in much the same way as the multi-map
+ * built from a {@link FlexiMap} closure is tested.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class MultiFlexiMapTest
+{
+    @Test
+    public void testMultiMap() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        assertNull( map.get("key") );
+
+        assertNull( map.put("key", "value 1") );
+        final List<Object> values = map.get("key");
+        assertEquals(Arrays.asList("value 1"), values);
+
+        map.put("key", "value 2");
+        map.put("key", "value 3");
+        assertEquals(Arrays.asList("value 1", "value 2", "value 3"), values);
+        assertEquals(3, map.valueCount("key"));
+        assertEquals(1, map.size());
+        assertEquals(3, map.valueCount());
+    }
+
+    /*
+     * Put returns the values from before, and they stay that
+     * way whatever happens to the key afterwards.
+     */
+    @Test
+    public void testPutReturnsPreviousValues() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        assertNull( map.put("key", "a") );
+        final List<Object> one = map.put("key", "b");
+        assertEquals(Arrays.asList("a"), one);
+        final List<Object> two = map.put("key", "c");
+        assertEquals(Arrays.asList("a", "b"), two);
+
+        map.removeValue("key", "a");
+        map.put("key", "d");
+        assertEquals(Arrays.asList("a"), one);
+        assertEquals(Arrays.asList("a", "b"), two);
+        assertEquals(Arrays.asList("b", "c", "d"), map.get("key"));
+        try {
+            two.add("e");
+            fail("The previous values can't be changed");
+        }
+        catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRemoveValue() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        map.put("key", "a");
+        map.put("key", null);
+        map.put("key", "b");
+        final List<Object> values = map.get("key");
+
+        assertTrue( map.removeValue("key", null) );
+        assertFalse( map.removeValue("key", "z") );
+        assertEquals(Arrays.asList("a", "b"), values);
+        assertTrue( map.containsEntry("key", "b") );
+
+        assertTrue( map.removeValue("key", "a") );
+        assertEquals(Arrays.asList("b"), values);
+        assertTrue( map.removeValue("key", "b") );
+        assertFalse( map.containsKey("key") );
+        assertTrue( values.isEmpty() );
+        assertEquals(0, map.valueCount());
+    }
+
+    @Test
+    public void testRemoveAndAddAll() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        map.addAll("letters", Arrays.asList("a", "b", "c"));
+        map.addAll("letters", Arrays.asList("d"));
+        map.addAll("one", Arrays.asList("x"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), map.get("letters"));
+        assertEquals(Arrays.asList("x"), map.get("one"));
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), map.remove("letters"));
+        assertNull( map.remove("letters") );
+        assertEquals(1, map.valueCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testViewsAreReadOnly() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        map.put("key", "value");
+        map.get("key").add("other");
+    }
+
+    @Test
+    public void testIteration() {
+        final MultiFlexiMap map = new MultiFlexiMap();
+        for (int i = 0; i < 100; i++)
+            map.put(i % 10, i);
+        assertEquals(10, map.size());
+
+        final Iterator<Map.Entry<Object, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Object, Object> entry = it.next();
+            assertEquals(10, ((List<?>) entry.getValue()).size());
+            if ((Integer) entry.getKey() % 2 == 0)
+                it.remove();
+        }
+        assertEquals(5, map.size());
+        assertEquals(50, map.valueCount());
+        assertEquals(3, map.get(3).get(0));
+    }
+}
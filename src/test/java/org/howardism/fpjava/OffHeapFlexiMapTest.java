@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OffHeapFlexiMap}, mostly by comparing it against a
+ * {@link HashMap} given the same changes.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class OffHeapFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    @Test
+    public void testCounting() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(Some.thing(counter), noClosure,
+                                                        Codecs.STRING, Codecs.INTEGER);
+        try {
+            final String[] words = "the cat and the hat and the bat".split(" ");
+            for (final String word : words)
+                map.put(word, word);
+
+            assertEquals(3, map.get("the"));
+            assertEquals(2, map.get("and"));
+            assertEquals(1, map.get("bat"));
+            assertNull( map.get("dog") );
+            assertEquals(5, map.size());
+        }
+        finally {
+            map.close();
+        }
+    }
+
+    @Test
+    public void testNulls() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure, Codecs.STRING, Codecs.STRING);
+        map.put(null, "no key");
+        map.put("no value", null);
+        assertEquals("no key", map.get(null));
+        assertTrue( map.containsKey("no value") );
+        assertNull( map.get("no value") );
+        assertEquals("no key", map.remove(null));
+        assertFalse( map.containsKey(null) );
+        map.close();
+    }
+
+    /*
+     * Lots of overwrites and removes with small slabs, so the
+     * index grows and the slabs get compacted several times.
+     */
+    @Test
+    public void testAgainstHashMap() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure,
+                                                        Codecs.LONG, Codecs.STRING, 4096);
+        final Map<Object, Object> expected = new HashMap<Object, Object>();
+        for (int i = 0; i < 20000; i++) {
+            final long key = (i * 7919L) % 1000;
+            if (i % 5 == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            else {
+                final String value = "value " + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertTrue( map.garbageBytes() <= Math.max(map.liveBytes(), 4096) );
+        assertTrue( map.offHeapBytes() < 128 * 1024 );
+
+        map.clear();
+        assertTrue( map.isEmpty() );
+        assertEquals(0, map.liveBytes());
+        map.close();
+        assertEquals(0, map.offHeapBytes());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure, Codecs.INTEGER, Codecs.INTEGER);
+        for (int i = 0; i < 100; i++)
+            map.put(i, i * i);
+
+        final Iterator<Map.Entry<Object, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Object, Object> entry = it.next();
+            if ((Integer) entry.getKey() % 2 == 0)
+                it.remove();
+            else
+                entry.setValue(-1);
+        }
+        assertEquals(50, map.size());
+        assertFalse( map.containsKey(4) );
+        assertEquals(-1, map.get(5));
+        map.close();
+    }
+
+    @Test
+    public void testLargeRecords() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure, Codecs.STRING, Codecs.STRING, 64);
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            big.append(i);
+        map.put("big", big.toString());
+        map.put("small", "x");
+        assertEquals(big.toString(), map.get("big"));
+        assertEquals("x", map.get("small"));
+        map.close();
+    }
+
+    /*
+     * Putting and removing keys leaves tombstones in the index,
+     * which a rehash clears out rather than doubling the index.
+     */
+    @Test
+    public void testChurnKeepsIndexSmall() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure, Codecs.INTEGER, Codecs.INTEGER, 4096);
+        try {
+            for (int i = 0; i < 200000; i++) {
+                map.put(i, i);
+                map.remove(i);
+            }
+            map.put(-1, -1);
+            assertEquals(1, map.size());
+            assertEquals(-1, map.get(-1));
+            assertTrue( map.offHeapBytes() < 16384 );
+        }
+        finally {
+            map.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() {
+        final OffHeapFlexiMap map = new OffHeapFlexiMap(noClosure, noClosure, Codecs.STRING, Codecs.STRING);
+        map.put("a", "b");
+        map.close();
+        map.close();
+        map.get("a");
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests running closures over collections with {@link Parallel}, on
+ * collections big enough to be split up.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ParallelTest
+{
+    final List<Object> numbers = numbers(100000);
+
+    final Closure squared = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (long) (Integer) a * (Integer) a;
+        }
+    });
+
+    final Closure isEven = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (Integer) a % 2 == 0;
+        }
+    });
+
+    final Closure plus = Closures.asClosure(new Closure2() {
+        public Object apply(final Object a, final Object b) {
+            return (Long) a + (Long) b;
+        }
+    });
+
+    @Test
+    public void testMap() {
+        final List<Object> squares = new Parallel().map(numbers, squared);
+        assertEquals(numbers.size(), squares.size());
+        for (int i = 0; i < numbers.size(); i++)
+            assertEquals((long) i * i, squares.get(i));
+    }
+
+    @Test
+    public void testFilter() {
+        final List<Object> evens = new Parallel().filter(numbers, isEven);
+        assertEquals(numbers.size() / 2, evens.size());
+        for (int i = 0; i < evens.size(); i++)
+            assertEquals(i * 2, evens.get(i));
+    }
+
+    @Test
+    public void testReduce() {
+        final Parallel parallel = new Parallel();
+        long expected = 0;
+        for (int i = 0; i < numbers.size(); i++)
+            expected += (long) i * i;
+        assertEquals(expected, parallel.reduce(parallel.map(numbers, squared), plus));
+        assertNull(parallel.reduce(Collections.emptyList(), plus));
+        assertEquals(7L, parallel.reduce(Arrays.asList(7L), plus));
+    }
+
+    @Test
+    public void testFlatMap() {
+        final List<Object> pairs = new Parallel().flatMap(numbers, Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                final int n = (Integer) a;
+                if (n % 3 == 0)
+                    return null;
+                return n % 3 == 1 ? Arrays.asList(n) : Arrays.asList(n, -n);
+            }
+        }));
+        final List<Object> expected = new ArrayList<Object>();
+        for (int n = 0; n < numbers.size(); n++) {
+            if (n % 3 == 1)
+                expected.add(n);
+            else if (n % 3 == 2) {
+                expected.add(n);
+                expected.add(-n);
+            }
+        }
+        assertEquals(expected, pairs);
+    }
+
+    @Test
+    public void testGroupBy() {
+        final Closure lastDigit = Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                return (Integer) a % 10;
+            }
+        });
+        final Map<Object, List<Object>> ordered = new Parallel().groupBy(numbers, lastDigit);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), new ArrayList<Object>(ordered.keySet()));
+        final List<Object> sevens = ordered.get(7);
+        assertEquals(numbers.size() / 10, sevens.size());
+        for (int i = 0; i < sevens.size(); i++)
+            assertEquals(i * 10 + 7, sevens.get(i));
+
+        final ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            final Map<Object, List<Object>> unordered = new Parallel(pool, false, 100).groupBy(numbers, lastDigit);
+            assertEquals(10, unordered.size());
+            for (final Map.Entry<Object, List<Object>> entry : unordered.entrySet()) {
+                assertEquals(numbers.size() / 10, entry.getValue().size());
+                for (final Object n : entry.getValue())
+                    assertEquals(entry.getKey(), (Integer) n % 10);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallCollections() {
+        final Parallel parallel = new Parallel(ForkJoinPool.commonPool(), true, 10);
+        final List<Object> few = numbers(5);
+        final List<Object> threads = parallel.map(few, new Closure() {
+            public Object apply(final Object... objects) {
+                return Thread.currentThread();
+            }
+        });
+        for (final Object thread : threads)
+            assertTrue(thread == Thread.currentThread());
+        assertEquals(Arrays.asList(0, 2, 4), parallel.filter(few, isEven));
+        assertEquals(0, parallel.map(Collections.emptyList(), squared).size());
+    }
+
+    private static List<Object> numbers(final int count) {
+        final List<Object> numbers = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++)
+            numbers.add(i);
+        return numbers;
+    }
+}
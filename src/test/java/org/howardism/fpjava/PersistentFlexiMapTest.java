@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the {@link PersistentFlexiMap}, and that its snapshots stay put.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PersistentFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    /*
+     * A key whose hash codes are all the same, to fill up the
+     * collision nodes.
+     */
+    static final class Clash {
+        Clash(final int id) {
+            this.id = id;
+        }
+        public int hashCode() {
+            return 42;
+        }
+        public boolean equals(final Object o) {
+            return o instanceof Clash && ((Clash) o).id == id;
+        }
+        final int id;
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        final PersistentFlexiMap map = new PersistentFlexiMap(noClosure, noClosure);
+        final Map<Object, Object> expected = new HashMap<Object, Object>();
+        final Random random = new Random(7);
+        for (int i = 0; i < 50000; i++) {
+            final Object key = random.nextInt(5) == 0 ? new Clash(random.nextInt(20)) : random.nextInt(3000);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else
+                assertEquals(expected.put(key, i), map.put(key, i));
+        }
+        map.put(null, "nothing");
+        expected.put(null, "nothing");
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<Object, Object>(map));
+    }
+
+    @Test
+    public void testSnapshot() {
+        final PersistentFlexiMap map = new PersistentFlexiMap(Some.thing(counter), noClosure);
+        for (int i = 0; i < 1000; i++)
+            map.put(i % 100, "hit");
+
+        final Map<Object, Object> before = map.snapshot();
+        map.put(1, "hit");
+        map.remove(2);
+        map.put("new", "hit");
+
+        assertEquals(10, before.get(1));
+        assertEquals(10, before.get(2));
+        assertFalse( before.containsKey("new") );
+        assertEquals(100, before.size());
+        assertEquals(11, map.get(1));
+        assertNull( map.get(2) );
+        assertEquals(100, map.size());
+
+        map.clear();
+        assertTrue( map.isEmpty() );
+        assertEquals(100, before.entrySet().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsReadOnly() {
+        final PersistentFlexiMap map = new PersistentFlexiMap(noClosure, noClosure);
+        map.put("key", "value");
+        map.snapshot().put("other", "value");
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final PersistentFlexiMap map = new PersistentFlexiMap(noClosure, noClosure);
+        for (int i = 0; i < 100; i++)
+            map.put(i, i);
+        final Iterator<Map.Entry<Object, Object>> it = map.entrySet().iterator();
+        while (it.hasNext())
+            if ((Integer) it.next().getKey() < 50)
+                it.remove();
+        assertEquals(50, map.size());
+        assertFalse( map.containsKey(10) );
+    }
+
+    /*
+     * Readers iterate snapshots while writers keep counting;
+     * each snapshot has to add up the way it did when taken.
+     */
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+        final PersistentFlexiMap map = new PersistentFlexiMap(Some.thing(counter), noClosure);
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++)
+                        map.put(i % 500, "hit");
+                }
+            };
+            writers[t].start();
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread reader = new Thread() {
+            public void run() {
+                try {
+                    readSnapshots();
+                }
+                catch (final Throwable e) {
+                    failure.set(e);
+                }
+            }
+
+            private void readSnapshots() {
+                while (!done.get()) {
+                    final Map<Object, Object> snapshot = map.snapshot();
+                    int count = 0;
+                    for (final Map.Entry<Object, Object> entry : snapshot.entrySet()) {
+                        assertEquals(snapshot.get(entry.getKey()), entry.getValue());
+                        count++;
+                    }
+                    assertEquals(snapshot.size(), count);
+                }
+            }
+        };
+        reader.start();
+        for (final Thread writer : writers)
+            writer.join();
+        done.set(true);
+        reader.join();
+        assertNull( failure.get() );
+
+        int total = 0;
+        for (final Object value : map.values())
+            total += (Integer) value;
+        assertEquals(80000, total);
+    }
+}
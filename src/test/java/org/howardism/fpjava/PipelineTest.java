@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.invoke.MethodHandle;
+
+import org.junit.Test;
+
+/**
+ * Tests composing closures into a {@link Pipeline}.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PipelineTest
+{
+    final Closure increment = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (Integer) a + 1;
+        }
+    });
+
+    final Closure doubled = new Closure() {
+        public Object apply(final Object... objects) {
+            return (Integer) objects[0] * 2;
+        }
+    };
+
+    final Closure isNull = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return a == null;
+        }
+    });
+
+    final Closure zero = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return 0;
+        }
+    });
+
+    final Closure isEven = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (Integer) a % 2 == 0;
+        }
+    });
+
+    @Test
+    public void testAndThenAndCompose() {
+        assertEquals(8, Pipeline.of(increment).andThen(doubled).apply(3));
+        assertEquals(7, Pipeline.of(increment).compose(doubled).apply(3));
+        assertEquals(7, Pipeline.of(increment).compose(doubled).apply(new Object[] { 3 }));
+        assertEquals("x", Pipeline.identity().apply("x"));
+    }
+
+    @Test
+    public void testDefaultingNulls() {
+        final Pipeline pipeline = Pipeline.identity()
+                .when(isNull, zero)
+                .andThen(increment);
+        assertEquals(1, pipeline.apply((Object) null));
+        assertEquals(6, pipeline.apply(5));
+    }
+
+    @Test
+    public void testBranch() {
+        final Pipeline half = Pipeline.of(Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                return (Integer) a / 2;
+            }
+        }));
+        final Pipeline collatz = Pipeline.branch(isEven, half, Pipeline.of(doubled).andThen(doubled).compose(increment));
+        assertEquals(3, collatz.apply(6));
+        assertEquals(24, collatz.apply(5));
+        assertEquals(8, Pipeline.of(increment).when(isEven, doubled, increment).apply(3));
+    }
+
+    @Test
+    public void testDeepPipeline() throws Throwable {
+        Pipeline pipeline = Pipeline.identity();
+        for (int i = 0; i < 16; i++)
+            pipeline = pipeline.andThen(i % 2 == 0 ? Pipeline.of(increment) : increment);
+        assertEquals(16, pipeline.apply(0));
+
+        final MethodHandle handle = pipeline.asMethodHandle();
+        assertEquals(20, (Object) handle.invokeExact((Object) 4));
+    }
+
+    @Test
+    public void testExceptionsPassThrough() {
+        final RuntimeException problem = new IllegalArgumentException("Not valid");
+        final Pipeline pipeline = Pipeline.of(increment).andThen(Closures.asClosure(new Closure1() {
+            public Object apply(final Object a) {
+                throw problem;
+            }
+        }));
+        try {
+            pipeline.apply(1);
+            fail("The validation should have thrown");
+        }
+        catch (IllegalArgumentException e) {
+            assertSame(problem, e);
+        }
+    }
+}
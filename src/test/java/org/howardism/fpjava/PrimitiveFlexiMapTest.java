@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * The primitive maps ({@link IntFlexiMap} and {@link LongFlexiMap}) should
+ * behave like a {@link FlexiMap} of counters, just without the boxing.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PrimitiveFlexiMapTest
+{
+    final static Option<LongLongClosure> noPut = None.thing();
+    final static Option<IntLongClosure>  noGet = None.thing();
+
+    final static LongLongClosure sum = new LongLongClosure() {
+        public long apply(final long oldvalue, final long value) {
+            return oldvalue + value;
+        }
+    };
+
+    @Test
+    public void testBasicIntMap() {
+        final IntFlexiMap map = new IntFlexiMap(noPut, noGet);
+        assertEquals(0, map.put(1, 10));
+        assertEquals(10, map.put(1, 20));
+        assertEquals(20, map.get(1));
+        assertEquals(0, map.get(2));
+        assertTrue( map.containsKey(1) );
+        assertFalse( map.containsKey(2) );
+    }
+
+    /*
+     * The counter pattern: "onPut" adds, and missing keys count as zero.
+     */
+    @Test
+    public void testIntCounter() {
+        final IntFlexiMap map = new IntFlexiMap(Some.thing(sum), noGet);
+        for (int i = 0; i < 100; i++)
+            map.put(i % 7, 1);
+        assertEquals(15, map.get(0));
+        assertEquals(14, map.get(6));
+        assertEquals(0, map.get(7));
+        assertEquals(7, map.size());
+    }
+
+    /*
+     * Same as the FlexiMapTest's testNullDefaultsToZero, where
+     * a missing value comes back as some default.
+     */
+    @Test
+    public void testMissingValueDefault() {
+        final IntLongClosure defaultToFortyTwo = new IntLongClosure() {
+            public long apply(final int key, final long value) {
+                return value == Long.MIN_VALUE ? 42 : value;
+            }
+        };
+        final IntFlexiMap map = new IntFlexiMap(noPut, Some.thing(defaultToFortyTwo), Long.MIN_VALUE);
+        assertEquals(42, map.get(5));
+        map.put(5, 7);
+        assertEquals(7, map.get(5));
+        assertEquals(7, map.remove(5));
+        assertEquals(42, map.get(5));
+    }
+
+    /*
+     * Compare a long run of puts and removes (including the zero
+     * key, which is stored separately) against a HashMap.
+     */
+    @Test
+    public void testIntMapAgainstHashMap() {
+        final IntFlexiMap map = new IntFlexiMap(Some.thing(sum), noGet);
+        final Map<Integer, Long> expected = new HashMap<Integer, Long>();
+
+        for (int i = 0; i < 50000; i++) {
+            final int key = (i * 31) % 4099 - 2000;
+            map.put(key, i);
+            expected.put(key, (expected.containsKey(key) ? expected.get(key) : 0L) + i);
+            if (i % 5 == 0) {
+                final int gone = (i * 17) % 4099 - 2000;
+                map.remove(gone);
+                expected.remove(gone);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (final int key : map.keys())
+            assertEquals((long) expected.get(key), map.get(key));
+        for (final Map.Entry<Integer, Long> e : expected.entrySet())
+            assertEquals((long) e.getValue(), map.get(e.getKey()));
+    }
+
+    @Test
+    public void testLongMapAgainstHashMap() {
+        final Option<LongLongClosure> noLongGet = None.thing();
+        final LongFlexiMap map = new LongFlexiMap(Some.thing(sum), noLongGet);
+        final Map<Long, Long> expected = new HashMap<Long, Long>();
+
+        for (long i = 0; i < 50000; i++) {
+            final long key = ((i * 31) % 4099 - 2000) * 0x100000001L;
+            map.put(key, i);
+            expected.put(key, (expected.containsKey(key) ? expected.get(key) : 0L) + i);
+            if (i % 5 == 0) {
+                final long gone = ((i * 17) % 4099 - 2000) * 0x100000001L;
+                map.remove(gone);
+                expected.remove(gone);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (final long key : map.keys())
+            assertEquals((long) expected.get(key), map.get(key));
+        map.clear();
+        assertTrue( map.isEmpty() );
+        assertFalse( map.containsKey(0) );
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.howardism.fpjava.ChangePublisher.Change;
+import org.howardism.fpjava.ChangePublisher.Policy;
+import org.howardism.fpjava.ChangePublisher.Subscriber;
+import org.howardism.fpjava.ChangePublisher.Subscription;
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.junit.Test;
+
+/**
+ * Tests the changes a {@link PublishingFlexiMap} sends through its
+ * {@link ChangePublisher}, with each policy for slow subscribers.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class PublishingFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    /*
+     * Runs the delivery right away, on the writer's thread,
+     * which keeps the tests simple to follow.
+     */
+    final static Executor inline = new Executor() {
+        public void execute(final Runnable task) {
+            task.run();
+        }
+    };
+
+    /*
+     * Remembers what it's given, as strings.
+     */
+    static class Recorder implements Subscriber<Change> {
+        public void onSubscribe(final Subscription s) {
+            subscription = s;
+        }
+        public void onNext(final Change change) {
+            changes.add(change.kind() + " " + change.key() + " " + change.oldValue() + " " + change.newValue());
+        }
+        public void onError(final Throwable e) {
+            changes.add("error " + e);
+        }
+        public void onComplete() {
+            changes.add("complete");
+            done.countDown();
+        }
+
+        Subscription subscription;
+        final List<String> changes = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    PublishingFlexiMap makeMap(final Executor executor, final int bufferSize, final Policy policy) {
+        return new PublishingFlexiMap(noClosure, noClosure, new ChangePublisher(executor, bufferSize, policy));
+    }
+
+    @Test
+    public void testChanges() {
+        final PublishingFlexiMap map = makeMap(inline, 16, Policy.BLOCK);
+        map.put("before", "anyone listens");
+
+        final Recorder recorder = new Recorder();
+        map.changes().subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        map.put("key", 1);
+        map.put("key", 2);
+        map.remove("key");
+        map.clear();
+        map.changes().close();
+
+        assertEquals("[PUT key null 1, PUT key 1 2, REMOVE key 2 null, CLEAR null null null, complete]",
+                     recorder.changes.toString());
+    }
+
+    @Test
+    public void testDemand() {
+        final PublishingFlexiMap map = makeMap(inline, 16, Policy.BLOCK);
+        final Recorder recorder = new Recorder();
+        map.changes().subscribe(recorder);
+
+        for (int i = 0; i < 5; i++)
+            map.put(i, i);
+        assertTrue( recorder.changes.isEmpty() );
+        recorder.subscription.request(2);
+        assertEquals(2, recorder.changes.size());
+        recorder.subscription.request(10);
+        assertEquals(5, recorder.changes.size());
+
+        recorder.subscription.cancel();
+        map.put("after", "cancel");
+        assertEquals(5, recorder.changes.size());
+        assertFalse( map.changes().hasSubscribers() );
+    }
+
+    @Test
+    public void testDropOldest() {
+        final PublishingFlexiMap map = makeMap(inline, 4, Policy.DROP_OLDEST);
+        final Recorder recorder = new Recorder();
+        map.changes().subscribe(recorder);
+
+        for (int i = 0; i < 10; i++)
+            map.put(i, i);
+        recorder.subscription.request(100);
+        assertEquals("[PUT 6 null 6, PUT 7 null 7, PUT 8 null 8, PUT 9 null 9]", recorder.changes.toString());
+        assertEquals(6, map.changes().droppedCount());
+    }
+
+    @Test
+    public void testConflate() {
+        final PublishingFlexiMap map = makeMap(inline, 4, Policy.CONFLATE);
+        final Recorder recorder = new Recorder();
+        map.changes().subscribe(recorder);
+
+        map.put("a", 1);
+        map.put("b", 1);
+        map.put("a", 2);
+        map.remove("b");
+        map.put("a", 3);
+        recorder.subscription.request(100);
+        assertEquals("[PUT a null 3, REMOVE b null null]", recorder.changes.toString());
+
+        recorder.changes.clear();
+        recorder.subscription.cancel();
+        final Recorder second = new Recorder();
+        map.changes().subscribe(second);
+        map.put("c", 1);
+        map.clear();
+        map.put("d", 1);
+        second.subscription.request(100);
+        assertEquals("[CLEAR null null null, PUT d null 1]", second.changes.toString());
+    }
+
+    /*
+     * A writer that fills a slow subscriber's buffer waits for
+     * it, and nothing is lost.
+     */
+    @Test
+    public void testBlock() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final PublishingFlexiMap map = makeMap(executor, 2, Policy.BLOCK);
+            final Recorder recorder = new Recorder();
+            map.changes().subscribe(recorder);
+
+            final CountDownLatch written = new CountDownLatch(1);
+            final Thread writer = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++)
+                        map.put(i, i);
+                    written.countDown();
+                }
+            };
+            writer.start();
+            assertFalse( written.await(200, TimeUnit.MILLISECONDS) );
+
+            recorder.subscription.request(Long.MAX_VALUE);
+            assertTrue( written.await(10, TimeUnit.SECONDS) );
+            map.changes().close();
+            assertTrue( recorder.done.await(10, TimeUnit.SECONDS) );
+
+            assertEquals(101, recorder.changes.size());
+            for (int i = 0; i < 100; i++)
+                assertEquals("PUT " + i + " null " + i, recorder.changes.get(i));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBadRequest() {
+        final PublishingFlexiMap map = makeMap(inline, 4, Policy.BLOCK);
+        final Recorder recorder = new Recorder();
+        map.changes().subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue( recorder.changes.get(0).startsWith("error java.lang.IllegalArgumentException") );
+        assertFalse( map.changes().hasSubscribers() );
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the {@link Rope}, both on its own and as the value of a
+ * string-accumulating {@link FlexiMap}.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class RopeTest
+{
+    @Test
+    public void testAppending() {
+        final Rope empty = new Rope();
+        assertEquals("", empty.toString());
+        final Rope rope = empty.append("abc").append("").append(42).append(null);
+        assertEquals(9, rope.length());
+        assertEquals("abc42null", rope.toString());
+        assertEquals('4', rope.charAt(3));
+        assertEquals("42", rope.subSequence(3, 5));
+        assertEquals("", empty.toString());
+    }
+
+    /*
+     * Appending leaves the old rope alone, and the string is
+     * kept once it's been put together.
+     */
+    @Test
+    public void testPersistence() {
+        final Rope first = new Rope("first");
+        final Rope second = first.append(" second");
+        final String s = second.toString();
+        assertSame(s, second.toString());
+        final Rope third = second.append(" third");
+        final Rope other = second.append(" other");
+        assertEquals("first second third", third.toString());
+        assertEquals("first second other", other.toString());
+        assertEquals("first second", second.toString());
+        assertEquals("first", first.toString());
+    }
+
+    @Test
+    public void testStringConcatMap() {
+        final Map<Object, Object> map = new FlexiMap( Some.thing(Rope.appending(", ")),   // put
+                                                      Some.thing(Rope.rendering()) );     // get
+        assertNull( map.get("key") );
+        map.put("key", "value 1");
+        assertEquals("value 1",map.get("key"));
+        assertEquals("value 1", map.put("key", "value 2"));
+        assertEquals("value 1, value 2",map.get("key"));
+        map.put("key", "value 3");
+        assertEquals("value 1, value 2, value 3",map.get("key"));
+    }
+
+    /*
+     * Adding appends without rendering each time; a put still
+     * returns the string it replaced, like a get would.
+     */
+    @Test
+    public void testManyAppends() {
+        final FlexiMap map = new FlexiMap( Some.thing(Rope.appending("")),
+                                           Some.thing(Rope.rendering()) );
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            map.add("key", i % 10);
+            expected.append(i % 10);
+        }
+        assertEquals(expected.toString(), map.get("key"));
+        assertEquals(expected.toString(), map.put("key", "!"));
+        assertEquals(expected.append('!').toString(), map.get("key"));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the lazy {@link Seq}, mostly on sequences that never end.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class SeqTest
+{
+    final AtomicInteger pulled = new AtomicInteger();
+
+    final Closure increment = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            pulled.incrementAndGet();
+            return (Integer) a + 1;
+        }
+    });
+
+    final Closure doubled = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (Integer) a * 2;
+        }
+    });
+
+    final Closure isOdd = Closures.asClosure(new Closure1() {
+        public Object apply(final Object a) {
+            return (Integer) a % 2 != 0;
+        }
+    });
+
+    final Closure plus = Closures.asClosure(new Closure2() {
+        public Object apply(final Object a, final Object b) {
+            return (Integer) a + (Integer) b;
+        }
+    });
+
+    @Test
+    public void testInfiniteSequence() {
+        final Seq naturals = Seq.iterate(0, increment);
+        assertEquals(Arrays.asList(2, 6, 10),
+                     naturals.filter(isOdd).map(doubled).take(3).toList());
+        // Pulled up to 5, the third odd number, and no further.
+        assertEquals(5, pulled.get());
+    }
+
+    @Test
+    public void testLaziness() {
+        final Seq seq = Seq.iterate(0, increment).map(doubled).take(1000);
+        assertEquals(0, pulled.get());
+        final Iterator<Object> it = seq.iterator();
+        assertEquals(0, it.next());
+        assertEquals(2, it.next());
+        assertEquals(1, pulled.get());
+    }
+
+    @Test
+    public void testFusing() {
+        final Seq seq = Seq.range(0, 10).map(doubled).map(increment).take(7).take(5);
+        assertEquals(Arrays.asList(1, 3, 5, 7, 9), seq.toList());
+        assertEquals(5, seq.count());
+        assertEquals(Arrays.asList(1, 3), seq.take(2).toList());
+        assertEquals(Collections.emptyList(), seq.take(0).toList());
+    }
+
+    @Test
+    public void testZip() {
+        final Seq letters = Seq.of("a", "b", "c");
+        final Seq zipped = letters.zip(Seq.iterate(1, increment), Closures.asClosure(new Closure2() {
+            public Object apply(final Object a, final Object b) {
+                return a + "" + b;
+            }
+        }));
+        assertEquals(Arrays.asList("a1", "b2", "c3"), zipped.toList());
+        // Each run starts over.
+        assertEquals(Arrays.asList("a1", "b2", "c3"), zipped.toList());
+    }
+
+    @Test
+    public void testTerminals() {
+        assertEquals(45, Seq.range(0, 10).reduce(plus));
+        assertNull(Seq.range(0, 0).reduce(plus));
+        assertEquals(3, Seq.range(3, 10).first().get());
+        assertFalse(Seq.of().first().isPresent());
+        assertTrue(Seq.iterate(1, increment).filter(isOdd).first().isPresent());
+
+        final StringBuilder buf = new StringBuilder();
+        Seq.of(Arrays.asList("x", "y")).each(new Closure() {
+            public Object apply(final Object... objects) {
+                return buf.append(objects[0]);
+            }
+        });
+        assertEquals("xy", buf.toString());
+
+        final Seq once = Seq.of(Arrays.asList(1, 2, 3).iterator());
+        assertEquals(3, once.count());
+        assertEquals(0, once.count());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ShardedFlexiMap}, including counting from many threads
+ * with a closure that doesn't synchronize anything.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class ShardedFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    ShardedFlexiMap map;
+
+    @After
+    public void closeMap() {
+        if (map != null)
+            map.close();
+    }
+
+    @Test
+    public void testBlocking() {
+        map = new ShardedFlexiMap(noClosure, noClosure, 3);
+        assertNull( map.put("key", "value") );
+        assertEquals("value", map.put("key", "other"));
+        assertEquals("other", map.get("key"));
+        map.put(null, "no key");
+        assertTrue( map.containsKey(null) );
+        assertEquals(2, map.size());
+        assertEquals("no key", map.remove(null));
+        assertFalse( map.containsKey(null) );
+
+        final Map<Object, Object> expected = new HashMap<Object, Object>();
+        for (int i = 0; i < 100; i++)
+            expected.put(i, "value " + i);
+        map.putAll(expected);
+        expected.put("key", "other");
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<Object, Object>(map));
+
+        map.clear();
+        assertTrue( map.isEmpty() );
+    }
+
+    /*
+     * Setting a value through an entry puts it into the map,
+     * onPut and all.
+     */
+    @Test
+    public void testEntrySetValue() {
+        map = new ShardedFlexiMap(Some.thing(counter), noClosure, 3);
+        for (int i = 0; i < 10; i++)
+            map.put(i, "ignored");
+        for (final Map.Entry<Object, Object> entry : map.entrySet()) {
+            assertEquals(1, entry.setValue("ignored"));
+            assertEquals(2, entry.getValue());
+        }
+        for (int i = 0; i < 10; i++)
+            assertEquals(2, map.get(i));
+    }
+
+    @Test
+    public void testConcurrentCounting() throws Exception {
+        map = new ShardedFlexiMap(Some.thing(counter), noClosure, 4);
+        final List<CompletableFuture<Object>> futures = new ArrayList<CompletableFuture<Object>>();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        map.put(i % 100, "hit");
+                }
+            };
+            threads[t].start();
+        }
+        for (int i = 0; i < 1000; i++)
+            futures.add(map.putAsync(i % 100, "hit"));
+        for (final Thread thread : threads)
+            thread.join();
+        for (final CompletableFuture<Object> future : futures)
+            future.get();
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(810, map.get(i));
+    }
+
+    @Test
+    public void testFailingClosure() throws Exception {
+        final Closure failing = new Closure() {
+            public Object apply(final Object... objects) {
+                throw new IllegalArgumentException("bad value: " + objects[1]);
+            }
+        };
+        map = new ShardedFlexiMap(Some.thing(failing), noClosure, 2);
+        try {
+            map.putAsync("key", "value").get();
+            fail("The future should have failed");
+        }
+        catch (final ExecutionException e) {
+            assertTrue( e.getCause() instanceof IllegalArgumentException );
+        }
+        try {
+            map.put("key", "value");
+            fail("The put should have failed");
+        }
+        catch (final IllegalArgumentException e) {
+            assertEquals("bad value: value", e.getMessage());
+        }
+        assertTrue( map.isEmpty() );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() {
+        map = new ShardedFlexiMap(noClosure, noClosure, 2);
+        final CompletableFuture<Object> pending = map.putAsync("key", "value");
+        map.close();
+        assertTrue( pending.isDone() );
+        map.get("key");
+    }
+}
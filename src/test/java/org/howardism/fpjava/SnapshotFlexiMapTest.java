@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Saves maps into snapshots, and makes sure the {@link SnapshotFlexiMap}
+ * opened from one behaves just like the original.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class SnapshotFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    final Closure multiMapPut = new Closure() {
+        @SuppressWarnings("unchecked")
+        public Object apply(final Object... objects) {
+            final List<Object> values = objects[0] == null
+                ? new ArrayList<Object>() : (List<Object>) objects[0];
+            values.add( objects[1] );
+            return values;
+        }
+    };
+
+    @Test
+    public void testCodecsRoundTrip() {
+        final Codec strings = Codecs.list(Codecs.STRING);
+        final List<String> list = Arrays.asList("plain", null, "\u00fcml\u00e4ut", "\ud83d\ude00", "\ud800");
+        final ByteBuffer buf = ByteBuffer.allocate(strings.size(list));
+        strings.write(list, buf);
+        assertFalse( buf.hasRemaining() );
+        buf.flip();
+        final List<?> back = (List<?>) strings.read(buf);
+        assertEquals(list.subList(0, 4), back.subList(0, 4));
+        assertEquals("?", back.get(4));
+    }
+
+    /*
+     * Reopening a multi-map keeps the accumulated lists, and
+     * further puts carry on appending to them.
+     */
+    @Test
+    public void testMultiMapRestore() throws IOException {
+        final FlexiMap original = new FlexiMap(Some.thing(multiMapPut), noClosure);
+        for (int i = 0; i < 1000; i++)
+            original.put(i % 100, "value " + i);
+        original.put(null, "no key");
+
+        final Path file = folder.newFile("multi.snapshot").toPath();
+        SnapshotFlexiMap.save(original, file, Codecs.INTEGER, Codecs.list(Codecs.STRING));
+
+        final SnapshotFlexiMap restored = new SnapshotFlexiMap(Some.thing(multiMapPut), noClosure, file,
+                                                               Codecs.INTEGER, Codecs.list(Codecs.STRING));
+        assertEquals(original.size(), restored.size());
+        assertEquals(original, restored);
+
+        restored.put(5, "value 1000");
+        assertEquals(11, ((List<?>) restored.get(5)).size());
+        assertEquals("value 1000", ((List<?>) restored.get(5)).get(10));
+        assertEquals(original.size(), restored.size());
+    }
+
+    @Test
+    public void testRemoveAndClear() throws IOException {
+        final FlexiMap original = new FlexiMap(noClosure, noClosure);
+        for (long i = 0; i < 50; i++)
+            original.put(i, i * i);
+        original.put(100L, null);
+
+        final Path file = folder.newFile("longs.snapshot").toPath();
+        SnapshotFlexiMap.save(original, file, Codecs.LONG, Codecs.LONG);
+        final SnapshotFlexiMap restored = new SnapshotFlexiMap(noClosure, noClosure, file,
+                                                               Codecs.LONG, Codecs.LONG);
+
+        assertTrue( restored.containsKey(100L) );
+        assertNull( restored.get(100L) );
+        assertEquals(49L, restored.remove(7L));
+        assertFalse( restored.containsKey(7L) );
+
+        restored.put(8L, 0L);               // touched, then removed
+        assertEquals(0L, restored.remove(8L));
+        assertFalse( restored.containsKey(8L) );
+        assertEquals(49, restored.size());
+
+        restored.put(7L, 1L);
+        assertEquals(1L, restored.get(7L));
+        assertEquals(50, restored.size());
+
+        restored.clear();
+        assertTrue( restored.isEmpty() );
+        assertNull( restored.get(3L) );
+    }
+
+    /*
+     * Saving a restored map writes out the changes as well as
+     * the untouched entries.
+     */
+    @Test
+    public void testSaveRestoredMap() throws IOException {
+        final FlexiMap original = new FlexiMap(noClosure, noClosure);
+        for (int i = 0; i < 20; i++)
+            original.put("key " + i, "value " + i);
+
+        final Path first = folder.newFile("first.snapshot").toPath();
+        SnapshotFlexiMap.save(original, first, Codecs.STRING, Codecs.STRING);
+        final SnapshotFlexiMap restored = new SnapshotFlexiMap(noClosure, noClosure, first,
+                                                               Codecs.STRING, Codecs.STRING);
+        restored.put("key 3", "changed");
+        restored.remove("key 4");
+        restored.put("new", "value");
+
+        final Map<Object, Object> expected = new HashMap<Object, Object>(restored);
+        final Path second = folder.newFile("second.snapshot").toPath();
+        restored.save(second);
+
+        final SnapshotFlexiMap again = new SnapshotFlexiMap(noClosure, noClosure, second,
+                                                            Codecs.STRING, Codecs.STRING);
+        assertEquals(expected, again);
+    }
+
+    /*
+     * A codec failing halfway through a save leaves the old
+     * snapshot alone and no half-written file behind, and a
+     * closed map refuses to read its unmapped file.
+     */
+    @Test
+    public void testFailedSaveAndClose() throws IOException {
+        final FlexiMap original = new FlexiMap(noClosure, noClosure);
+        for (int i = 0; i < 20; i++)
+            original.put("key " + i, "value " + i);
+        final Path file = folder.newFile("failing.snapshot").toPath();
+        SnapshotFlexiMap.save(original, file, Codecs.STRING, Codecs.STRING);
+
+        original.put("bad", "value");
+        final Codec failing = new Codec() {
+            public int size(final Object o) {
+                if ("bad".equals(o))
+                    throw new IllegalArgumentException("bad key");
+                return Codecs.STRING.size(o);
+            }
+            public void write(final Object o, final ByteBuffer out) {
+                Codecs.STRING.write(o, out);
+            }
+            public Object read(final ByteBuffer in) {
+                return Codecs.STRING.read(in);
+            }
+        };
+        try {
+            SnapshotFlexiMap.save(original, file, failing, Codecs.STRING);
+            fail("The failing codec should have stopped the save");
+        }
+        catch (final IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse( Files.exists(file.resolveSibling(file.getFileName() + ".writing")) );
+
+        final SnapshotFlexiMap restored = new SnapshotFlexiMap(noClosure, noClosure, file,
+                                                               Codecs.STRING, Codecs.STRING);
+        assertEquals(20, restored.size());
+        assertEquals("value 3", restored.get("key 3"));
+
+        restored.close();
+        restored.close();
+        try {
+            restored.get("key 3");
+            fail("A closed map shouldn't read its file");
+        }
+        catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TypedFlexiMap}, starting with what the type constrained
+ * {@link FlexiMap} is tested for.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class TypedFlexiMapTest
+{
+    @Test
+    public void testTypeConstrainedMap() {
+        final Map<Object, Object> map = new TypedFlexiMap(Integer.class);
+        map.put("a", 42);
+        assertEquals(42, map.get("a"));
+        try {
+            map.put("b", "Not a number");
+            fail("A string should not be allowed in an Integer map");
+        }
+        catch (ClassCastException e) {
+            // expected
+        }
+        try {
+            map.put("b", 42L);
+            fail("A long should not be allowed in an Integer map");
+        }
+        catch (ClassCastException e) {
+            // expected
+        }
+        try {
+            map.put("b", null);
+            fail("A null should not be allowed");
+        }
+        catch (NullPointerException e) {
+            // expected
+        }
+        assertFalse(map.containsKey("b"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testUnsupportedType() {
+        try {
+            new TypedFlexiMap(Object.class);
+            fail("There is no column for plain objects");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(Long.class, new TypedFlexiMap(long.class).valueType());
+    }
+
+    @Test
+    public void testPrimitives() {
+        final TypedFlexiMap ints = new TypedFlexiMap(int.class);
+        ints.putInt("a", 1);
+        ints.putInt("a", 2);
+        assertEquals(2, ints.getInt("a", -1));
+        assertEquals(-1, ints.getInt("b", -1));
+        assertEquals(1, ints.size());
+        assertEquals(2, ints.remove("a"));
+        assertEquals(-1, ints.getInt("a", -1));
+
+        final TypedFlexiMap longs = new TypedFlexiMap(Long.class);
+        longs.putLong(null, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, longs.get(null));
+        assertEquals(Long.MAX_VALUE, longs.getLong(null, 0));
+
+        final TypedFlexiMap doubles = new TypedFlexiMap(Double.class);
+        doubles.put("pi", Math.PI);
+        assertEquals(Math.PI, doubles.getDouble("pi", 0), 0);
+        try {
+            doubles.putInt("e", 3);
+            fail("A double map has no int column");
+        }
+        catch (ClassCastException e) {
+            // expected
+        }
+        assertEquals(1, doubles.size());
+    }
+
+    @Test
+    public void testStrings() {
+        final TypedFlexiMap map = new TypedFlexiMap(String.class);
+        for (int i = 0; i < 1000; i++)
+            map.put(i, i % 2 == 0 ? "even" : "odd");
+        assertEquals("even", map.get(10));
+        assertEquals("odd", map.get(11));
+
+        assertEquals("odd", map.put(11, "eleven"));
+        assertEquals("eleven", map.get(11));
+        for (int i = 0; i < 1000; i += 2)
+            map.remove(i);
+        for (int i = 0; i < 1000; i += 2)
+            map.put(i, "new");
+        assertEquals("new", map.get(10));
+        assertEquals("odd", map.get(13));
+        assertEquals(1000, map.size());
+    }
+
+    @Test
+    public void testGrowingAndRemoving() {
+        final TypedFlexiMap map = new TypedFlexiMap(Integer.class);
+        final Map<Object, Object> expected = new HashMap<Object, Object>();
+        for (int i = 0; i < 10000; i++) {
+            map.putInt(i, i * 3);
+            expected.put(i, i * 3);
+            if (i % 3 == 0) {
+                map.remove(i / 2);
+                expected.remove(i / 2);
+            }
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+    }
+
+    @Test
+    public void testIterator() {
+        final TypedFlexiMap map = new TypedFlexiMap(Integer.class);
+        for (int i = 0; i < 100; i++)
+            map.putInt(i, i);
+
+        final Iterator<Map.Entry<Object, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Object, Object> entry = it.next();
+            if ((Integer) entry.getKey() % 2 == 0)
+                it.remove();
+            else
+                entry.setValue(-(Integer) entry.getValue());
+        }
+        assertEquals(50, map.size());
+        assertNull(map.get(2));
+        assertEquals(-3, map.get(3));
+        assertTrue(map.keySet().contains(99));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    /*
+     * Overwriting keys (through put or an entry) never makes the
+     * table grow, so it can't upset an iterator.
+     */
+    @Test
+    public void testSetValueWhileIterating() {
+        final TypedFlexiMap map = new TypedFlexiMap(Integer.class);
+        for (int i = 0; i < 10; i++)
+            map.put("k" + i, i);
+
+        int visited = 0;
+        for (final Map.Entry<Object, Object> entry : map.entrySet()) {
+            entry.setValue((Integer) entry.getValue() + 100);
+            visited++;
+        }
+        assertEquals(10, visited);
+        for (int i = 0; i < 10; i++)
+            assertEquals(i + 100, map.get("k" + i));
+
+        final TypedFlexiMap strings = new TypedFlexiMap(String.class);
+        strings.put("a", "x");
+        for (final Map.Entry<Object, Object> entry : strings.entrySet())
+            assertEquals("x", entry.setValue("y"));
+        assertEquals("y", strings.get("a"));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2012, Howard Abrams All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.howardism.fpjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.howardism.options.None;
+import org.howardism.options.Option;
+import org.howardism.options.Some;
+import org.junit.Test;
+
+/**
+ * Tests the {@link WriteBehindFlexiMap} against a sink that copies whatever
+ * it is given into a plain map.
+ *
+ * @author Howard Abrams (www.howardabrams.com)
+ */
+public class WriteBehindFlexiMapTest
+{
+    final static Option<Closure> noClosure = None.thing();
+
+    final Map<Object, Object> downstream = Collections.synchronizedMap(new HashMap<Object, Object>());
+    final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    final Closure copyingSink = new Closure() {
+        @SuppressWarnings("unchecked")
+        public Object apply(final Object... objects) {
+            final Map<Object, Object> updates = (Map<Object, Object>) objects[0];
+            final Set<Object> removals = (Set<Object>) objects[1];
+            downstream.putAll(updates);
+            for (final Object key : removals)
+                downstream.remove(key);
+            batchSizes.add(updates.size() + removals.size());
+            return null;
+        }
+    };
+
+    final Closure counter = new Closure() {
+        public Object apply(final Object... objects) {
+            return objects[0] == null ? 1 : (Integer) objects[0] + 1;
+        }
+    };
+
+    @Test
+    public void testFlushMirrorsTheMap() {
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, copyingSink,
+                                                                10, 60000, 100);
+        for (int i = 0; i < 50; i++)
+            map.put(i, "value-" + i);
+        map.remove(7);
+        map.put(null, "nothing");
+        map.flush();
+
+        assertEquals(new HashMap<Object, Object>(map), downstream);
+        assertEquals(0, map.pendingCount());
+        for (final int size : batchSizes)
+            assertTrue( size <= 10 );
+        map.close();
+    }
+
+    /*
+     * A thousand puts to one key reach the sink as far fewer
+     * updates, and the last one carries the merged value.
+     */
+    @Test
+    public void testPutsAreCoalesced() {
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(Some.thing(counter), noClosure, copyingSink,
+                                                                10, 60000, 100);
+        for (int i = 0; i < 1000; i++)
+            map.put("key", 1);
+        map.close();
+
+        assertEquals(1000, downstream.get("key"));
+        assertEquals(1, batchSizes.size());
+    }
+
+    @Test
+    public void testFlushesOnInterval() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        final Closure signallingSink = new Closure() {
+            public Object apply(final Object... objects) {
+                copyingSink.apply(objects);
+                written.countDown();
+                return null;
+            }
+        };
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, signallingSink,
+                                                                1000, 20, 1000);
+        map.put("key", "value");
+        assertTrue( written.await(5, TimeUnit.SECONDS) );
+        assertEquals("value", downstream.get("key"));
+        map.close();
+    }
+
+    /*
+     * With the sink stuck, a writer of new keys blocks once
+     * the queue is full, and carries on when the sink does.
+     */
+    @Test
+    public void testBackpressure() throws InterruptedException {
+        final CountDownLatch unstick = new CountDownLatch(1);
+        final Closure stuckSink = new Closure() {
+            public Object apply(final Object... objects) {
+                try {
+                    unstick.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return copyingSink.apply(objects);
+            }
+        };
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, stuckSink,
+                                                                2, 60000, 4);
+        final Thread writer = new Thread() {
+            public void run() {
+                for (int i = 0; i < 20; i++)
+                    map.put(i, i);
+            }
+        };
+        writer.start();
+        writer.join(300);
+        assertTrue( writer.isAlive() );
+
+        unstick.countDown();
+        writer.join(5000);
+        map.close();
+        assertEquals(20, downstream.size());
+    }
+
+    @Test
+    public void testSinkFailureKeepsKeysPending() {
+        final boolean[] failing = { true };
+        final Closure flakySink = new Closure() {
+            public Object apply(final Object... objects) {
+                if (failing[0])
+                    throw new IllegalStateException("sink is down");
+                return copyingSink.apply(objects);
+            }
+        };
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, flakySink,
+                                                                10, 60000, 100);
+        map.put("key", "value");
+        try {
+            map.flush();
+            fail("Expected the sink's exception");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, map.pendingCount());
+
+        failing[0] = false;
+        map.close();
+        assertEquals("value", downstream.get("key"));
+    }
+
+    /*
+     * A failed batch goes back ahead of the keys marked while
+     * it was being written.
+     */
+    @Test
+    public void testFailedBatchKeepsItsPlace() {
+        final List<Object> seen = Collections.synchronizedList(new ArrayList<Object>());
+        final WriteBehindFlexiMap[] map = new WriteBehindFlexiMap[1];
+        final Closure failOnceSink = new Closure() {
+            @SuppressWarnings("unchecked")
+            public Object apply(final Object... objects) {
+                if (!map[0].containsKey("c")) {
+                    map[0].put("c", 3);
+                    throw new IllegalStateException("sink is down");
+                }
+                seen.addAll(((Map<Object, Object>) objects[0]).keySet());
+                return null;
+            }
+        };
+        map[0] = new WriteBehindFlexiMap(noClosure, noClosure, failOnceSink, 10, 60000, 100);
+        map[0].put("a", 1);
+        map[0].put("b", 2);
+        try {
+            map[0].flush();
+            fail("Expected the sink's exception");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        map[0].close();
+        assertEquals("[a, b, c]", seen.toString());
+    }
+
+    /*
+     * Once the background thread gets a batch through, the
+     * earlier failure is forgotten.
+     */
+    @Test
+    public void testRecoveredFailureIsForgotten() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final Closure failOnceSink = new Closure() {
+            public Object apply(final Object... objects) {
+                if (calls.incrementAndGet() == 1)
+                    throw new IllegalStateException("sink is down");
+                return copyingSink.apply(objects);
+            }
+        };
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, failOnceSink,
+                                                                10, 20, 100);
+        map.put("key", "value");
+        for (int i = 0; i < 500 && !downstream.containsKey("key"); i++)
+            Thread.sleep(10);
+        assertEquals("value", downstream.get("key"));
+        map.close();
+    }
+
+    /*
+     * Removing a missing key queues nothing, and a closed map
+     * refuses changes that would never be written.
+     */
+    @Test
+    public void testRemoveAbsentAndClosed() {
+        final WriteBehindFlexiMap map = new WriteBehindFlexiMap(noClosure, noClosure, copyingSink,
+                                                                10, 60000, 100);
+        assertNull( map.remove("missing") );
+        assertEquals(0, map.pendingCount());
+
+        map.put("key", "value");
+        map.close();
+        assertEquals("value", downstream.get("key"));
+        try {
+            map.put("late", "value");
+            fail("A closed map should refuse puts");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        try {
+            map.remove("key");
+            fail("A closed map should refuse removes");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertEquals("value", map.get("key"));
+        assertEquals(0, map.pendingCount());
+    }
+}
@@ -21,6 +21,8 @@ package org.howardism.intensionals;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 
 /**
@@ -127,4 +129,15 @@ public class SetTests {
         }
         assertEquals("0, 2, ", buf.toString());  // Range is inclusive.
     }
+
+    /**
+     * A lazy sequence can walk through an infinite set, as long as
+     * something stops it.
+     */
+    @Test
+    public void testSeq() {
+        assertEquals(Arrays.asList(6, 8, 10, 12),
+                     SetUtils.seq(SetUtils.diff(evens(), singleton(4)), 3).take(4).toList());
+        assertEquals(Arrays.asList(1, 3, 5), SetUtils.seq(odds(), -2).take(3).toList());
+    }
 }